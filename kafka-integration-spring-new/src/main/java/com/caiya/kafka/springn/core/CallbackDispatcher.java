@@ -0,0 +1,92 @@
+package com.caiya.kafka.springn.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the send completions off the producer network thread: the completions are queued in a
+ * lock-free queue by the network thread, and run in order, in batches, by one task at a time on the
+ * executor.
+ *
+ * @since 1.2.0
+ */
+final class CallbackDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(CallbackDispatcher.class);
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final Executor executor;
+
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger depth = new AtomicInteger();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable drainTask = this::drain;
+
+    CallbackDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queue a completion, and schedule the drain task unless it is scheduled already.
+     *
+     * @param completion the completion.
+     */
+    void dispatch(Runnable completion) {
+        this.completions.offer(completion);
+        this.depth.incrementAndGet();
+        schedule();
+    }
+
+    /**
+     * @return the number of completions queued and not run yet.
+     */
+    int getQueueDepth() {
+        return this.depth.get();
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(this.drainTask);
+            } catch (RejectedExecutionException e) {
+                // the completions cannot be lost, run them on the calling thread
+                logger.warn("Callback executor rejected the completions, running them on the producer thread", e);
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        Runnable completion;
+        int count = 0;
+        try {
+            while (count++ < MAX_BATCH_SIZE && (completion = this.completions.poll()) != null) {
+                this.depth.decrementAndGet();
+                try {
+                    completion.run();
+                } catch (RuntimeException e) {
+                    logger.error("Send completion failed", e);
+                }
+            }
+        } finally {
+            // reset even when a completion throws an error, or the completions would never run again
+            this.scheduled.set(false);
+            if (!this.completions.isEmpty()) {
+                // more completions, or queued after the last poll and before the flag was reset
+                schedule();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.caiya.kafka.springn.core;
+
+import org.apache.kafka.common.errors.TimeoutException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rejects the sends for a while after consecutive send timeouts, then lets one trial send through:
+ * the circuit closes again when it completes without a timeout, or stays open for another while.
+ *
+ * @since 1.2.0
+ */
+final class CircuitBreaker {
+
+    private final int threshold;
+
+    private final long openTimeMillis;
+
+    private final AtomicInteger consecutiveTimeouts = new AtomicInteger();
+
+    private final AtomicBoolean trial = new AtomicBoolean();
+
+    private volatile long openUntil;
+
+    CircuitBreaker(int threshold, long openTimeMillis) {
+        this.threshold = threshold;
+        this.openTimeMillis = openTimeMillis;
+    }
+
+    /**
+     * @return true if a send may proceed; it must then be {@link #completed(Exception) completed}.
+     */
+    boolean allow() {
+        if (this.openUntil == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < this.openUntil) {
+            return false;
+        }
+        // half open, a single trial at a time
+        return this.trial.compareAndSet(false, true);
+    }
+
+    /**
+     * Record the outcome of an allowed send.
+     *
+     * @param exception the send failure, or null.
+     */
+    void completed(Exception exception) {
+        if (exception instanceof TimeoutException) {
+            if (this.openUntil != 0 || this.consecutiveTimeouts.incrementAndGet() >= this.threshold) {
+                this.openUntil = System.currentTimeMillis() + this.openTimeMillis;
+                this.consecutiveTimeouts.set(0);
+                this.trial.set(false);
+            }
+        } else {
+            // the broker answered
+            this.consecutiveTimeouts.set(0);
+            if (this.openUntil != 0) {
+                this.openUntil = 0;
+                this.trial.set(false);
+            }
+        }
+    }
+
+    boolean isOpen() {
+        return this.openUntil != 0;
+    }
+
+}
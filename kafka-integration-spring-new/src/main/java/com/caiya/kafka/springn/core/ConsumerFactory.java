@@ -60,6 +60,21 @@ public interface ConsumerFactory<K, V> {
         return createConsumer(groupId, clientIdSuffix);
     }
 
+    /**
+     * Create a consumer returning the keys and values as raw bytes, with the same configuration as
+     * {@link #createConsumer(String, String)} otherwise; the records are then deserialized by the container
+     * with {@link #getKeyDeserializer()} and {@link #getValueDeserializer()}, or the deserializers
+     * configured by class in the properties.
+     *
+     * @param groupId        the group id.
+     * @param clientIdSuffix the suffix.
+     * @return the consumer.
+     * @since 1.2.0
+     */
+    default Consumer<byte[], byte[]> createRawConsumer(String groupId, String clientIdSuffix) {
+        throw new UnsupportedOperationException("'createRawConsumer()' is not supported");
+    }
+
     /**
      * Return true if consumers created by this factory use auto commit.
      *
@@ -3,6 +3,7 @@ package com.caiya.kafka.springn.core;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.springframework.util.StringUtils;
 
@@ -92,6 +93,18 @@ public class DefaultKafkaConsumerFactory<K, V> implements com.caiya.kafka.spring
 
     protected KafkaConsumer<K, V> createKafkaConsumer(String groupId, String clientIdPrefix,
                                                       String clientIdSuffix) {
+        Map<String, Object> modifiedConfigs = modifiedConfigs(groupId, clientIdPrefix, clientIdSuffix);
+        if (modifiedConfigs == null) {
+            return createKafkaConsumer();
+        } else {
+            return createKafkaConsumer(modifiedConfigs);
+        }
+    }
+
+    /**
+     * @return the configs with the group id and client id applied, or null if unmodified.
+     */
+    private Map<String, Object> modifiedConfigs(String groupId, String clientIdPrefix, String clientIdSuffix) {
         boolean overrideClientIdPrefix = StringUtils.hasText(clientIdPrefix);
         if (clientIdSuffix == null) {
             clientIdSuffix = "";
@@ -99,7 +112,7 @@ public class DefaultKafkaConsumerFactory<K, V> implements com.caiya.kafka.spring
         boolean shouldModifyClientId = (this.configs.containsKey(ConsumerConfig.CLIENT_ID_CONFIG)
                 && StringUtils.hasText(clientIdSuffix)) || overrideClientIdPrefix;
         if (groupId == null && !shouldModifyClientId) {
-            return createKafkaConsumer();
+            return null;
         } else {
             Map<String, Object> modifiedConfigs = new HashMap<>(this.configs);
             if (groupId != null) {
@@ -110,10 +123,17 @@ public class DefaultKafkaConsumerFactory<K, V> implements com.caiya.kafka.spring
                         (overrideClientIdPrefix ? clientIdPrefix
                                 : modifiedConfigs.get(ConsumerConfig.CLIENT_ID_CONFIG)) + clientIdSuffix);
             }
-            return createKafkaConsumer(modifiedConfigs);
+            return modifiedConfigs;
         }
     }
 
+    @Override
+    public Consumer<byte[], byte[]> createRawConsumer(String groupId, String clientIdSuffix) {
+        Map<String, Object> modifiedConfigs = modifiedConfigs(groupId, null, clientIdSuffix);
+        return new KafkaConsumer<>(modifiedConfigs == null ? this.configs : modifiedConfigs,
+                new ByteArrayDeserializer(), new ByteArrayDeserializer());
+    }
+
     protected KafkaConsumer<K, V> createKafkaConsumer(Map<String, Object> configs) {
         return new KafkaConsumer<K, V>(configs, this.keyDeserializer, this.valueDeserializer);
     }
@@ -1,5 +1,6 @@
 package com.caiya.kafka.springn.core;
 
+import com.caiya.kafka.springn.KafkaException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
@@ -14,15 +15,19 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.Lifecycle;
 import org.springframework.util.Assert;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The {@link ProducerFactory} implementation for the {@code singleton} shared {@link Producer}
@@ -38,7 +43,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  * {@link Producer} during the {@link Lifecycle#stop()} or {@link DisposableBean#destroy()}.
  * <p>
  * Setting {@link #setTransactionIdPrefix(String)} enables transactions; in which case, a cache
- * of producers is maintained; closing the producer returns it to the cache.
+ * of producers is maintained; closing the producer returns it to the cache. The cache can be
+ * bounded, pre-warmed on {@link #start()} and evicts the producers idle for too long, see
+ * {@link #setTransactionalPoolMaxSize(int)}, {@link #setTransactionalPoolMinIdle(int)} and
+ * {@link #setTransactionalPoolIdleTimeout(long)}.
+ * <p>
+ * Setting {@link #setProducerPoolSize(int)} spreads the non-transactional sends over several
+ * physical producers.
  *
  * @param <K> the key type.
  * @param <V> the value type.
@@ -47,13 +58,30 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
 
     private static final int DEFAULT_PHYSICAL_CLOSE_TIMEOUT = 30;
 
+    private static final long DEFAULT_TRANSACTIONAL_POOL_MAX_WAIT = 5000;
+
     private static final Log logger = LogFactory.getLog(com.caiya.kafka.springn.core.DefaultKafkaProducerFactory.class);
 
     private final Map<String, Object> configs;
 
     private final AtomicInteger transactionIdSuffix = new AtomicInteger();
 
-    private final BlockingQueue<CloseSafeProducer<K, V>> cache = new LinkedBlockingQueue<>();
+    private final Deque<CloseSafeProducer<K, V>> cache = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger transactionalProducerCount = new AtomicInteger();
+
+    private final AtomicInteger idleProducerCount = new AtomicInteger();
+
+    private final AtomicLong createdProducerCount = new AtomicLong();
+
+    private final AtomicLong evictedProducerCount = new AtomicLong();
+
+    /**
+     * Signalled when a transactional producer is returned or closed, for the callers waiting for one.
+     */
+    private final Object poolMonitor = new Object();
+
+    private final AtomicInteger poolWaiters = new AtomicInteger();
 
     private volatile CloseSafeProducer<K, V> producer;
 
@@ -65,6 +93,16 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
 
     private String transactionIdPrefix;
 
+    private int producerPoolSize = 1;
+
+    private int transactionalPoolMaxSize = Integer.MAX_VALUE;
+
+    private int transactionalPoolMinIdle;
+
+    private long transactionalPoolIdleTimeout;
+
+    private long transactionalPoolMaxWait = DEFAULT_TRANSACTIONAL_POOL_MAX_WAIT;
+
     private volatile boolean running;
 
     public DefaultKafkaProducerFactory(Map<String, Object> configs) {
@@ -97,6 +135,70 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
         this.physicalCloseTimeout = physicalCloseTimeout;
     }
 
+    /**
+     * Set the number of physical producers behind the shared non-transactional producer, so that the
+     * sends of many threads do not contend on the accumulator and the single sender thread of one
+     * producer. A record is sent by the producer selected by the hash of its key, so that records with
+     * the same key keep their order, or by the sending thread when it has no key. Ignored with
+     * transactions.
+     *
+     * @param producerPoolSize the number of producers; 1 by default.
+     * @since 1.2.0
+     */
+    public void setProducerPoolSize(int producerPoolSize) {
+        Assert.isTrue(producerPoolSize > 0, "'producerPoolSize' must be greater than 0");
+        this.producerPoolSize = producerPoolSize;
+    }
+
+    /**
+     * Set the maximum number of transactional producers, in use or idle; unbounded by default. When
+     * they are all in use, {@link #createProducer()} waits for one to be closed, see
+     * {@link #setTransactionalPoolMaxWait(long)}.
+     *
+     * @param transactionalPoolMaxSize the maximum number of producers.
+     * @since 1.2.0
+     */
+    public void setTransactionalPoolMaxSize(int transactionalPoolMaxSize) {
+        Assert.isTrue(transactionalPoolMaxSize > 0, "'transactionalPoolMaxSize' must be greater than 0");
+        this.transactionalPoolMaxSize = transactionalPoolMaxSize;
+    }
+
+    /**
+     * Set the number of transactional producers created, and their transactions initialized, on
+     * {@link #start()}, and never evicted; 0 by default.
+     *
+     * @param transactionalPoolMinIdle the minimum number of idle producers.
+     * @since 1.2.0
+     */
+    public void setTransactionalPoolMinIdle(int transactionalPoolMinIdle) {
+        Assert.isTrue(transactionalPoolMinIdle >= 0, "'transactionalPoolMinIdle' cannot be negative");
+        this.transactionalPoolMinIdle = transactionalPoolMinIdle;
+    }
+
+    /**
+     * Set the time after which an idle transactional producer is closed, above the
+     * {@link #setTransactionalPoolMinIdle(int) minimum idle} producers; 0, the default, never closes
+     * them. The eviction runs when producers are taken and returned, or on
+     * {@link #evictIdleProducers()}.
+     *
+     * @param transactionalPoolIdleTimeout the idle timeout in milliseconds.
+     * @since 1.2.0
+     */
+    public void setTransactionalPoolIdleTimeout(long transactionalPoolIdleTimeout) {
+        this.transactionalPoolIdleTimeout = transactionalPoolIdleTimeout;
+    }
+
+    /**
+     * Set the time to wait for a transactional producer when the pool is exhausted; default
+     * {@value #DEFAULT_TRANSACTIONAL_POOL_MAX_WAIT}.
+     *
+     * @param transactionalPoolMaxWait the time to wait in milliseconds.
+     * @since 1.2.0
+     */
+    public void setTransactionalPoolMaxWait(long transactionalPoolMaxWait) {
+        this.transactionalPoolMaxWait = transactionalPoolMaxWait;
+    }
+
     /**
      * Set the transactional.id prefix.
      *
@@ -144,19 +246,30 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
         if (producer != null) {
             producer.delegate.close(this.physicalCloseTimeout, TimeUnit.SECONDS);
         }
-        producer = this.cache.poll();
+        producer = takeIdleProducer();
         while (producer != null) {
-            try {
-                producer.delegate.close(this.physicalCloseTimeout, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                logger.error("Exception while closing producer", e);
-            }
-            producer = this.cache.poll();
+            closeTransactionalProducer(producer, this.physicalCloseTimeout);
+            producer = takeIdleProducer();
         }
     }
 
+    /**
+     * Create the {@link #setTransactionalPoolMinIdle(int) minimum idle} transactional producers, so
+     * that the first transactions do not wait for {@code initTransactions()}.
+     */
     @Override
     public void start() {
+        if (this.transactionIdPrefix != null) {
+            while (this.idleProducerCount.get() < this.transactionalPoolMinIdle) {
+                int count = this.transactionalProducerCount.get();
+                if (count >= this.transactionalPoolMaxSize) {
+                    break;
+                }
+                if (this.transactionalProducerCount.compareAndSet(count, count + 1)) {
+                    returnIdleProducer(newTransactionalProducer());
+                }
+            }
+        }
         this.running = true;
     }
 
@@ -184,7 +297,15 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
         if (this.producer == null) {
             synchronized (this) {
                 if (this.producer == null) {
-                    this.producer = new CloseSafeProducer<K, V>(createKafkaProducer());
+                    if (this.producerPoolSize > 1) {
+                        List<Producer<K, V>> delegates = new ArrayList<>(this.producerPoolSize);
+                        for (int i = 0; i < this.producerPoolSize; i++) {
+                            delegates.add(createKafkaProducer(i));
+                        }
+                        this.producer = new CloseSafeProducer<K, V>(new StripedProducer<>(delegates));
+                    } else {
+                        this.producer = new CloseSafeProducer<K, V>(createKafkaProducer());
+                    }
                 }
             }
         }
@@ -201,6 +322,24 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
         return new KafkaProducer<K, V>(this.configs, this.keySerializer, this.valueSerializer);
     }
 
+    /**
+     * Return a raw producer of the pool, see {@link #setProducerPoolSize(int)}; the {@code client.id},
+     * if any, is suffixed with the index.
+     *
+     * @param index the index of the producer in the pool.
+     * @return the producer.
+     * @since 1.2.0
+     */
+    protected Producer<K, V> createKafkaProducer(int index) {
+        Object clientId = this.configs.get(ProducerConfig.CLIENT_ID_CONFIG);
+        if (clientId == null) {
+            return createKafkaProducer();
+        }
+        Map<String, Object> configs = new HashMap<>(this.configs);
+        configs.put(ProducerConfig.CLIENT_ID_CONFIG, clientId + "-" + index);
+        return createKafkaProducer(configs);
+    }
+
     /**
      * Subclasses must return a producer from the {@link #getCache()} or a
      * new raw producer wrapped in a {@link CloseSafeProducer}.
@@ -209,23 +348,310 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
      * @since 1.3
      */
     protected Producer<K, V> createTransactionalProducer() {
-        Producer<K, V> producer = this.cache.poll();
-        if (producer == null) {
+        evictIdleProducers();
+        long deadline = System.currentTimeMillis() + this.transactionalPoolMaxWait;
+        while (true) {
+            CloseSafeProducer<K, V> producer = takeIdleProducer();
+            if (producer != null) {
+                return producer;
+            }
+            int count = this.transactionalProducerCount.get();
+            if (count < this.transactionalPoolMaxSize) {
+                if (this.transactionalProducerCount.compareAndSet(count, count + 1)) {
+                    return newTransactionalProducer();
+                }
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new KafkaException("No transactional producer available within "
+                        + this.transactionalPoolMaxWait + "ms, maximum pool size: " + this.transactionalPoolMaxSize);
+            }
+            awaitReleasedProducer(remaining);
+        }
+    }
+
+    private void awaitReleasedProducer(long timeoutMillis) {
+        this.poolWaiters.incrementAndGet();
+        try {
+            synchronized (this.poolMonitor) {
+                // check again under the monitor, a producer may have been released since the last check
+                if (this.cache.isEmpty() && this.transactionalProducerCount.get() >= this.transactionalPoolMaxSize) {
+                    this.poolMonitor.wait(timeoutMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KafkaException("Interrupted while waiting for a transactional producer", e);
+        } finally {
+            this.poolWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wake up the callers waiting for a transactional producer, once one is returned or closed.
+     */
+    private void producerReleased() {
+        if (this.poolWaiters.get() > 0) {
+            synchronized (this.poolMonitor) {
+                this.poolMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Create a transactional producer and initialize its transactions; the caller has already
+     * counted it in {@link #transactionalProducerCount}.
+     */
+    private CloseSafeProducer<K, V> newTransactionalProducer() {
+        try {
             Map<String, Object> configs = new HashMap<>(this.configs);
             configs.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG,
                     this.transactionIdPrefix + this.transactionIdSuffix.getAndIncrement());
-            producer = new KafkaProducer<K, V>(configs, this.keySerializer, this.valueSerializer);
+            Producer<K, V> producer = createKafkaProducer(configs);
             producer.initTransactions();
-            return new CloseSafeProducer<K, V>(producer, this.cache);
-        } else {
-            return producer;
+            this.createdProducerCount.incrementAndGet();
+            return new CloseSafeProducer<K, V>(producer, this);
+        } catch (RuntimeException e) {
+            this.transactionalProducerCount.decrementAndGet();
+            producerReleased();
+            throw e;
+        }
+    }
+
+    /**
+     * Return a raw producer for the configs, which differ from the configs of this factory by the
+     * {@code client.id} or the {@code transactional.id}.
+     *
+     * @param configs the producer configs.
+     * @return the producer.
+     * @since 1.2.0
+     */
+    protected Producer<K, V> createKafkaProducer(Map<String, Object> configs) {
+        return new KafkaProducer<K, V>(configs, this.keySerializer, this.valueSerializer);
+    }
+
+    private CloseSafeProducer<K, V> takeIdleProducer() {
+        // LIFO, so that the least recently used producers are left idle at the tail, to be evicted
+        CloseSafeProducer<K, V> producer = this.cache.pollFirst();
+        if (producer != null) {
+            this.idleProducerCount.decrementAndGet();
+            producer.idleSince = 0;
+            producer.pooled.set(false);
+        }
+        return producer;
+    }
+
+    private void returnIdleProducer(CloseSafeProducer<K, V> producer) {
+        producer.pooled.set(true);
+        producer.idleSince = System.currentTimeMillis();
+        this.idleProducerCount.incrementAndGet();
+        this.cache.offerFirst(producer);
+        producerReleased();
+    }
+
+    private void closeTransactionalProducer(CloseSafeProducer<K, V> producer, long timeoutSeconds) {
+        if (!producer.closed.compareAndSet(false, true)) {
+            return;
+        }
+        this.transactionalProducerCount.decrementAndGet();
+        producerReleased();
+        try {
+            producer.delegate.close(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            logger.error("Exception while closing producer", e);
+        }
+    }
+
+    /**
+     * Close the transactional producers idle for longer than the
+     * {@link #setTransactionalPoolIdleTimeout(long) idle timeout}, keeping the
+     * {@link #setTransactionalPoolMinIdle(int) minimum idle} ones; may be scheduled, when the
+     * producers are not taken often enough for the eviction to run.
+     *
+     * @since 1.2.0
+     */
+    public void evictIdleProducers() {
+        if (this.transactionalPoolIdleTimeout <= 0) {
+            return;
+        }
+        long expired = System.currentTimeMillis() - this.transactionalPoolIdleTimeout;
+        CloseSafeProducer<K, V> producer = this.cache.peekLast();
+        while (producer != null && producer.idleSince != 0 && producer.idleSince < expired) {
+            // the idle count is decremented before the removal, so that concurrent evictions cannot both
+            // pass the minimum idle check
+            int idle = this.idleProducerCount.get();
+            if (idle <= this.transactionalPoolMinIdle) {
+                break;
+            }
+            if (!this.idleProducerCount.compareAndSet(idle, idle - 1)) {
+                continue;
+            }
+            // only one thread removes a given producer; a concurrent take wins over the eviction
+            if (this.cache.removeLastOccurrence(producer)) {
+                this.evictedProducerCount.incrementAndGet();
+                closeTransactionalProducer(producer, 0);
+            } else {
+                this.idleProducerCount.incrementAndGet();
+            }
+            producer = this.cache.peekLast();
         }
     }
 
-    protected BlockingQueue<CloseSafeProducer<K, V>> getCache() {
+    protected Deque<CloseSafeProducer<K, V>> getCache() {
         return this.cache;
     }
 
+    /**
+     * Return the number of transactional producers, in use or idle.
+     *
+     * @return the number of producers.
+     * @since 1.2.0
+     */
+    public int getTransactionalProducerCount() {
+        return this.transactionalProducerCount.get();
+    }
+
+    /**
+     * Return the number of idle transactional producers.
+     *
+     * @return the number of producers.
+     * @since 1.2.0
+     */
+    public int getIdleProducerCount() {
+        return this.idleProducerCount.get();
+    }
+
+    /**
+     * Return the number of transactional producers created since this factory was created.
+     *
+     * @return the number of producers.
+     * @since 1.2.0
+     */
+    public long getCreatedProducerCount() {
+        return this.createdProducerCount.get();
+    }
+
+    /**
+     * Return the number of transactional producers closed for being idle too long.
+     *
+     * @return the number of producers.
+     * @since 1.2.0
+     */
+    public long getEvictedProducerCount() {
+        return this.evictedProducerCount.get();
+    }
+
+    /**
+     * Spreads the sends over several non-transactional producers, by key hash or by thread.
+     *
+     * @param <K> the key type.
+     * @param <V> the value type.
+     * @since 1.2.0
+     */
+    protected static class StripedProducer<K, V> implements Producer<K, V> {
+
+        private final Producer<K, V>[] delegates;
+
+        @SuppressWarnings("unchecked")
+        StripedProducer(List<Producer<K, V>> delegates) {
+            this.delegates = delegates.toArray(new Producer[0]);
+        }
+
+        Producer<K, V> delegateFor(ProducerRecord<K, V> record) {
+            Object key = record.key();
+            int hash;
+            if (key == null) {
+                hash = (int) Thread.currentThread().getId();
+            } else if (key instanceof byte[]) {
+                hash = Arrays.hashCode((byte[]) key);
+            } else {
+                hash = key.hashCode();
+            }
+            return this.delegates[(hash & Integer.MAX_VALUE) % this.delegates.length];
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<K, V> record) {
+            return delegateFor(record).send(record);
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
+            return delegateFor(record).send(record, callback);
+        }
+
+        @Override
+        public void flush() {
+            for (Producer<K, V> delegate : this.delegates) {
+                delegate.flush();
+            }
+        }
+
+        @Override
+        public List<PartitionInfo> partitionsFor(String topic) {
+            return this.delegates[0].partitionsFor(topic);
+        }
+
+        @Override
+        public Map<MetricName, ? extends Metric> metrics() {
+            // the metric names are tagged with the client id of each producer
+            Map<MetricName, Metric> metrics = new HashMap<>();
+            for (Producer<K, V> delegate : this.delegates) {
+                metrics.putAll(delegate.metrics());
+            }
+            return Collections.unmodifiableMap(metrics);
+        }
+
+        @Override
+        public void initTransactions() {
+            throw new UnsupportedOperationException("Transactions are not supported by pooled producers");
+        }
+
+        @Override
+        public void beginTransaction() throws ProducerFencedException {
+            throw new UnsupportedOperationException("Transactions are not supported by pooled producers");
+        }
+
+        @Override
+        public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets, String consumerGroupId)
+                throws ProducerFencedException {
+            throw new UnsupportedOperationException("Transactions are not supported by pooled producers");
+        }
+
+        @Override
+        public void commitTransaction() throws ProducerFencedException {
+            throw new UnsupportedOperationException("Transactions are not supported by pooled producers");
+        }
+
+        @Override
+        public void abortTransaction() throws ProducerFencedException {
+            throw new UnsupportedOperationException("Transactions are not supported by pooled producers");
+        }
+
+        @Override
+        public void close() {
+            close(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void close(long timeout, TimeUnit unit) {
+            for (Producer<K, V> delegate : this.delegates) {
+                try {
+                    delegate.close(timeout, unit);
+                } catch (Exception e) {
+                    logger.error("Exception while closing producer", e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "StripedProducer [delegates=" + Arrays.toString(this.delegates) + "]";
+        }
+
+    }
+
     /**
      * A wrapper class for the delegate.
      *
@@ -236,18 +662,24 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
 
         private final Producer<K, V> delegate;
 
-        private final BlockingQueue<CloseSafeProducer<K, V>> cache;
+        private final DefaultKafkaProducerFactory<K, V> pool;
+
+        private final AtomicBoolean pooled = new AtomicBoolean();
+
+        private final AtomicBoolean closed = new AtomicBoolean();
 
         private volatile boolean txFailed;
 
+        private volatile long idleSince;
+
         CloseSafeProducer(Producer<K, V> delegate) {
             this(delegate, null);
             Assert.isTrue(!(delegate instanceof CloseSafeProducer), "Cannot double-wrap a producer");
         }
 
-        CloseSafeProducer(Producer<K, V> delegate, BlockingQueue<CloseSafeProducer<K, V>> cache) {
+        CloseSafeProducer(Producer<K, V> delegate, DefaultKafkaProducerFactory<K, V> pool) {
             this.delegate = delegate;
-            this.cache = cache;
+            this.pool = pool;
         }
 
         @Override
@@ -318,18 +750,20 @@ public class DefaultKafkaProducerFactory<K, V> implements ProducerFactory<K, V>,
 
         @Override
         public void close() {
-            if (this.cache != null) {
+            if (this.pool != null) {
                 if (this.txFailed) {
-                    logger.warn("Error during transactional operation; producer removed from cache; possible cause: "
-                            + "broker restarted during transaction");
-
-                    this.delegate.close();
-                } else {
-                    synchronized (this) {
-                        if (!this.cache.contains(this)) {
-                            this.cache.offer(this);
-                        }
+                    // closed once, however many times the caller closes it
+                    if (this.closed.compareAndSet(false, true)) {
+                        logger.warn("Error during transactional operation; producer removed from cache; possible "
+                                + "cause: broker restarted during transaction");
+
+                        this.pool.transactionalProducerCount.decrementAndGet();
+                        this.pool.producerReleased();
+                        this.delegate.close();
                     }
+                } else if (this.pooled.compareAndSet(false, true)) {
+                    this.pool.returnIdleProducer(this);
+                    this.pool.evictIdleProducers();
                 }
             }
         }
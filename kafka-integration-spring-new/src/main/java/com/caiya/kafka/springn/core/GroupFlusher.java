@@ -0,0 +1,130 @@
+package com.caiya.kafka.springn.core;
+
+import org.apache.kafka.clients.producer.Producer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coalesces the flushes of concurrent senders: the first thread asking for a flush waits for the
+ * window, and for the flush in progress if any, then flushes once for all the threads which asked
+ * meanwhile, which are released together.
+ *
+ * @since 1.2.0
+ */
+final class GroupFlusher {
+
+    private final long windowNanos;
+
+    private Generation pending;
+
+    private Generation last;
+
+    GroupFlusher(long windowMillis) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    /**
+     * Flush the producer, at most once per window for all the callers; return when the records sent
+     * by the caller before this call are completed.
+     *
+     * @param producer the producer, shared by the callers.
+     */
+    void flush(Producer<?, ?> producer) {
+        Generation generation;
+        boolean leader = false;
+        synchronized (this) {
+            generation = this.pending;
+            if (generation == null || generation.producer != producer) {
+                if (generation != null) {
+                    // not the shared producer, no coalescing
+                    producer.flush();
+                    return;
+                }
+                generation = new Generation(producer, this.last);
+                this.pending = generation;
+                this.last = generation;
+                leader = true;
+            }
+        }
+        if (leader) {
+            lead(generation);
+        }
+        generation.await();
+    }
+
+    private void lead(Generation generation) {
+        long deadline = System.nanoTime() + this.windowNanos;
+        long remaining;
+        boolean interrupted = false;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                // parkNanos returns at once while interrupted; cut the window short, the flush is shared
+                interrupted = true;
+                break;
+            }
+        }
+        if (generation.previous != null) {
+            // a flush at a time, the next one covers the callers arriving meanwhile
+            generation.previous.awaitQuietly();
+        }
+        synchronized (this) {
+            // the later callers may have sent after the flush began, they need the next one
+            this.pending = null;
+        }
+        try {
+            generation.producer.flush();
+        } catch (RuntimeException e) {
+            generation.failure = e;
+        } finally {
+            generation.previous = null;
+            generation.done.countDown();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Generation {
+
+        private final Producer<?, ?> producer;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Generation previous;
+
+        private volatile RuntimeException failure;
+
+        private Generation(Producer<?, ?> producer, Generation previous) {
+            this.producer = producer;
+            this.previous = previous;
+        }
+
+        void await() {
+            awaitQuietly();
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+
+        void awaitQuietly() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // the flush is shared, it completes for all the callers
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+}
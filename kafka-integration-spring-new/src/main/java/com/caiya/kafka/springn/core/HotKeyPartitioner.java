@@ -0,0 +1,336 @@
+package com.caiya.kafka.springn.core;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Spreads the records of the hot keys of a {@link KafkaTemplate} over several partitions, so that a
+ * skewed key does not overload a single partition and its consumer.
+ * <p>
+ * The frequency of the keys is estimated by a count-min sketch in fixed memory, halved every
+ * {@link #setDecayInterval(int) decay interval} so that it follows the current traffic; a key is hot
+ * when its estimated share of the records exceeds the {@link #setHotKeyRatio(double) ratio}. The
+ * records of a hot key, without a partition of their own, are sent round robin to the
+ * {@link #setSplits(int) sub-partitions} {@code (murmur2(key) % partitions + i) % partitions}, where
+ * {@code murmur2} is the hash of the serialized key computed by the default partitioner of the producer,
+ * so that the sub-partition 0 is the partition of the key, and carry the index {@code i} in the
+ * {@value #SUB_PARTITION_HEADER} header, which consumers
+ * recover with {@link #subPartitionOf(ConsumerRecord)}; the key itself is unchanged. The records of a
+ * hot key are thus no longer ordered, and the other keys are partitioned by the producer as before.
+ * <p>
+ * The number of partitions of the topic is looked up with {@link KafkaTemplate#partitionsFor(String)}
+ * for the hot records, which should be {@link KafkaTemplate#setPartitionsCacheTtl(long) cached}.
+ * The keys are serialized with the serializer of the producer, without headers, to be hashed.
+ * Register this partitioner with an MBean server to expose the detected hot keys.
+ *
+ * @since 1.2.0
+ */
+public class HotKeyPartitioner implements HotKeyPartitionerMXBean {
+
+    /**
+     * The header of the records sent to a sub-partition, holding the index of the sub-partition as
+     * a 4 bytes big-endian int.
+     */
+    public static final String SUB_PARTITION_HEADER = "kafka_subPartition";
+
+    private static final int DEPTH = 4;
+
+    private static final int DEFAULT_WIDTH = 2048;
+
+    private static final int DEFAULT_SPLITS = 4;
+
+    private static final double DEFAULT_HOT_KEY_RATIO = 0.01;
+
+    private static final int DEFAULT_DECAY_INTERVAL = 100000;
+
+    private static final int DEFAULT_MAX_TRACKED_HOT_KEYS = 100;
+
+    private final Serializer<Object> keySerializer;
+
+    private final int widthMask;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong sinceDecay = new AtomicLong();
+
+    private final AtomicBoolean decaying = new AtomicBoolean();
+
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    private final ConcurrentMap<Object, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    private final LongAdder splitRecords = new LongAdder();
+
+    private volatile int splits = DEFAULT_SPLITS;
+
+    private volatile double hotKeyRatio = DEFAULT_HOT_KEY_RATIO;
+
+    private volatile int decayInterval = DEFAULT_DECAY_INTERVAL;
+
+    private volatile int maxTrackedHotKeys = DEFAULT_MAX_TRACKED_HOT_KEYS;
+
+    /**
+     * Create an instance.
+     *
+     * @param keySerializer the key serializer of the producer.
+     */
+    public HotKeyPartitioner(Serializer<?> keySerializer) {
+        this(keySerializer, DEFAULT_WIDTH);
+    }
+
+    /**
+     * Create an instance with a sketch of the given width; the error of the estimated counts is
+     * about {@code 2 / width} of the records since the last decay.
+     *
+     * @param keySerializer the key serializer of the producer.
+     * @param width         the number of counters per row of the sketch, rounded up to a power of 2.
+     */
+    @SuppressWarnings("unchecked")
+    public HotKeyPartitioner(Serializer<?> keySerializer, int width) {
+        Assert.notNull(keySerializer, "'keySerializer' cannot be null");
+        Assert.isTrue(width > 0, "'width' must be positive");
+        this.keySerializer = (Serializer<Object>) keySerializer;
+        int powerOfTwo = Integer.highestOneBit(width);
+        if (powerOfTwo < width) {
+            powerOfTwo <<= 1;
+        }
+        this.widthMask = powerOfTwo - 1;
+        this.counts = new AtomicLongArray(DEPTH * powerOfTwo);
+    }
+
+    /**
+     * Set the number of partitions the records of a hot key are spread over; default
+     * {@value #DEFAULT_SPLITS}, at most the number of partitions of the topic.
+     *
+     * @param splits the number of sub-partitions.
+     */
+    public void setSplits(int splits) {
+        Assert.isTrue(splits > 0, "'splits' must be positive");
+        this.splits = splits;
+    }
+
+    /**
+     * Set the share of the recent records above which a key is hot; default
+     * {@value #DEFAULT_HOT_KEY_RATIO}.
+     *
+     * @param hotKeyRatio the ratio, between 0 and 1.
+     */
+    public void setHotKeyRatio(double hotKeyRatio) {
+        Assert.isTrue(hotKeyRatio > 0 && hotKeyRatio <= 1, "'hotKeyRatio' must be in (0, 1]");
+        this.hotKeyRatio = hotKeyRatio;
+    }
+
+    /**
+     * Set the number of records after which the counts are halved; no key is hot before the first
+     * half interval, so that a hot key has at least {@code hotKeyRatio * decayInterval / 2} recent
+     * records, well above the error of the sketch. Default {@value #DEFAULT_DECAY_INTERVAL}.
+     *
+     * @param decayInterval the number of records.
+     */
+    public void setDecayInterval(int decayInterval) {
+        Assert.isTrue(decayInterval > 1, "'decayInterval' must be greater than 1");
+        this.decayInterval = decayInterval;
+    }
+
+    /**
+     * Set the maximum number of hot keys reported by {@link #getHotKeys()}; default
+     * {@value #DEFAULT_MAX_TRACKED_HOT_KEYS}.
+     *
+     * @param maxTrackedHotKeys the number of keys.
+     */
+    public void setMaxTrackedHotKeys(int maxTrackedHotKeys) {
+        this.maxTrackedHotKeys = maxTrackedHotKeys;
+    }
+
+    /**
+     * Return the sub-partition index a record was sent to.
+     *
+     * @param record the record.
+     * @return the index, or null if its key was not hot.
+     */
+    public static Integer subPartitionOf(ConsumerRecord<?, ?> record) {
+        Header header = record.headers().lastHeader(SUB_PARTITION_HEADER);
+        if (header == null || header.value() == null || header.value().length != 4) {
+            return null;
+        }
+        return ByteBuffer.wrap(header.value()).getInt();
+    }
+
+    /**
+     * Count the key of the record and, if it is hot, assign the record to a sub-partition.
+     *
+     * @param record        the record.
+     * @param partitionsFor looks up the partitions of a topic.
+     * @return the record, or a copy with a partition and the {@value #SUB_PARTITION_HEADER} header.
+     */
+    <K, V> ProducerRecord<K, V> partition(ProducerRecord<K, V> record,
+                                          Function<String, List<PartitionInfo>> partitionsFor) {
+        if (record.key() == null || record.partition() != null) {
+            return record;
+        }
+        int hash = hashOf(record.topic(), record.key());
+        long estimate = increment(hash);
+        long total = this.total.incrementAndGet();
+        maybeDecay();
+        if (total < this.decayInterval / 2 || estimate < this.hotKeyRatio * total) {
+            return record;
+        }
+        List<PartitionInfo> partitions = partitionsFor.apply(record.topic());
+        int partitionCount = partitions == null ? 0 : partitions.size();
+        if (partitionCount < 2) {
+            return record;
+        }
+        int subPartition = (this.roundRobin.getAndIncrement() & Integer.MAX_VALUE)
+                % Math.min(this.splits, partitionCount);
+        int partition = (hash % partitionCount + subPartition) % partitionCount;
+        this.splitRecords.increment();
+        trackHotKey(record.key(), hash);
+        RecordHeaders headers = new RecordHeaders(record.headers().toArray());
+        headers.add(new RecordHeader(SUB_PARTITION_HEADER, ByteBuffer.allocate(4).putInt(subPartition).array()));
+        return new ProducerRecord<>(record.topic(), partition, record.timestamp(), record.key(), record.value(),
+                headers);
+    }
+
+    @Override
+    public int getHotKeyCount() {
+        return this.hotKeys.size();
+    }
+
+    @Override
+    public Map<String, Long> getHotKeys() {
+        Map<String, Long> hotKeys = new TreeMap<>();
+        for (Map.Entry<Object, HotKey> entry : this.hotKeys.entrySet()) {
+            Object key = entry.getKey();
+            String displayKey = key instanceof ByteBuffer
+                    ? ObjectUtils.nullSafeToString(((ByteBuffer) key).array()) : ObjectUtils.nullSafeToString(key);
+            hotKeys.put(displayKey, entry.getValue().count.sum());
+        }
+        return Collections.unmodifiableMap(hotKeys);
+    }
+
+    @Override
+    public long getSplitRecordCount() {
+        return this.splitRecords.sum();
+    }
+
+    /**
+     * Return the estimated number of recent records of a key.
+     *
+     * @param topic the topic the key is serialized for.
+     * @param key   the key.
+     * @return the estimate, an upper bound.
+     */
+    public long estimate(String topic, Object key) {
+        return estimate(hashOf(topic, key));
+    }
+
+    private long increment(int hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, this.counts.incrementAndGet(indexOf(row, hash)));
+        }
+        return min;
+    }
+
+    private long estimate(int hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, this.counts.get(indexOf(row, hash)));
+        }
+        return min;
+    }
+
+    private int indexOf(int row, int hash) {
+        return row * (this.widthMask + 1) + (mix(hash + row * 0x9E3779B9) & this.widthMask);
+    }
+
+    private void maybeDecay() {
+        if (this.sinceDecay.incrementAndGet() < this.decayInterval || !this.decaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // the increments racing with the decay may be halved or not, the counts are estimates anyway
+            this.sinceDecay.set(0);
+            for (int i = 0; i < this.counts.length(); i++) {
+                this.counts.getAndAccumulate(i, 0, (count, ignored) -> count >> 1);
+            }
+            long total = this.total.accumulateAndGet(0, (count, ignored) -> count >> 1);
+            for (Map.Entry<Object, HotKey> entry : this.hotKeys.entrySet()) {
+                if (estimate(entry.getValue().hash) < this.hotKeyRatio * total) {
+                    this.hotKeys.remove(entry.getKey());
+                }
+            }
+        } finally {
+            this.decaying.set(false);
+        }
+    }
+
+    private void trackHotKey(Object key, int hash) {
+        Object trackedKey = key instanceof byte[] ? ByteBuffer.wrap((byte[]) key) : key;
+        HotKey hotKey = this.hotKeys.get(trackedKey);
+        if (hotKey == null) {
+            if (this.hotKeys.size() >= this.maxTrackedHotKeys) {
+                return;
+            }
+            hotKey = this.hotKeys.computeIfAbsent(trackedKey, k -> new HotKey(hash));
+        }
+        hotKey.count.increment();
+    }
+
+    /**
+     * The hash of the serialized key, as computed by the default partitioner of the producer.
+     */
+    private int hashOf(String topic, Object key) {
+        byte[] keyBytes = this.keySerializer.serialize(topic, key);
+        return keyBytes == null ? 0 : Utils.toPositive(Utils.murmur2(keyBytes));
+    }
+
+    /**
+     * The finalization mix of MurmurHash3, spreading the hash codes over the counters.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static final class HotKey {
+
+        private final int hash;
+
+        private final LongAdder count = new LongAdder();
+
+        private HotKey(int hash) {
+            this.hash = hash;
+        }
+
+    }
+
+}
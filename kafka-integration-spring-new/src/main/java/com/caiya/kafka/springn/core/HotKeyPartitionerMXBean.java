@@ -0,0 +1,21 @@
+package com.caiya.kafka.springn.core;
+
+import java.util.Map;
+
+/**
+ * The hot keys detected by a {@link HotKeyPartitioner}, as exposed through JMX.
+ *
+ * @since 1.2.0
+ */
+public interface HotKeyPartitionerMXBean {
+
+    int getHotKeyCount();
+
+    /**
+     * @return the number of records spread over sub-partitions, by hot key.
+     */
+    Map<String, Long> getHotKeys();
+
+    long getSplitRecordCount();
+
+}
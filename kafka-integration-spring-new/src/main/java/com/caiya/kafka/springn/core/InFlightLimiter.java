@@ -0,0 +1,95 @@
+package com.caiya.kafka.springn.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the records sent and not completed yet, globally and per topic, so that the senders are
+ * held back, or rejected, before the producer buffer is exhausted.
+ *
+ * @since 1.2.0
+ */
+final class InFlightLimiter {
+
+    private final Semaphore global;
+
+    private final int maxInFlightPerTopic;
+
+    private final long maxWaitNanos;
+
+    private final ConcurrentMap<String, Semaphore> topics = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxInFlight         the global limit, 0 for none.
+     * @param maxInFlightPerTopic the limit of each topic, 0 for none.
+     * @param maxWaitMillis       the maximum time to wait for a permit.
+     */
+    InFlightLimiter(int maxInFlight, int maxInFlightPerTopic, long maxWaitMillis) {
+        this.global = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+        this.maxInFlightPerTopic = maxInFlightPerTopic;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Acquire a permit for a record of the topic.
+     *
+     * @param topic the topic.
+     * @param block true to wait for a permit up to the maximum wait, false to give up at once.
+     * @return false if no permit is available, or the wait timed out or is interrupted.
+     */
+    boolean acquire(String topic, boolean block) {
+        long deadline = block ? System.nanoTime() + this.maxWaitNanos : 0;
+        if (!acquire(this.global, block, deadline)) {
+            return false;
+        }
+        if (!acquire(topicSemaphore(topic), block, deadline)) {
+            release(this.global);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release the permit of a completed record of the topic.
+     *
+     * @param topic the topic.
+     */
+    void release(String topic) {
+        release(topicSemaphore(topic));
+        release(this.global);
+    }
+
+    private Semaphore topicSemaphore(String topic) {
+        if (this.maxInFlightPerTopic <= 0) {
+            return null;
+        }
+        return this.topics.computeIfAbsent(topic, t -> new Semaphore(this.maxInFlightPerTopic));
+    }
+
+    private static boolean acquire(Semaphore semaphore, boolean block, long deadline) {
+        if (semaphore == null) {
+            return true;
+        }
+        if (semaphore.tryAcquire()) {
+            return true;
+        }
+        if (!block) {
+            return false;
+        }
+        try {
+            return semaphore.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void release(Semaphore semaphore) {
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.caiya.kafka.springn.core;
 
+import com.caiya.kafka.springn.support.BatchSendResult;
 import com.caiya.kafka.springn.support.SendResult;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.Producer;
@@ -10,6 +11,7 @@ import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.springframework.util.concurrent.ListenableFuture;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -114,6 +116,50 @@ public interface KafkaOperations<K, V> {
      */
     ListenableFuture<SendResult<K, V>> send(ProducerRecord<K, V> record);
 
+    /**
+     * Send the provided {@link ProducerRecord} unless the in-flight limit is reached or the circuit
+     * breaker is open, in which case the future fails at once with a {@link SendRejectedException},
+     * instead of waiting for a permit as {@link #send(ProducerRecord)} does.
+     *
+     * @param record the record.
+     * @return a Future for the {@link SendResult}.
+     * @since 1.2.0
+     */
+    ListenableFuture<SendResult<K, V>> trySend(ProducerRecord<K, V> record);
+
+    /**
+     * Send the provided {@link ProducerRecord}s, with a single future completed once all of them are
+     * acknowledged or failed, and with one flush at most (when auto flush is enabled); cheaper than
+     * one {@link #send(ProducerRecord)} per record for bulk sends. The future completes normally even
+     * when some records failed, see {@link BatchSendResult#hasFailures()}.
+     *
+     * @param records the records.
+     * @return a Future for the {@link BatchSendResult}.
+     * @since 1.2.0
+     */
+    ListenableFuture<BatchSendResult<K, V>> sendBatch(Collection<ProducerRecord<K, V>> records);
+
+    /**
+     * Send the data to the provided topic with the provided key and no partition, without a future.
+     *
+     * @param topic the topic.
+     * @param key   the key.
+     * @param data  The data.
+     * @see #sendAndForget(ProducerRecord)
+     * @since 1.2.0
+     */
+    void sendAndForget(String topic, K key, V data);
+
+    /**
+     * Send the provided {@link ProducerRecord} without a future, for high volume data whose send result
+     * is not looked at: failures are reported to the {@code ProducerListener} only, successes are not
+     * reported at all.
+     *
+     * @param record the record.
+     * @since 1.2.0
+     */
+    void sendAndForget(ProducerRecord<K, V> record);
+
     /**
      * See {@link Producer#partitionsFor(String)}.
      *
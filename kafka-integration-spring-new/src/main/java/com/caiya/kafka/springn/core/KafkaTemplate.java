@@ -1,7 +1,10 @@
 package com.caiya.kafka.springn.core;
 
+import com.caiya.kafka.springn.KafkaException;
+import com.caiya.kafka.springn.support.BatchSendResult;
 import com.caiya.kafka.springn.support.LoggingProducerListener;
 import com.caiya.kafka.springn.support.ProducerListener;
+import com.caiya.kafka.springn.support.ProducerMetrics;
 import com.caiya.kafka.springn.support.SendResult;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.Callback;
@@ -12,14 +15,19 @@ import org.apache.kafka.common.Metric;
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InvalidMetadataException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.SettableListenableFuture;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A template for executing high-level operations.
@@ -29,6 +37,10 @@ import java.util.Map;
  **/
 public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
 
+    private static final long DEFAULT_GROUP_COMMIT_WINDOW = 5;
+
+    private static final long DEFAULT_MAX_IN_FLIGHT_WAIT = 60000;
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final ProducerFactory<K, V> producerFactory;
@@ -43,6 +55,36 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
 
     private volatile ProducerListener<K, V> producerListener = new LoggingProducerListener<K, V>();
 
+    private final Object transactionGroupMonitor = new Object();
+
+    private TransactionGroup currentTransactionGroup;
+
+    private boolean transactionGroupCreating;
+
+    private volatile int groupCommitSize = 1;
+
+    private volatile long groupCommitWindow = DEFAULT_GROUP_COMMIT_WINDOW;
+
+    private volatile GroupFlusher groupFlusher;
+
+    private int maxInFlight;
+
+    private int maxInFlightPerTopic;
+
+    private long maxInFlightWait = DEFAULT_MAX_IN_FLIGHT_WAIT;
+
+    private volatile InFlightLimiter inFlightLimiter;
+
+    private volatile CircuitBreaker circuitBreaker;
+
+    private volatile CallbackDispatcher callbackDispatcher;
+
+    private volatile ProducerMetrics producerMetrics;
+
+    private volatile PartitionsCache partitionsCache;
+
+    private volatile HotKeyPartitioner hotKeyPartitioner;
+
 
     /**
      * Create an instance using the supplied producer factory and autoFlush false.
@@ -102,6 +144,199 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
         this.producerListener = producerListener;
     }
 
+    /**
+     * Set the maximum number of concurrent {@link #executeInTransaction(OperationsCallback)} calls
+     * sharing one transaction, on one producer; 1, the default, disables the group commit.
+     * <p>
+     * A group is open to new callers for the {@link #setGroupCommitWindow(long) window} after its
+     * first caller, or until it is full; each caller runs its callback in its own thread and then
+     * waits for the group to be committed, once all the callbacks have returned. If a callback
+     * throws an exception, the transaction of the whole group is aborted and the other callers
+     * fail with a {@link KafkaException}, so that the callers of a group must tolerate the failure
+     * of each other.
+     *
+     * @param groupCommitSize the maximum number of callers in a transaction.
+     * @since 1.2.0
+     */
+    public void setGroupCommitSize(int groupCommitSize) {
+        Assert.isTrue(groupCommitSize > 0, "'groupCommitSize' must be greater than 0");
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    /**
+     * Set the time a group transaction is open to new callers, which bounds the latency added to
+     * each caller; default {@value #DEFAULT_GROUP_COMMIT_WINDOW}.
+     *
+     * @param groupCommitWindow the window in milliseconds.
+     * @see #setGroupCommitSize(int)
+     * @since 1.2.0
+     */
+    public void setGroupCommitWindow(long groupCommitWindow) {
+        this.groupCommitWindow = groupCommitWindow;
+    }
+
+    /**
+     * With autoFlush, let the senders flushing within this window share one flush of the producer,
+     * instead of one flush per send; each sender still returns once its records are completed, after
+     * up to the window plus the flush in progress. 0, the default, flushes after each send. Only
+     * makes sense with a {@link ProducerFactory} serving up a singleton producer, and ignored in
+     * transactions.
+     *
+     * @param groupFlushWindow the window in milliseconds.
+     * @since 1.2.0
+     */
+    public void setGroupFlushWindow(long groupFlushWindow) {
+        this.groupFlusher = groupFlushWindow > 0 ? new GroupFlusher(groupFlushWindow) : null;
+    }
+
+    /**
+     * Set the maximum number of records sent and not completed yet, across all topics; the sends wait
+     * for a permit up to {@link #setMaxInFlightWait(long) a maximum}, except {@link #trySend(ProducerRecord)}
+     * which is rejected at once. Bounds the
+     * producer buffer in use, so that the senders are not blocked in the producer for up to
+     * {@code max.block.ms} when it is exhausted. 0, the default, for no limit.
+     *
+     * @param maxInFlight the maximum number of records in flight.
+     * @since 1.2.0
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        this.inFlightLimiter = createInFlightLimiter();
+    }
+
+    /**
+     * Set the maximum number of records sent and not completed yet per topic, see
+     * {@link #setMaxInFlight(int)}; 0, the default, for no limit.
+     *
+     * @param maxInFlightPerTopic the maximum number of records in flight per topic.
+     * @since 1.2.0
+     */
+    public synchronized void setMaxInFlightPerTopic(int maxInFlightPerTopic) {
+        this.maxInFlightPerTopic = maxInFlightPerTopic;
+        this.inFlightLimiter = createInFlightLimiter();
+    }
+
+    /**
+     * Set the maximum time a send waits for an in-flight permit, see {@link #setMaxInFlight(int)}, before
+     * it is rejected with a {@link SendRejectedException}; default {@value #DEFAULT_MAX_IN_FLIGHT_WAIT}ms,
+     * as the producer's {@code max.block.ms}.
+     *
+     * @param maxInFlightWait the maximum wait in milliseconds.
+     * @since 1.2.0
+     */
+    public synchronized void setMaxInFlightWait(long maxInFlightWait) {
+        Assert.isTrue(maxInFlightWait >= 0, "'maxInFlightWait' cannot be negative");
+        this.maxInFlightWait = maxInFlightWait;
+        this.inFlightLimiter = createInFlightLimiter();
+    }
+
+    private InFlightLimiter createInFlightLimiter() {
+        return this.maxInFlight > 0 || this.maxInFlightPerTopic > 0
+                ? new InFlightLimiter(this.maxInFlight, this.maxInFlightPerTopic, this.maxInFlightWait) : null;
+    }
+
+    /**
+     * Reject all the sends with a {@link SendRejectedException} for a while once this many consecutive
+     * sends timed out, in the producer or at the broker, then let a single trial send through to
+     * close the circuit again; so that a broker outage reaches the callers as fast rejections.
+     *
+     * @param consecutiveTimeouts the number of consecutive timeouts opening the circuit, 0 to disable.
+     * @param openTimeMillis      the time the circuit stays open before a trial send.
+     * @since 1.2.0
+     */
+    public void setCircuitBreaker(int consecutiveTimeouts, long openTimeMillis) {
+        this.circuitBreaker = consecutiveTimeouts > 0 ? new CircuitBreaker(consecutiveTimeouts, openTimeMillis) : null;
+    }
+
+    /**
+     * Return true if the circuit breaker is open, or half open.
+     *
+     * @return true or false.
+     * @since 1.2.0
+     */
+    public boolean isCircuitOpen() {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        return circuitBreaker != null && circuitBreaker.isOpen();
+    }
+
+    /**
+     * Set the executor completing the send futures and invoking the {@link ProducerListener}, instead
+     * of the producer network thread, so that slow listeners or future callbacks do not hold back the
+     * sends; the completions are run in order, in batches, by one task at a time. The futures may
+     * therefore complete after a flush returns.
+     *
+     * @param callbackExecutor the executor, or null to complete on the producer network thread.
+     * @see #getCallbackQueueDepth()
+     * @since 1.2.0
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackDispatcher = callbackExecutor != null ? new CallbackDispatcher(callbackExecutor) : null;
+    }
+
+    /**
+     * Return the number of send completions waiting for the {@link #setCallbackExecutor(Executor)
+     * callback executor}.
+     *
+     * @return the queue depth.
+     * @since 1.2.0
+     */
+    public int getCallbackQueueDepth() {
+        CallbackDispatcher callbackDispatcher = this.callbackDispatcher;
+        return callbackDispatcher == null ? 0 : callbackDispatcher.getQueueDepth();
+    }
+
+    /**
+     * Set the metrics recording the latency of each send, from the send call to the acknowledgement
+     * including the time blocked in the send and on the in-flight limit, and its outcome; the records
+     * rejected by the template are recorded as errors.
+     *
+     * @param producerMetrics the metrics, for instance a {@link com.caiya.kafka.springn.support.DefaultProducerMetrics};
+     *                        may be {@code null}.
+     * @since 1.2.0
+     */
+    public void setProducerMetrics(ProducerMetrics producerMetrics) {
+        this.producerMetrics = producerMetrics;
+    }
+
+    /**
+     * Cache the result of {@link #partitionsFor(String)} per topic for the given time, so that the
+     * lookups do not use a producer; the partitions of a topic are loaded again when a send to it
+     * fails with an {@link InvalidMetadataException}, or on {@link #invalidatePartitionsFor(String)}.
+     * An expired entry is refreshed by one caller while the others still get it.
+     *
+     * @param partitionsCacheTtl the time to live in milliseconds; 0, the default, disables the cache.
+     * @since 1.2.0
+     */
+    public void setPartitionsCacheTtl(long partitionsCacheTtl) {
+        Assert.isTrue(partitionsCacheTtl >= 0, "'partitionsCacheTtl' cannot be negative");
+        this.partitionsCache = partitionsCacheTtl > 0 ? new PartitionsCache(partitionsCacheTtl) : null;
+    }
+
+    /**
+     * Set a partitioner spreading the records of the hot keys over several partitions; the records
+     * with a partition are not counted.
+     *
+     * @param hotKeyPartitioner the partitioner; may be {@code null}.
+     * @since 1.2.0
+     */
+    public void setHotKeyPartitioner(HotKeyPartitioner hotKeyPartitioner) {
+        this.hotKeyPartitioner = hotKeyPartitioner;
+    }
+
+    /**
+     * Forget the cached partitions of a topic, for instance after partitions were added to it.
+     *
+     * @param topic the topic.
+     * @see #setPartitionsCacheTtl(long)
+     * @since 1.2.0
+     */
+    public void invalidatePartitionsFor(String topic) {
+        PartitionsCache partitionsCache = this.partitionsCache;
+        if (partitionsCache != null) {
+            partitionsCache.invalidate(topic);
+        }
+    }
+
     /**
      * Return true if this template supports transactions (has a transaction-capable
      * producer factory).
@@ -162,9 +397,117 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
         return doSend(record);
     }
 
+    @Override
+    public ListenableFuture<SendResult<K, V>> trySend(ProducerRecord<K, V> record) {
+        return doSend(record, false);
+    }
+
+
+    @Override
+    public ListenableFuture<BatchSendResult<K, V>> sendBatch(Collection<ProducerRecord<K, V>> records) {
+        Assert.notNull(records, "'records' cannot be null");
+        checkTransaction();
+        List<ProducerRecord<K, V>> producerRecords = new ArrayList<>(records.size());
+        for (ProducerRecord<K, V> record : records) {
+            producerRecords.add(partitioned(record));
+        }
+        SettableListenableFuture<BatchSendResult<K, V>> future = new SettableListenableFuture<>();
+        if (producerRecords.isEmpty()) {
+            future.set(new BatchSendResult<>(producerRecords, new RecordMetadata[0], new Exception[0]));
+            return future;
+        }
+        Producer<K, V> producer = getTheProducer();
+        BatchCallback callback = new BatchCallback(producer, producerRecords, future);
+        InFlightLimiter inFlightLimiter = this.inFlightLimiter;
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        ProducerMetrics producerMetrics = this.producerMetrics;
+        for (int i = 0; i < producerRecords.size(); i++) {
+            ProducerRecord<K, V> producerRecord = producerRecords.get(i);
+            long start = producerMetrics == null ? 0 : System.nanoTime();
+            SendRejectedException rejected = admit(producerRecord, inFlightLimiter, circuitBreaker, producerMetrics,
+                    start, true);
+            if (rejected != null) {
+                callback.failed(i, rejected);
+                continue;
+            }
+            Callback recordCallback = completing(producerRecord, inFlightLimiter, circuitBreaker, producerMetrics,
+                    start, offloaded(callback.forRecord(i)));
+            try {
+                producer.send(producerRecord, recordCallback);
+            } catch (RuntimeException e) {
+                // the callback is not invoked when the send throws
+                completed(producerRecord, inFlightLimiter, circuitBreaker, producerMetrics, start, e);
+                callback.failed(i, e);
+            }
+        }
+        if (this.autoFlush) {
+            autoFlush();
+        }
+        callback.allSent();
+        return future;
+    }
+
+    @Override
+    public void sendAndForget(String topic, K key, V data) {
+        sendAndForget(new ProducerRecord<>(topic, key, data));
+    }
+
+    @Override
+    public void sendAndForget(ProducerRecord<K, V> producerRecord) {
+        checkTransaction();
+        ProducerRecord<K, V> record = partitioned(producerRecord);
+        InFlightLimiter inFlightLimiter = this.inFlightLimiter;
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        ProducerMetrics producerMetrics = this.producerMetrics;
+        long start = producerMetrics == null ? 0 : System.nanoTime();
+        SendRejectedException rejected = admit(record, inFlightLimiter, circuitBreaker, producerMetrics, start, true);
+        if (rejected != null) {
+            ProducerListener<K, V> producerListener = this.producerListener;
+            if (producerListener != null) {
+                producerListener.onError(record, rejected);
+            }
+            return;
+        }
+        Producer<K, V> producer;
+        try {
+            producer = getTheProducer();
+        } catch (RuntimeException e) {
+            completed(record, inFlightLimiter, circuitBreaker, producerMetrics, start, e);
+            throw e;
+        }
+        try {
+            ProducerListener<K, V> producerListener = this.producerListener;
+            // the callback is not given the record, it has to be captured to report an error
+            Callback callback = producerListener == null ? null : (metadata, exception) -> {
+                if (exception != null) {
+                    producerListener.onError(record, exception);
+                }
+            };
+            callback = completing(record, inFlightLimiter, circuitBreaker, producerMetrics, start, offloaded(callback));
+            try {
+                producer.send(record, callback);
+            } catch (RuntimeException e) {
+                completed(record, inFlightLimiter, circuitBreaker, producerMetrics, start, e);
+                throw e;
+            }
+            if (this.autoFlush) {
+                autoFlush(producer);
+            }
+        } finally {
+            closeProducer(producer, inTransaction());
+        }
+    }
 
     @Override
     public List<PartitionInfo> partitionsFor(String topic) {
+        PartitionsCache partitionsCache = this.partitionsCache;
+        if (partitionsCache != null) {
+            return partitionsCache.get(topic, this::doPartitionsFor);
+        }
+        return doPartitionsFor(topic);
+    }
+
+    private List<PartitionInfo> doPartitionsFor(String topic) {
         Producer<K, V> producer = getTheProducer();
         try {
             return producer.partitionsFor(topic);
@@ -198,6 +541,9 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
         Assert.state(this.transactional, "Producer factory does not support transactions");
         Producer<K, V> producer = this.producers.get();
         Assert.state(producer == null, "Nested calls to 'executeInTransaction' are not allowed");
+        if (this.groupCommitSize > 1) {
+            return executeInTransactionGroup(callback);
+        }
         producer = this.producerFactory.createProducer();
 
         try {
@@ -208,7 +554,7 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
         }
 
         this.producers.set(producer);
-        T result = null;
+        T result;
         try {
             result = callback.doInOperations(this);
         } catch (Exception e) {
@@ -217,20 +563,72 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
             } finally {
                 this.producers.remove();
                 closeProducer(producer, false);
-                producer = null;
             }
+            throw e;
         }
-        if (producer != null) {
-            try {
-                producer.commitTransaction();
-            } finally {
-                closeProducer(producer, false);
-                this.producers.remove();
-            }
+        try {
+            producer.commitTransaction();
+        } finally {
+            closeProducer(producer, false);
+            this.producers.remove();
         }
         return result;
     }
 
+    private <T> T executeInTransactionGroup(OperationsCallback<K, V, T> callback) {
+        TransactionGroup group = joinTransactionGroup();
+        this.producers.set(group.producer);
+        Throwable failure = null;
+        try {
+            return callback.doInOperations(this);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            this.producers.remove();
+            group.leave(failure);
+        }
+    }
+
+    private TransactionGroup joinTransactionGroup() {
+        synchronized (this.transactionGroupMonitor) {
+            while (true) {
+                TransactionGroup group = this.currentTransactionGroup;
+                if (group != null && group.join()) {
+                    return group;
+                }
+                if (!this.transactionGroupCreating) {
+                    break;
+                }
+                // another caller is creating the next group, join it
+                try {
+                    this.transactionGroupMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new KafkaException("Interrupted while waiting for a transaction group", e);
+                }
+            }
+            this.transactionGroupCreating = true;
+        }
+        // created outside the monitor, the callers joining the current group are not held up by a producer
+        // waited for or a transaction begun
+        TransactionGroup group = null;
+        try {
+            group = new TransactionGroup(this.producerFactory.createProducer(), this.groupCommitSize,
+                    this.groupCommitWindow);
+            group.join();
+            return group;
+        } finally {
+            synchronized (this.transactionGroupMonitor) {
+                this.transactionGroupCreating = false;
+                if (group != null) {
+                    this.currentTransactionGroup = group;
+                }
+                this.transactionGroupMonitor.notifyAll();
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      * <p><b>Note</b> It only makes sense to invoke this method if the
@@ -250,13 +648,127 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
 
     @Override
     public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets) {
-        // TODO
+        String consumerGroupId = ProducerFactoryUtils.getConsumerGroupId();
+        Assert.state(consumerGroupId != null, "No consumer group id is bound to this thread, "
+                + "use sendOffsetsToTransaction(offsets, consumerGroupId)");
+        sendOffsetsToTransaction(offsets, consumerGroupId);
     }
 
     @Override
     public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets, String consumerGroupId) {
-        // TODO
+        Producer<K, V> producer = this.producers.get();
+        Assert.state(this.transactional && producer != null, "No transaction is in process; "
+                + "offsets can only be sent in a template.executeInTransaction() operation");
+        producer.sendOffsetsToTransaction(offsets, consumerGroupId);
+    }
+
+    /**
+     * Assign the record of a hot key to a sub-partition, if a hot key partitioner is set.
+     */
+    private ProducerRecord<K, V> partitioned(ProducerRecord<K, V> producerRecord) {
+        HotKeyPartitioner hotKeyPartitioner = this.hotKeyPartitioner;
+        if (hotKeyPartitioner == null) {
+            return producerRecord;
+        }
+        return hotKeyPartitioner.partition(producerRecord, this::partitionsFor);
+    }
+
+    /**
+     * Acquire an in-flight permit for the record and check the circuit breaker; a rejection is
+     * recorded by the metrics.
+     *
+     * @return the rejection, or null if the record may be sent; it must then be
+     * {@link #completed(ProducerRecord, InFlightLimiter, CircuitBreaker, ProducerMetrics, long, Exception) completed}.
+     */
+    private SendRejectedException admit(ProducerRecord<K, V> producerRecord, InFlightLimiter inFlightLimiter,
+                                        CircuitBreaker circuitBreaker, ProducerMetrics producerMetrics,
+                                        long start, boolean block) {
+        SendRejectedException rejected = null;
+        if (inFlightLimiter != null && !inFlightLimiter.acquire(producerRecord.topic(), block)) {
+            rejected = new SendRejectedException(producerRecord, "Too many records in flight");
+        } else if (circuitBreaker != null && !circuitBreaker.allow()) {
+            if (inFlightLimiter != null) {
+                inFlightLimiter.release(producerRecord.topic());
+            }
+            rejected = new SendRejectedException(producerRecord, "Circuit breaker open after send timeouts");
+        }
+        if (rejected != null && producerMetrics != null) {
+            producerMetrics.recordError(producerRecord.topic(), System.nanoTime() - start, rejected);
+        }
+        return rejected;
+    }
+
+    private void completed(ProducerRecord<K, V> producerRecord, InFlightLimiter inFlightLimiter,
+                           CircuitBreaker circuitBreaker, ProducerMetrics producerMetrics, long start,
+                           Exception exception) {
+        if (inFlightLimiter != null) {
+            inFlightLimiter.release(producerRecord.topic());
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.completed(exception);
+        }
+        if (exception instanceof InvalidMetadataException) {
+            invalidatePartitionsFor(producerRecord.topic());
+        }
+        if (producerMetrics != null) {
+            try {
+                if (exception == null) {
+                    producerMetrics.recordSuccess(producerRecord.topic(), System.nanoTime() - start);
+                } else {
+                    producerMetrics.recordError(producerRecord.topic(), System.nanoTime() - start, exception);
+                }
+            } catch (RuntimeException e) {
+                this.logger.error("Failed to record the send metrics", e);
+            }
+        }
+    }
+
+    /**
+     * Wrap the callback to run on the callback executor, if any.
+     */
+    private Callback offloaded(Callback callback) {
+        CallbackDispatcher callbackDispatcher = this.callbackDispatcher;
+        if (callbackDispatcher == null || callback == null) {
+            return callback;
+        }
+        return (metadata, exception) -> callbackDispatcher.dispatch(() -> callback.onCompletion(metadata, exception));
+    }
+
+    /**
+     * Wrap the callback to complete the record, when the in-flight limit, the circuit breaker, the
+     * metrics or the partitions cache are on.
+     */
+    private Callback completing(ProducerRecord<K, V> producerRecord, InFlightLimiter inFlightLimiter,
+                                CircuitBreaker circuitBreaker, ProducerMetrics producerMetrics, long start,
+                                Callback callback) {
+        if (inFlightLimiter == null && circuitBreaker == null && producerMetrics == null
+                && this.partitionsCache == null) {
+            return callback;
+        }
+        return (metadata, exception) -> {
+            completed(producerRecord, inFlightLimiter, circuitBreaker, producerMetrics, start, exception);
+            if (callback != null) {
+                callback.onCompletion(metadata, exception);
+            }
+        };
+    }
+
+    private void autoFlush() {
+        Producer<K, V> producer = getTheProducer();
+        try {
+            autoFlush(producer);
+        } finally {
+            closeProducer(producer, inTransaction());
+        }
+    }
 
+    private void autoFlush(Producer<K, V> producer) {
+        GroupFlusher groupFlusher = this.groupFlusher;
+        if (groupFlusher == null || inTransaction()) {
+            producer.flush();
+        } else {
+            groupFlusher.flush(producer);
+        }
     }
 
     protected void closeProducer(Producer<K, V> producer, boolean inLocalTx) {
@@ -272,23 +784,50 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
      * @return a Future for the {@link RecordMetadata}.
      */
     protected ListenableFuture<SendResult<K, V>> doSend(final ProducerRecord<K, V> producerRecord) {
-        if (this.transactional) {
-            Assert.state(inTransaction(),
-                    "No transaction is in process; "
-                            + "possible solutions: run the template operation within the scope of a "
-                            + "template.executeInTransaction() operation, start a transaction with @Transactional "
-                            + "before invoking the template method, "
-                            + "run in a transaction started by a listener container when consuming a record");
+        return doSend(producerRecord, true);
+    }
+
+    private ListenableFuture<SendResult<K, V>> doSend(ProducerRecord<K, V> record, boolean block) {
+        checkTransaction();
+        final ProducerRecord<K, V> producerRecord = partitioned(record);
+        final InFlightLimiter inFlightLimiter = this.inFlightLimiter;
+        final CircuitBreaker circuitBreaker = this.circuitBreaker;
+        final ProducerMetrics producerMetrics = this.producerMetrics;
+        final long start = producerMetrics == null ? 0 : System.nanoTime();
+        final SettableListenableFuture<SendResult<K, V>> future = new SettableListenableFuture<>();
+        SendRejectedException rejected = admit(producerRecord, inFlightLimiter, circuitBreaker, producerMetrics,
+                start, block);
+        if (rejected != null) {
+            future.setException(rejected);
+            if (this.producerListener != null) {
+                this.producerListener.onError(producerRecord, rejected);
+            }
+            return future;
+        }
+        final Producer<K, V> producer;
+        try {
+            producer = getTheProducer();
+        } catch (RuntimeException e) {
+            completed(producerRecord, inFlightLimiter, circuitBreaker, producerMetrics, start, e);
+            throw e;
         }
-        final Producer<K, V> producer = getTheProducer();
         if (this.logger.isTraceEnabled()) {
             this.logger.trace("Sending: " + producerRecord);
         }
-        final SettableListenableFuture<SendResult<K, V>> future = new SettableListenableFuture<>();
-        producer.send(producerRecord, new Callback() {
+        Callback callback = new Callback() {
 
             @Override
             public void onCompletion(RecordMetadata metadata, Exception exception) {
+                completed(producerRecord, inFlightLimiter, circuitBreaker, producerMetrics, start, exception);
+                CallbackDispatcher callbackDispatcher = com.caiya.kafka.springn.core.KafkaTemplate.this.callbackDispatcher;
+                if (callbackDispatcher != null) {
+                    callbackDispatcher.dispatch(() -> complete(metadata, exception));
+                } else {
+                    complete(metadata, exception);
+                }
+            }
+
+            private void complete(RecordMetadata metadata, Exception exception) {
                 try {
                     if (exception == null) {
                         future.set(new SendResult<>(producerRecord, metadata));
@@ -314,9 +853,16 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
                 }
             }
 
-        });
+        };
+        try {
+            producer.send(producerRecord, callback);
+        } catch (RuntimeException e) {
+            // the callback is not invoked when the send throws
+            completed(producerRecord, inFlightLimiter, circuitBreaker, producerMetrics, start, e);
+            throw e;
+        }
         if (this.autoFlush) {
-            flush();
+            autoFlush();
         }
         if (this.logger.isTraceEnabled()) {
             this.logger.trace("Sent: " + producerRecord);
@@ -325,6 +871,17 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
     }
 
 
+    private void checkTransaction() {
+        if (this.transactional) {
+            Assert.state(inTransaction(),
+                    "No transaction is in process; "
+                            + "possible solutions: run the template operation within the scope of a "
+                            + "template.executeInTransaction() operation, start a transaction with @Transactional "
+                            + "before invoking the template method, "
+                            + "run in a transaction started by a listener container when consuming a record");
+        }
+    }
+
     protected boolean inTransaction() {
         // TODO
         return this.transactional && this.producers.get() != null;
@@ -341,4 +898,202 @@ public class KafkaTemplate<K, V> implements KafkaOperations<K, V> {
         return this.producerFactory.createProducer();
     }
 
+    /**
+     * The completion state shared by the callbacks of the records of a batch: the completions are
+     * counted down and the last one completes the future.
+     */
+    private final class BatchCallback {
+
+        private final Producer<K, V> producer;
+
+        private final List<ProducerRecord<K, V>> producerRecords;
+
+        private final SettableListenableFuture<BatchSendResult<K, V>> future;
+
+        private final RecordMetadata[] recordMetadata;
+
+        private final Exception[] exceptions;
+
+        /**
+         * The records not completed yet, plus one until all are sent.
+         */
+        private final AtomicInteger remaining;
+
+        private BatchCallback(Producer<K, V> producer, List<ProducerRecord<K, V>> producerRecords,
+                              SettableListenableFuture<BatchSendResult<K, V>> future) {
+            this.producer = producer;
+            this.producerRecords = producerRecords;
+            this.future = future;
+            this.recordMetadata = new RecordMetadata[producerRecords.size()];
+            this.exceptions = new Exception[producerRecords.size()];
+            this.remaining = new AtomicInteger(producerRecords.size() + 1);
+        }
+
+        Callback forRecord(int index) {
+            return (metadata, exception) -> {
+                // visible to the last completion through the counter
+                this.recordMetadata[index] = metadata;
+                this.exceptions[index] = exception;
+                countDown();
+            };
+        }
+
+        void failed(int index, Exception exception) {
+            this.exceptions[index] = exception;
+            countDown();
+        }
+
+        void allSent() {
+            countDown();
+        }
+
+        private void countDown() {
+            if (this.remaining.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            try {
+                ProducerListener<K, V> producerListener = KafkaTemplate.this.producerListener;
+                if (producerListener != null) {
+                    for (int i = 0; i < this.recordMetadata.length; i++) {
+                        if (this.exceptions[i] == null) {
+                            producerListener.onSuccess(this.producerRecords.get(i), this.recordMetadata[i]);
+                        } else {
+                            producerListener.onError(this.producerRecords.get(i), this.exceptions[i]);
+                        }
+                    }
+                }
+                BatchSendResult<K, V> result = new BatchSendResult<>(this.producerRecords, this.recordMetadata,
+                        this.exceptions);
+                if (result.hasFailures() && KafkaTemplate.this.logger.isDebugEnabled()) {
+                    KafkaTemplate.this.logger.debug("Failed to send " + result.getFailedCount() + " of "
+                            + result.size() + " records");
+                }
+                this.future.set(result);
+            } catch (RuntimeException e) {
+                this.future.setException(e);
+            } finally {
+                if (!KafkaTemplate.this.transactional) {
+                    closeProducer(this.producer, false);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A transaction shared by the concurrent callers of
+     * {@link #executeInTransaction(OperationsCallback)}; the last caller to leave the closed group
+     * commits, or aborts, the transaction for all of them.
+     */
+    private final class TransactionGroup {
+
+        private final Producer<K, V> producer;
+
+        private final int maxSize;
+
+        private final long deadline;
+
+        private int members;
+
+        private int left;
+
+        private boolean open = true;
+
+        private boolean completed;
+
+        private Throwable failure;
+
+        private RuntimeException completionFailure;
+
+        private TransactionGroup(Producer<K, V> producer, int maxSize, long window) {
+            try {
+                producer.beginTransaction();
+            } catch (RuntimeException e) {
+                closeProducer(producer, false);
+                throw e;
+            }
+            this.producer = producer;
+            this.maxSize = maxSize;
+            this.deadline = System.currentTimeMillis() + window;
+        }
+
+        synchronized boolean join() {
+            if (!this.open || System.currentTimeMillis() >= this.deadline) {
+                return false;
+            }
+            if (++this.members == this.maxSize) {
+                this.open = false;
+                notifyAll();
+            }
+            return true;
+        }
+
+        /**
+         * Leave the group once the callback of the caller has returned, and wait for the outcome of the
+         * transaction. The failure of the caller itself is left to the caller to rethrow.
+         *
+         * @param failure the exception or error thrown by the callback, if any.
+         */
+        synchronized void leave(Throwable failure) {
+            this.left++;
+            if (failure != null && this.failure == null) {
+                this.failure = failure;
+            }
+            boolean interrupted = false;
+            long remaining;
+            while (this.open && (remaining = this.deadline - System.currentTimeMillis()) > 0) {
+                interrupted |= await(remaining);
+            }
+            this.open = false;
+            if (!this.completed && this.left == this.members) {
+                complete();
+                notifyAll();
+            }
+            while (!this.completed) {
+                interrupted |= await(0);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                return;
+            }
+            if (this.failure != null) {
+                throw new KafkaException("Transaction aborted by another caller of the group", this.failure);
+            }
+            if (this.completionFailure != null) {
+                throw this.completionFailure;
+            }
+        }
+
+        private boolean await(long timeout) {
+            try {
+                wait(timeout);
+                return false;
+            } catch (InterruptedException e) {
+                // the transaction is shared; it cannot be left before its outcome
+                return true;
+            }
+        }
+
+        private void complete() {
+            try {
+                if (this.failure != null) {
+                    this.producer.abortTransaction();
+                } else {
+                    this.producer.commitTransaction();
+                }
+            } catch (RuntimeException e) {
+                this.completionFailure = e;
+            } finally {
+                this.completed = true;
+                closeProducer(this.producer, false);
+            }
+        }
+
+    }
+
 }
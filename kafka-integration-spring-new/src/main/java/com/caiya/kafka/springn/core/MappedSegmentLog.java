@@ -0,0 +1,277 @@
+package com.caiya.kafka.springn.core;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A local append-only log of byte entries, in fixed-size memory-mapped segment files, read in order
+ * by a single reader whose position is checkpointed in a mapped file too; the segments read are
+ * deleted. Each entry is written as its length, its CRC32 and its bytes, the length last, so that
+ * a torn write on a crash is dropped on recovery.
+ * <p>
+ * The {@link Buffer} methods are invoked on {@code Buffer} references, whose {@code ByteBuffer}
+ * overrides do not exist on Java 8.
+ *
+ * @since 1.2.0
+ */
+final class MappedSegmentLog implements Closeable {
+
+    private static final Log logger = LogFactory.getLog(MappedSegmentLog.class);
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final int ENTRY_HEADER_SIZE = 8;
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+
+    private final MappedByteBuffer checkpoint;
+
+    private long writeSegment;
+
+    private int writePosition;
+
+    private long readSegment;
+
+    private int readPosition;
+
+    private long pending;
+
+    MappedSegmentLog(File directory, int segmentSize) throws IOException {
+        Assert.isTrue(segmentSize > ENTRY_HEADER_SIZE, "'segmentSize' is too small");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create the spill directory:" + directory);
+        }
+        this.checkpoint = map(new File(directory, CHECKPOINT_FILE), 12);
+        this.readSegment = this.checkpoint.getLong(0);
+        this.readPosition = this.checkpoint.getInt(8);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        TreeMap<Long, File> segmentFiles = new TreeMap<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                segmentFiles.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        for (Map.Entry<Long, File> entry : segmentFiles.entrySet()) {
+            if (entry.getKey() < this.readSegment) {
+                delete(entry.getValue());
+            } else {
+                this.segments.put(entry.getKey(), map(entry.getValue(), this.segmentSize));
+            }
+        }
+        if (this.segments.isEmpty()) {
+            this.writeSegment = this.readSegment;
+            this.readPosition = 0;
+            this.segments.put(this.writeSegment, map(segmentFile(this.writeSegment), this.segmentSize));
+            this.writePosition = 0;
+            return;
+        }
+        if (this.segments.firstKey() > this.readSegment) {
+            this.readSegment = this.segments.firstKey();
+            this.readPosition = 0;
+        }
+        // count the entries left and find the end of the last segment
+        for (Map.Entry<Long, MappedByteBuffer> entry : this.segments.entrySet()) {
+            int position = entry.getKey() == this.readSegment ? this.readPosition : 0;
+            int length;
+            while ((length = entryLength(entry.getValue(), position)) > 0) {
+                position += ENTRY_HEADER_SIZE + length;
+                this.pending++;
+            }
+            this.writeSegment = entry.getKey();
+            this.writePosition = position;
+        }
+        // erase a torn entry
+        ByteBuffer last = ((ByteBuffer) this.segments.lastEntry().getValue()).duplicate();
+        ((Buffer) last).position(this.writePosition);
+        while (last.hasRemaining()) {
+            last.put(ZEROS, 0, Math.min(ZEROS.length, last.remaining()));
+        }
+    }
+
+    /**
+     * Append an entry.
+     *
+     * @param entry the entry bytes.
+     * @throws IOException if a segment cannot be created.
+     */
+    synchronized void append(byte[] entry) throws IOException {
+        Assert.isTrue(entry.length > 0 && entry.length <= this.segmentSize - ENTRY_HEADER_SIZE,
+                "entry size must be greater than 0 and less than the segment size");
+        if (this.writePosition + ENTRY_HEADER_SIZE + entry.length > this.segmentSize) {
+            this.writeSegment++;
+            this.writePosition = 0;
+            this.segments.put(this.writeSegment, map(segmentFile(this.writeSegment), this.segmentSize));
+        }
+        MappedByteBuffer segment = this.segments.get(this.writeSegment);
+        CRC32 crc = new CRC32();
+        crc.update(entry, 0, entry.length);
+        segment.putInt(this.writePosition + 4, (int) crc.getValue());
+        ByteBuffer buffer = ((ByteBuffer) segment).duplicate();
+        ((Buffer) buffer).position(this.writePosition + ENTRY_HEADER_SIZE);
+        buffer.put(entry);
+        // the length last, marking the entry written
+        segment.putInt(this.writePosition, entry.length);
+        this.writePosition += ENTRY_HEADER_SIZE + entry.length;
+        this.pending++;
+    }
+
+    /**
+     * Return the next entry to read, without consuming it.
+     *
+     * @return the entry bytes, or null if all the entries are read.
+     */
+    synchronized byte[] peek() {
+        while (true) {
+            MappedByteBuffer segment = this.segments.get(this.readSegment);
+            int length = entryLength(segment, this.readPosition);
+            if (length > 0) {
+                byte[] entry = new byte[length];
+                ByteBuffer buffer = ((ByteBuffer) segment).duplicate();
+                ((Buffer) buffer).position(this.readPosition + ENTRY_HEADER_SIZE);
+                buffer.get(entry);
+                return entry;
+            }
+            if (this.readSegment == this.writeSegment) {
+                return null;
+            }
+            // the segment is complete, move on to the next one
+            MappedByteBuffer spent = this.segments.remove(this.readSegment);
+            this.readSegment++;
+            this.readPosition = 0;
+            checkpoint();
+            // a mapped file cannot be deleted on Windows
+            unmap(spent);
+            delete(segmentFile(this.readSegment - 1));
+        }
+    }
+
+    /**
+     * Consume the entry returned by {@link #peek()}.
+     */
+    synchronized void advance() {
+        // checked by the peek
+        int length = this.segments.get(this.readSegment).getInt(this.readPosition);
+        Assert.state(length > 0, "no entry to consume");
+        this.readPosition += ENTRY_HEADER_SIZE + length;
+        this.pending--;
+        checkpoint();
+    }
+
+    /**
+     * @return the number of entries not consumed yet.
+     */
+    synchronized long size() {
+        return this.pending;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (MappedByteBuffer segment : this.segments.values()) {
+            segment.force();
+        }
+        this.checkpoint.force();
+    }
+
+    private void checkpoint() {
+        this.checkpoint.putLong(0, this.readSegment);
+        this.checkpoint.putInt(8, this.readPosition);
+        this.checkpoint.force();
+    }
+
+    /**
+     * @return the length of the valid entry at the position, or 0 if there is none.
+     */
+    private int entryLength(MappedByteBuffer segment, int position) {
+        if (position + ENTRY_HEADER_SIZE > this.segmentSize) {
+            return 0;
+        }
+        int length = segment.getInt(position);
+        if (length <= 0 || position + ENTRY_HEADER_SIZE + length > this.segmentSize) {
+            return 0;
+        }
+        ByteBuffer buffer = ((ByteBuffer) segment).duplicate();
+        ((Buffer) buffer).position(position + ENTRY_HEADER_SIZE);
+        ((Buffer) buffer).limit(position + ENTRY_HEADER_SIZE + length);
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return (int) crc.getValue() == segment.getInt(position + 4) ? length : 0;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(this.directory, String.format("%020d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            // the mapping outlives the channel
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Release the mapping of a segment no longer accessed, through the cleaner of the buffer:
+     * {@code Unsafe.invokeCleaner} on Java 9+, {@code DirectBuffer.cleaner()} on Java 8.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Cannot unmap the spill segment, it is released by the garbage collector", e);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            // deleted on recovery, it is before the checkpoint
+            logger.warn("Cannot delete the spill segment " + file);
+            file.deleteOnExit();
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.caiya.kafka.springn.core;
+
+import org.apache.kafka.common.PartitionInfo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Caches the partitions of the topics for a time to live, without locks: an expired entry is
+ * refreshed by one caller while the others keep reading it, and is kept when the refresh fails.
+ * A topic not cached yet is loaded by one caller, the concurrent ones wait for its result.
+ *
+ * @since 1.2.0
+ */
+final class PartitionsCache {
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, CompletableFuture<List<PartitionInfo>>> loading = new ConcurrentHashMap<>();
+
+    private final long ttlNanos;
+
+    PartitionsCache(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Return the partitions of the topic, loading them if they are not cached or expired.
+     *
+     * @param topic  the topic.
+     * @param loader loads the partitions, may throw.
+     * @return the partitions.
+     */
+    List<PartitionInfo> get(String topic, Function<String, List<PartitionInfo>> loader) {
+        Entry entry = this.entries.get(topic);
+        if (entry == null) {
+            return loadOnce(topic, loader);
+        }
+        if (System.nanoTime() - entry.expiresAt >= 0 && entry.refreshing.compareAndSet(false, true)) {
+            boolean replaced = false;
+            try {
+                List<PartitionInfo> partitions = load(topic, loader);
+                replaced = partitions != null;
+                if (replaced) {
+                    return partitions;
+                }
+            } catch (RuntimeException e) {
+                // keep the stale partitions
+            } finally {
+                if (!replaced) {
+                    // the next caller retries
+                    entry.refreshing.set(false);
+                }
+            }
+        }
+        return entry.partitions;
+    }
+
+    /**
+     * Forget the partitions of the topic, so that the next call loads them.
+     *
+     * @param topic the topic.
+     */
+    void invalidate(String topic) {
+        this.entries.remove(topic);
+    }
+
+    private List<PartitionInfo> loadOnce(String topic, Function<String, List<PartitionInfo>> loader) {
+        CompletableFuture<List<PartitionInfo>> loading = new CompletableFuture<>();
+        CompletableFuture<List<PartitionInfo>> pending = this.loading.putIfAbsent(topic, loading);
+        if (pending != null) {
+            try {
+                return pending.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            Entry entry = this.entries.get(topic);
+            // loaded meanwhile
+            List<PartitionInfo> partitions = entry != null ? entry.partitions : load(topic, loader);
+            loading.complete(partitions);
+            return partitions;
+        } catch (RuntimeException | Error e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.loading.remove(topic, loading);
+        }
+    }
+
+    private List<PartitionInfo> load(String topic, Function<String, List<PartitionInfo>> loader) {
+        List<PartitionInfo> partitions = loader.apply(topic);
+        if (partitions == null) {
+            return null;
+        }
+        partitions = Collections.unmodifiableList(partitions);
+        this.entries.put(topic, new Entry(partitions, System.nanoTime() + this.ttlNanos));
+        return partitions;
+    }
+
+    private static final class Entry {
+
+        private final List<PartitionInfo> partitions;
+
+        private final long expiresAt;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(List<PartitionInfo> partitions, long expiresAt) {
+            this.partitions = partitions;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
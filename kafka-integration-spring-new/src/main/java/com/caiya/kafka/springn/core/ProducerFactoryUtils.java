@@ -0,0 +1,42 @@
+package com.caiya.kafka.springn.core;
+
+/**
+ * Holds the consumer group id of the current thread, for the offsets sent to a transaction by
+ * {@link KafkaOperations#sendOffsetsToTransaction(java.util.Map)}; the listener container binds it
+ * to its consumer threads when it runs the listeners in transactions.
+ *
+ * @since 1.2.0
+ */
+public final class ProducerFactoryUtils {
+
+    private static final ThreadLocal<String> groupIds = new ThreadLocal<>();
+
+    private ProducerFactoryUtils() {
+    }
+
+    /**
+     * Set the group id for the consumer bound to this thread.
+     *
+     * @param groupId the group id.
+     */
+    public static void setConsumerGroupId(String groupId) {
+        groupIds.set(groupId);
+    }
+
+    /**
+     * Get the group id for the consumer bound to this thread.
+     *
+     * @return the group id, or null.
+     */
+    public static String getConsumerGroupId() {
+        return groupIds.get();
+    }
+
+    /**
+     * Clear the group id for the consumer bound to this thread.
+     */
+    public static void clearConsumerGroupId() {
+        groupIds.remove();
+    }
+
+}
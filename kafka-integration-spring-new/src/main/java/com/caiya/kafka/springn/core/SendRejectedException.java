@@ -0,0 +1,18 @@
+package com.caiya.kafka.springn.core;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * Thrown, or set on the send future, when a record is not sent because the in-flight limit of the
+ * template is reached or its circuit breaker is open; the record was not handed to the producer.
+ *
+ * @since 1.2.0
+ */
+@SuppressWarnings("serial")
+public class SendRejectedException extends KafkaProducerException {
+
+    public SendRejectedException(ProducerRecord<?, ?> rejectedProducerRecord, String message) {
+        super(rejectedProducerRecord, message, null);
+    }
+
+}
@@ -0,0 +1,446 @@
+package com.caiya.kafka.springn.core;
+
+import com.caiya.kafka.springn.support.LoggingProducerListener;
+import com.caiya.kafka.springn.support.ProducerListener;
+import com.caiya.kafka.springn.support.SendResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.RetriableException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ProducerListener} spilling the records which failed with a retriable exception, or were
+ * {@link SendRejectedException rejected} by the template, to a local log of memory-mapped segment
+ * files, instead of losing them during a broker outage. A background drainer sends them again, in
+ * the order they were spilled, once sends succeed again (or every retry interval), and removes them
+ * from the log when they are acknowledged; the log survives a restart. The other failures are passed
+ * on to the delegate listener.
+ * <p>
+ * The failed records are queued by the producer network thread, and appended to the log by a
+ * background spiller, so that writing, or mapping a new segment, does not delay the other sends; up
+ * to {@value #SPILL_QUEUE_CAPACITY} records are queued, the next ones are passed on to the delegate.
+ * <p>
+ * The records are replayed one at a time, with at least once semantics: a record whose replay timed
+ * out is sent again. Set it as the listener of the template passed to {@link #start(KafkaOperations)}.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+public class SpillingProducerListener<K, V> implements ProducerListener<K, V>, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(SpillingProducerListener.class);
+
+    /**
+     * Default size of the segment files, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final long DEFAULT_RETRY_INTERVAL = 5000;
+
+    private static final long DEFAULT_REPLAY_TIMEOUT = 30000;
+
+    private static final int SPILL_QUEUE_CAPACITY = 10000;
+
+    private static final long SPILLER_POLL_TIMEOUT = 100;
+
+    private final MappedSegmentLog spillLog;
+
+    private final Serializer<K> keySerializer;
+
+    private final Serializer<V> valueSerializer;
+
+    private final Deserializer<K> keyDeserializer;
+
+    private final Deserializer<V> valueDeserializer;
+
+    private final BlockingQueue<FailedRecord<K, V>> spillQueue = new LinkedBlockingQueue<>(SPILL_QUEUE_CAPACITY);
+
+    private final AtomicBoolean spillerStarted = new AtomicBoolean();
+
+    private final Object drainMonitor = new Object();
+
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    private final AtomicLong replayedCount = new AtomicLong();
+
+    private volatile ProducerListener<K, V> delegate = new LoggingProducerListener<>();
+
+    private volatile long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+    private volatile long replayTimeout = DEFAULT_REPLAY_TIMEOUT;
+
+    private volatile boolean healthy = true;
+
+    private volatile ProducerRecord<K, V> replaying;
+
+    private volatile boolean running;
+
+    private Thread drainer;
+
+    private volatile Thread spiller;
+
+    private volatile boolean closed;
+
+    public SpillingProducerListener(File directory, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                    Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer)
+            throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, keySerializer, valueSerializer, keyDeserializer, valueDeserializer);
+    }
+
+    public SpillingProducerListener(File directory, int segmentSize, Serializer<K> keySerializer,
+                                    Serializer<V> valueSerializer, Deserializer<K> keyDeserializer,
+                                    Deserializer<V> valueDeserializer) throws IOException {
+        this.spillLog = new MappedSegmentLog(directory, segmentSize);
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.keyDeserializer = keyDeserializer;
+        this.valueDeserializer = valueDeserializer;
+    }
+
+    /**
+     * Set the listener the successes and the failures not spilled are passed on to.
+     *
+     * @param delegate the listener; a {@link LoggingProducerListener} by default.
+     */
+    public void setDelegate(ProducerListener<K, V> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Set the time after which the drainer retries the spilled records when no send succeeded since
+     * its last failure; default {@value #DEFAULT_RETRY_INTERVAL}.
+     *
+     * @param retryInterval the interval in milliseconds.
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Set the time to wait for the acknowledgement of a replayed record; default
+     * {@value #DEFAULT_REPLAY_TIMEOUT}.
+     *
+     * @param replayTimeout the timeout in milliseconds.
+     */
+    public void setReplayTimeout(long replayTimeout) {
+        this.replayTimeout = replayTimeout;
+    }
+
+    /**
+     * Start the drainer replaying the spilled records, including those left by a previous run.
+     *
+     * @param operations the operations sending the records, whose listener is this one; not transactional,
+     *                   the records are replayed outside of any transaction.
+     */
+    public synchronized void start(KafkaOperations<K, V> operations) {
+        Assert.state(this.drainer == null, "already started");
+        Assert.isTrue(!(operations instanceof KafkaTemplate) || !((KafkaTemplate<?, ?>) operations).isTransactional(),
+                "the spilled records cannot be replayed by a transactional template");
+        this.running = true;
+        this.drainer = new Thread(() -> drain(operations), "kafka-spill-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        Thread drainer;
+        synchronized (this) {
+            this.running = false;
+            drainer = this.drainer;
+            this.drainer = null;
+        }
+        if (drainer != null) {
+            drainer.interrupt();
+            drainer.join(this.replayTimeout);
+        }
+        // not interrupted, an interrupt would close the channel of a segment being mapped
+        this.closed = true;
+        Thread spiller = this.spiller;
+        if (spiller != null) {
+            spiller.join(this.replayTimeout);
+        }
+        // the records queued while closing
+        spillQueued();
+        this.spillLog.close();
+    }
+
+    @Override
+    public void onSuccess(ProducerRecord<K, V> producerRecord, RecordMetadata recordMetadata) {
+        if (producerRecord != this.replaying) {
+            if (!this.healthy) {
+                this.healthy = true;
+                synchronized (this.drainMonitor) {
+                    this.drainMonitor.notifyAll();
+                }
+            }
+            ProducerListener<K, V> delegate = this.delegate;
+            if (delegate != null) {
+                delegate.onSuccess(producerRecord, recordMetadata);
+            }
+        }
+    }
+
+    @Override
+    public void onError(ProducerRecord<K, V> producerRecord, Exception exception) {
+        if (producerRecord == this.replaying) {
+            // handled by the drainer
+            return;
+        }
+        if (isSpillable(exception)) {
+            if (!this.closed && this.spillQueue.offer(new FailedRecord<>(producerRecord, exception))) {
+                if (!this.spillerStarted.get() && this.spillerStarted.compareAndSet(false, true)) {
+                    startSpiller();
+                }
+                if (this.healthy) {
+                    this.healthy = false;
+                    logger.warn("Spilling the records failing to be sent, cause: " + exception);
+                }
+                return;
+            }
+            logger.error("Failed to spill record to topic " + producerRecord.topic() + ", the spill queue is full");
+        }
+        ProducerListener<K, V> delegate = this.delegate;
+        if (delegate != null) {
+            delegate.onError(producerRecord, exception);
+        }
+    }
+
+    /**
+     * Return the number of spilled records not replayed yet.
+     *
+     * @return the number of records.
+     */
+    public long getPendingCount() {
+        return this.spillLog.size() + this.spillQueue.size();
+    }
+
+    /**
+     * Return the number of records spilled since this listener was created.
+     *
+     * @return the number of records.
+     */
+    public long getSpilledCount() {
+        return this.spilledCount.get();
+    }
+
+    /**
+     * Return the number of spilled records replayed since this listener was created.
+     *
+     * @return the number of records.
+     */
+    public long getReplayedCount() {
+        return this.replayedCount.get();
+    }
+
+    private static boolean isSpillable(Throwable exception) {
+        return exception instanceof RetriableException || exception instanceof SendRejectedException;
+    }
+
+    private void startSpiller() {
+        Thread spiller = new Thread(this::spill, "kafka-spiller");
+        spiller.setDaemon(true);
+        this.spiller = spiller;
+        spiller.start();
+    }
+
+    private void spill() {
+        try {
+            while (!this.closed) {
+                FailedRecord<K, V> failed = this.spillQueue.poll(SPILLER_POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (failed != null) {
+                    spill(failed);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            spillQueued();
+        }
+    }
+
+    private void spillQueued() {
+        FailedRecord<K, V> failed;
+        while ((failed = this.spillQueue.poll()) != null) {
+            spill(failed);
+        }
+    }
+
+    private void spill(FailedRecord<K, V> failed) {
+        try {
+            this.spillLog.append(encode(failed.record));
+            this.spilledCount.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to spill record to topic " + failed.record.topic(), e);
+            ProducerListener<K, V> delegate = this.delegate;
+            if (delegate != null) {
+                delegate.onError(failed.record, failed.exception);
+            }
+        }
+    }
+
+    private void drain(KafkaOperations<K, V> operations) {
+        while (this.running) {
+            try {
+                byte[] entry = this.healthy ? this.spillLog.peek() : null;
+                if (entry == null) {
+                    synchronized (this.drainMonitor) {
+                        this.drainMonitor.wait(this.retryInterval);
+                    }
+                    if (!this.healthy) {
+                        // no success meanwhile, probe with the next record
+                        entry = this.spillLog.peek();
+                    }
+                    if (entry == null) {
+                        continue;
+                    }
+                }
+                replay(operations, entry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Spill drainer failed", e);
+            }
+        }
+    }
+
+    private void replay(KafkaOperations<K, V> operations, byte[] entry) throws InterruptedException {
+        ProducerRecord<K, V> record;
+        try {
+            record = decode(entry);
+        } catch (RuntimeException e) {
+            logger.error("Dropping spilled record, it cannot be read", e);
+            this.spillLog.advance();
+            return;
+        }
+        this.replaying = record;
+        try {
+            ListenableFuture<SendResult<K, V>> future;
+            try {
+                future = operations.send(record);
+            } catch (RuntimeException e) {
+                // back off as for a spillable failure, rather than spinning on the same record
+                logger.error("Failed to replay spilled record to topic " + record.topic() + ", retrying in "
+                        + this.retryInterval + " ms", e);
+                this.healthy = false;
+                return;
+            }
+            future.get(this.replayTimeout, TimeUnit.MILLISECONDS);
+            this.spillLog.advance();
+            this.replayedCount.incrementAndGet();
+            this.healthy = true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof KafkaProducerException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (isSpillable(cause)) {
+                this.healthy = false;
+            } else {
+                logger.error("Dropping spilled record to topic " + record.topic() + ", it cannot be sent", cause);
+                this.spillLog.advance();
+            }
+        } catch (TimeoutException e) {
+            this.healthy = false;
+        } finally {
+            this.replaying = null;
+        }
+    }
+
+    private byte[] encode(ProducerRecord<K, V> record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(record.topic());
+        out.writeInt(record.partition() == null ? -1 : record.partition());
+        out.writeBoolean(record.timestamp() != null);
+        out.writeLong(record.timestamp() == null ? 0 : record.timestamp());
+        writeBytes(out, this.keySerializer.serialize(record.topic(), record.key()));
+        writeBytes(out, this.valueSerializer.serialize(record.topic(), record.value()));
+        Header[] headers = record.headers().toArray();
+        out.writeInt(headers.length);
+        for (Header header : headers) {
+            out.writeUTF(header.key());
+            writeBytes(out, header.value());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private ProducerRecord<K, V> decode(byte[] entry) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+            String topic = in.readUTF();
+            int partition = in.readInt();
+            boolean hasTimestamp = in.readBoolean();
+            long timestamp = in.readLong();
+            K key = this.keyDeserializer.deserialize(topic, readBytes(in));
+            V value = this.valueDeserializer.deserialize(topic, readBytes(in));
+            int headerCount = in.readInt();
+            List<Header> headers = new ArrayList<>(headerCount);
+            for (int i = 0; i < headerCount; i++) {
+                headers.add(new RecordHeader(in.readUTF(), readBytes(in)));
+            }
+            return new ProducerRecord<>(topic, partition < 0 ? null : partition, hasTimestamp ? timestamp : null,
+                    key, value, headers);
+        } catch (IOException e) {
+            throw new IllegalStateException("corrupted spilled record", e);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static final class FailedRecord<K, V> {
+
+        private final ProducerRecord<K, V> record;
+
+        private final Exception exception;
+
+        private FailedRecord(ProducerRecord<K, V> record, Exception exception) {
+            this.record = record;
+            this.exception = exception;
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.caiya.kafka.springn.listener;
 
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 
 /**
@@ -18,4 +19,19 @@ public interface AcknowledgingMessageListener<K, V> extends com.caiya.kafka.spri
         throw new UnsupportedOperationException("This method should never be called");
     }
 
+    /**
+     * Invoked with data from kafka and an {@link Acknowledgment} handle, when implemented instead of
+     * {@link #onMessage(Object, Consumer)}: the container then commits the acknowledged records in
+     * batches (see {@link #ackCount()} and {@link #ackTimeInMillis()}), so the consumer does not need to
+     * be committed by the listener, and the consumer factory should disable auto commit.
+     *
+     * @param data           the data to be processed.
+     * @param acknowledgment the acknowledgment handle.
+     * @param consumer       the consumer.
+     * @since 1.2.0
+     */
+    default void onMessage(ConsumerRecords<K, V> data, Acknowledgment acknowledgment, Consumer<?, ?> consumer) {
+        onMessage(data, consumer);
+    }
+
 }
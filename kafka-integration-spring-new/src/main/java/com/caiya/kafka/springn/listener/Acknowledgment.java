@@ -0,0 +1,30 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/**
+ * Handle for acknowledging the processing of the records delivered to an
+ * {@link AcknowledgingMessageListener}. The container coalesces the acknowledgments and commits
+ * the highest contiguous acknowledged offset of each partition asynchronously, once
+ * {@link GenericMessageListener#ackCount()} records are acknowledged or
+ * {@link GenericMessageListener#ackTimeInMillis()} elapsed, and synchronously on shutdown.
+ * <p>
+ * May be invoked on any thread, also after the listener returned.
+ *
+ * @since 1.2.0
+ */
+public interface Acknowledgment {
+
+    /**
+     * Acknowledge all the records delivered with this handle.
+     */
+    void acknowledge();
+
+    /**
+     * Acknowledge one of the records delivered with this handle.
+     *
+     * @param record the record.
+     */
+    void acknowledge(ConsumerRecord<?, ?> record);
+
+}
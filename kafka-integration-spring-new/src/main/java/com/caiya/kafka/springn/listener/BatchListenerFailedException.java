@@ -0,0 +1,42 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.KafkaException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/**
+ * Thrown by a listener to tell the {@link ErrorHandler} which record of a batch failed: the records
+ * of its partition before it are considered processed, and only this record is recovered once the
+ * back off is exhausted.
+ *
+ * @since 1.2.0
+ */
+@SuppressWarnings("serial")
+public class BatchListenerFailedException extends KafkaException {
+
+    private final transient ConsumerRecord<?, ?> record;
+
+    public BatchListenerFailedException(String message, Throwable cause, ConsumerRecord<?, ?> record) {
+        super(message, cause);
+        this.record = record;
+    }
+
+    public ConsumerRecord<?, ?> getRecord() {
+        return this.record;
+    }
+
+    /**
+     * @param exception the exception thrown by a listener.
+     * @return the failed record carried by the exception or one of its causes, or null.
+     */
+    static ConsumerRecord<?, ?> failedRecord(Throwable exception) {
+        Throwable cause = exception;
+        while (cause != null) {
+            if (cause instanceof BatchListenerFailedException) {
+                return ((BatchListenerFailedException) cause).getRecord();
+            }
+            cause = cause.getCause() == cause ? null : cause.getCause();
+        }
+        return null;
+    }
+
+}
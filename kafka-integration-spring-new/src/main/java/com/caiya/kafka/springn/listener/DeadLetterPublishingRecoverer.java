@@ -0,0 +1,168 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.KafkaException;
+import com.caiya.kafka.springn.core.KafkaOperations;
+import com.caiya.kafka.springn.core.KafkaTemplate;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A recoverer for the {@link RetryingErrorHandler} publishing the failed records to a dead-letter topic
+ * through {@link KafkaOperations}, by default the original topic suffixed with {@value #DEFAULT_DLT_SUFFIX}.
+ * The original topic, partition, offset and the exception are added as headers. The send is awaited, so
+ * that a record is not skipped when it cannot be published.
+ * <p>
+ * A record that failed to deserialize, see {@link RecordDeserializationException} and
+ * {@link LazyConsumerRecord}, has no key and value of the template types; it is published as is, with its
+ * byte array key and value, through the raw template when one is supplied, otherwise it is logged and
+ * skipped, since the template could never serialize it.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+public class DeadLetterPublishingRecoverer<K, V> implements BiConsumer<ConsumerRecord<?, ?>, Exception> {
+
+    public static final String DEFAULT_DLT_SUFFIX = ".DLT";
+
+    public static final String DLT_ORIGINAL_TOPIC = "kafka_dlt-original-topic";
+
+    public static final String DLT_ORIGINAL_PARTITION = "kafka_dlt-original-partition";
+
+    public static final String DLT_ORIGINAL_OFFSET = "kafka_dlt-original-offset";
+
+    public static final String DLT_EXCEPTION_MESSAGE = "kafka_dlt-exception-message";
+
+    private static final long DEFAULT_SEND_TIMEOUT = 30;
+
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterPublishingRecoverer.class);
+
+    private final KafkaOperations<K, V> template;
+
+    private final KafkaOperations<byte[], byte[]> rawTemplate;
+
+    private final Function<ConsumerRecord<?, ?>, String> destinationResolver;
+
+    private long sendTimeoutInSeconds = DEFAULT_SEND_TIMEOUT;
+
+    /**
+     * Create an instance publishing to the original topic suffixed with {@value #DEFAULT_DLT_SUFFIX}.
+     *
+     * @param template the template.
+     */
+    public DeadLetterPublishingRecoverer(KafkaOperations<K, V> template) {
+        this(template, record -> record.topic() + DEFAULT_DLT_SUFFIX);
+    }
+
+    /**
+     * Create an instance publishing to the topic resolved from the failed record.
+     *
+     * @param template            the template.
+     * @param destinationResolver the dead-letter topic resolver.
+     */
+    public DeadLetterPublishingRecoverer(KafkaOperations<K, V> template,
+                                         Function<ConsumerRecord<?, ?>, String> destinationResolver) {
+        this(template, null, destinationResolver);
+    }
+
+    /**
+     * Create an instance publishing to the original topic suffixed with {@value #DEFAULT_DLT_SUFFIX}, the
+     * records that failed to deserialize through the raw template.
+     *
+     * @param template    the template.
+     * @param rawTemplate the template publishing byte array keys and values as is.
+     */
+    public DeadLetterPublishingRecoverer(KafkaOperations<K, V> template, KafkaOperations<byte[], byte[]> rawTemplate) {
+        this(template, rawTemplate, record -> record.topic() + DEFAULT_DLT_SUFFIX);
+    }
+
+    /**
+     * Create an instance publishing to the topic resolved from the failed record, the records that failed
+     * to deserialize through the raw template.
+     *
+     * @param template            the template.
+     * @param rawTemplate         the template publishing byte array keys and values as is, may be null.
+     * @param destinationResolver the dead-letter topic resolver.
+     */
+    public DeadLetterPublishingRecoverer(KafkaOperations<K, V> template, KafkaOperations<byte[], byte[]> rawTemplate,
+                                         Function<ConsumerRecord<?, ?>, String> destinationResolver) {
+        Assert.notNull(template, "'template' cannot be null");
+        Assert.notNull(destinationResolver, "'destinationResolver' cannot be null");
+        this.template = template;
+        this.rawTemplate = rawTemplate;
+        this.destinationResolver = destinationResolver;
+    }
+
+    /**
+     * The time to wait for the dead-letter send; default {@value #DEFAULT_SEND_TIMEOUT} seconds.
+     *
+     * @param sendTimeoutInSeconds the timeout in seconds.
+     */
+    public void setSendTimeoutInSeconds(long sendTimeoutInSeconds) {
+        this.sendTimeoutInSeconds = sendTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void accept(ConsumerRecord<?, ?> record, Exception exception) {
+        Headers headers = new RecordHeaders(record.headers().toArray());
+        headers.add(DLT_ORIGINAL_TOPIC, record.topic().getBytes(StandardCharsets.UTF_8));
+        headers.add(DLT_ORIGINAL_PARTITION, String.valueOf(record.partition()).getBytes(StandardCharsets.UTF_8));
+        headers.add(DLT_ORIGINAL_OFFSET, String.valueOf(record.offset()).getBytes(StandardCharsets.UTF_8));
+        if (exception.getMessage() != null) {
+            headers.add(DLT_EXCEPTION_MESSAGE, exception.getMessage().getBytes(StandardCharsets.UTF_8));
+        }
+        String destination = this.destinationResolver.apply(record);
+        if (exception instanceof RecordDeserializationException) {
+            ConsumerRecord<byte[], byte[]> raw = ((RecordDeserializationException) exception).getRecord();
+            publishRaw(new ProducerRecord<>(destination, null, raw.key(), raw.value(), headers), record, exception);
+        } else if (record instanceof LazyConsumerRecord
+                && ((LazyConsumerRecord<?, ?>) record).isDeserializationFailed()) {
+            LazyConsumerRecord<?, ?> lazy = (LazyConsumerRecord<?, ?>) record;
+            publishRaw(new ProducerRecord<>(destination, null, lazy.rawKey(), lazy.rawValue(), headers), record,
+                    exception);
+        } else {
+            publish(this.template, new ProducerRecord<>(destination, null, (K) record.key(), (V) record.value(),
+                    headers), record);
+        }
+    }
+
+    private void publishRaw(ProducerRecord<byte[], byte[]> producerRecord, ConsumerRecord<?, ?> record,
+                            Exception exception) {
+        if (this.rawTemplate == null) {
+            logger.error("No raw template to publish to the dead-letter topic, skipping record:" + record, exception);
+            return;
+        }
+        publish(this.rawTemplate, producerRecord, record);
+    }
+
+    private <T, U> void publish(KafkaOperations<T, U> template, ProducerRecord<T, U> producerRecord,
+                                ConsumerRecord<?, ?> record) {
+        try {
+            if (template instanceof KafkaTemplate && ((KafkaTemplate<T, U>) template).isTransactional()) {
+                template.executeInTransaction(operations -> operations.send(producerRecord))
+                        .get(this.sendTimeoutInSeconds, TimeUnit.SECONDS);
+            } else {
+                template.send(producerRecord).get(this.sendTimeoutInSeconds, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KafkaException("Interrupted while publishing to the dead-letter topic: " + record, e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new KafkaException("Failed to publish to the dead-letter topic: " + record, e);
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.util.backoff.BackOffExecution;
+
+/**
+ * Handles the exceptions thrown by message listeners, so that the consumer thread survives them.
+ * <p>
+ * When a listener fails, the container asks for a {@link BackOffExecution} for the failed record and
+ * redelivers the records after each back off: on the polling thread, the partition is sought back and
+ * paused for the back off, so polling goes on; on worker threads (see
+ * {@link GenericMessageListener#parallelism()} and {@link GenericMessageListener#handOffCapacity()}),
+ * the records are retried in place. Once the execution returns {@link BackOffExecution#STOP}, the
+ * records are {@link #recover(ConsumerRecord, Exception) recovered} and skipped.
+ * <p>
+ * The failed record is the one carried by a {@link BatchListenerFailedException}, or else the first
+ * record of the failed batch, and all the records of the batch are recovered.
+ *
+ * @since 1.2.0
+ */
+public interface ErrorHandler {
+
+    /**
+     * Start the back off for a record which failed for the first time.
+     *
+     * @param record    the failed record.
+     * @param exception the exception thrown by the listener.
+     * @return the back off execution.
+     */
+    BackOffExecution start(ConsumerRecord<?, ?> record, Exception exception);
+
+    /**
+     * Recover a record once the back off is exhausted, e.g. publish it to a dead-letter topic.
+     * If an exception is thrown, the back off starts over.
+     *
+     * @param record    the record.
+     * @param exception the last exception thrown by the listener.
+     */
+    void recover(ConsumerRecord<?, ?> record, Exception exception);
+
+}
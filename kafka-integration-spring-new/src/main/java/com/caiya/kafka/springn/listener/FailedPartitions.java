@@ -0,0 +1,100 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The partitions of a dispatcher whose records failed without an {@link ErrorHandler}: the failed
+ * record is never completed, so the committed offset of its partition cannot move past it. Rather
+ * than consuming on while the records to redeliver pile up, the partition is stopped: paused and
+ * rewound to the failed record, until it is revoked, or the consumer restarted.
+ * <p>
+ * The failures are reported by the processing threads; the other methods are invoked on the
+ * polling thread.
+ *
+ * @since 1.2.0
+ */
+final class FailedPartitions {
+
+    private static final Logger logger = LoggerFactory.getLogger(FailedPartitions.class);
+
+    private final ConcurrentMap<TopicPartition, Long> failures = new ConcurrentHashMap<>();
+
+    /**
+     * The failed partitions already paused, polling thread only.
+     */
+    private final Set<TopicPartition> stopped = new HashSet<>();
+
+    /**
+     * Report a record which failed and will not be completed.
+     *
+     * @param partition the partition.
+     * @param offset    the offset of the record.
+     */
+    void failed(TopicPartition partition, long offset) {
+        this.failures.merge(partition, offset, Math::min);
+    }
+
+    /**
+     * @param partition the partition.
+     * @return true if a record of the partition failed, its later records are then not processed.
+     */
+    boolean isFailed(TopicPartition partition) {
+        return !this.failures.isEmpty() && this.failures.containsKey(partition);
+    }
+
+    /**
+     * Pause the newly failed partitions and seek them to the failed records.
+     *
+     * @param consumer the consumer.
+     */
+    void stop(Consumer<?, ?> consumer) {
+        if (this.failures.isEmpty()) {
+            return;
+        }
+        Set<TopicPartition> assignment = consumer.assignment();
+        for (Map.Entry<TopicPartition, Long> failure : this.failures.entrySet()) {
+            TopicPartition partition = failure.getKey();
+            if (assignment.contains(partition) && this.stopped.add(partition)) {
+                consumer.pause(Collections.singletonList(partition));
+                consumer.seek(partition, failure.getValue());
+                logger.error("partition stopped at offset " + failure.getValue() + " after a failure without "
+                        + "error handler, it is consumed again after a rebalance or a restart, partition:" + partition);
+            }
+        }
+    }
+
+    /**
+     * Forget the failures of revoked partitions, they are consumed again from the committed offsets.
+     *
+     * @param partitions the revoked partitions.
+     */
+    void revoked(Collection<TopicPartition> partitions) {
+        this.stopped.removeAll(partitions);
+        this.failures.keySet().removeAll(partitions);
+    }
+
+    /**
+     * @param partitions the partitions.
+     * @return the partitions which did not fail, whose records in process may still complete.
+     */
+    Collection<TopicPartition> healthy(Collection<TopicPartition> partitions) {
+        if (this.failures.isEmpty()) {
+            return partitions;
+        }
+        Set<TopicPartition> healthy = new HashSet<>(partitions);
+        healthy.removeAll(this.failures.keySet());
+        return healthy;
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.caiya.kafka.springn.listener;
 
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +21,21 @@ public interface GenericMessageListener<T> {
      */
     long POLL_TIMEOUT_IN_MILLIS = 100;
 
+    /**
+     * Default number of consumers started for one listener.
+     */
+    int CONCURRENCY = 1;
+
+    /**
+     * Default number of records completed between two offset commits by the container.
+     */
+    int ACK_COUNT = 100;
+
+    /**
+     * Default maximum time between two offset commits by the container, in milliseconds.
+     */
+    long ACK_TIME_IN_MILLIS = 1000;
+
     /**
      * @return logger instance of subclasses.
      */
@@ -41,6 +57,15 @@ public interface GenericMessageListener<T> {
         return null;
     }
 
+    /**
+     * Use the {@code group.id} of the consumer factory if null.
+     *
+     * @return consumer group id.
+     */
+    default String groupId() {
+        return null;
+    }
+
     /**
      * If null, subscribe all partitions.
      *
@@ -57,6 +82,126 @@ public interface GenericMessageListener<T> {
         return POLL_TIMEOUT_IN_MILLIS;
     }
 
+    /**
+     * The number of consumers (and threads) to start for this listener, all of them in the same group.
+     * Each consumer gets a distinct {@code client.id} suffix. Consumers exceeding the partition count
+     * will stay idle, and with partition subscription the partitions are spread over the consumers.
+     *
+     * @return the concurrency.
+     */
+    default int concurrency() {
+        return CONCURRENCY;
+    }
+
+    /**
+     * When greater than 0, the records polled are handed to this number of worker threads, one record
+     * per invocation of {@link #onMessage(Object)} (or {@link #onMessage(Object, Consumer)}): records with
+     * the same key (or without a key, of the same partition) are processed in order, and records with
+     * different keys in parallel. The container then commits the highest contiguous completed offset of
+     * each partition, so the consumer factory should disable auto commit; the {@link Consumer} passed to
+     * the listener ignores commits and rejects other operations.
+     *
+     * @return the number of worker threads, 0 to process the records on the polling thread.
+     */
+    default int parallelism() {
+        return 0;
+    }
+
+    /**
+     * When greater than 0, the polling thread hands the records over to a processing thread through
+     * a ring of this capacity, in batches of one partition per poll, and keeps polling while the
+     * listener is busy; when the ring is full the partitions are paused until it drains. As with
+     * {@link #parallelism()}, the container commits the offsets of the completed batches, so the
+     * consumer factory should disable auto commit. Cannot be combined with {@link #parallelism()}.
+     *
+     * @return the hand-off ring capacity, 0 to process the records on the polling thread.
+     */
+    default int handOffCapacity() {
+        return 0;
+    }
+
+    /**
+     * When true, the consumer polls raw bytes and the container deserializes each polled batch in parallel
+     * on the deserialization executor of the {@link ListenerConsumer} (the common {@code ForkJoinPool} by
+     * default), with the deserializers of the consumer factory; the order of the records of each partition
+     * is preserved. Worth it for expensive deserializers only, which must be thread-safe. A record failing
+     * to deserialize is passed to the {@link ErrorHandler}, see {@link RecordDeserializationException}.
+     *
+     * @return true to deserialize the records in parallel.
+     */
+    default boolean parallelDeserialization() {
+        return false;
+    }
+
+    /**
+     * When true, the consumer polls raw bytes and the records passed to the listener are
+     * {@link LazyConsumerRecord}s, deserializing their key and value on first access only, with the
+     * deserializers of the consumer factory; worth it for listeners discarding most records on their
+     * headers or key. Cannot be combined with {@link #parallelDeserialization()}.
+     *
+     * @return true to deserialize the records on access.
+     */
+    default boolean lazyDeserialization() {
+        return false;
+    }
+
+    /**
+     * When true, the container runs the listener in a transaction of the transactional
+     * {@link ListenerConsumer#setKafkaTemplate(com.caiya.kafka.springn.core.KafkaTemplate) template} for
+     * each polled batch, and sends the offsets of the batch to the transaction, so that the records sent
+     * by the listener with that template and the progress of the consumer are committed atomically; the
+     * consumer factory must disable auto commit. A {@link MessageListener} only, which cannot be combined
+     * with {@link #parallelism()} nor {@link #handOffCapacity()}.
+     *
+     * @return true to run the listener in transactions.
+     */
+    default boolean transactional() {
+        return false;
+    }
+
+    /**
+     * When the container commits the offsets (see {@link #parallelism()}, {@link #handOffCapacity()} and
+     * {@link Acknowledgment}), it commits asynchronously once this many records have been completed since
+     * the last commit.
+     *
+     * @return the number of completed records between two commits.
+     */
+    default int ackCount() {
+        return ACK_COUNT;
+    }
+
+    /**
+     * When the container commits the offsets, it commits asynchronously at least this often while
+     * records are being completed.
+     *
+     * @return the maximum time between two commits in millis.
+     */
+    default long ackTimeInMillis() {
+        return ACK_TIME_IN_MILLIS;
+    }
+
+    /**
+     * Invoked on the polling thread when partitions are assigned to the consumer, by a rebalance or by
+     * the partition subscription, before records of them are delivered; e.g. to warm per partition
+     * caches or to seek.
+     *
+     * @param partitions the assigned partitions.
+     * @param consumer   the consumer.
+     */
+    default void onPartitionsAssigned(Collection<TopicPartition> partitions, Consumer<?, ?> consumer) {
+    }
+
+    /**
+     * Invoked on the polling thread when partitions are revoked from the consumer by a rebalance, before
+     * the container waits for their records in process and commits their offsets (when it commits the
+     * offsets, see {@link #parallelism()}, {@link #handOffCapacity()} and {@link Acknowledgment}); e.g. to
+     * flush per partition state. Records may still be in process on other threads meanwhile.
+     *
+     * @param partitions the revoked partitions.
+     */
+    default void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+    }
+
     /**
      * Invoked with data from kafka.
      *
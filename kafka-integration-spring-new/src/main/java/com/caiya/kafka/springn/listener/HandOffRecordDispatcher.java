@@ -0,0 +1,244 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the records polled by one consumer over to one processing thread through a bounded
+ * {@link HandOffRing}, one batch per partition and poll, so that a slow listener does not delay
+ * the next {@code poll()} beyond {@code max.poll.interval.ms}.
+ * <p>
+ * When the ring is full, the batches that do not fit are kept aside and the assigned partitions are
+ * paused, so that polling goes on (keeping the consumer in the group) without fetching more records;
+ * the partitions are resumed once the kept batches are handed over and the ring is at most half full.
+ * Batches of a partition are processed in order; a batch is completed when the listener returns, or its
+ * records when they are acknowledged for listeners using an {@link Acknowledgment}, and the polling
+ * thread commits the highest contiguous completed offset. Failed batches are retried in place by the
+ * {@link ErrorHandler}, if any; without one, the partition of a failed batch is stopped, see
+ * {@link FailedPartitions}.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+class HandOffRecordDispatcher<K, V> implements RecordDispatcher<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandOffRecordDispatcher.class);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final GenericMessageListener messageListener;
+
+    private final HandOffRing<ConsumerRecords<K, V>> ring;
+
+    private final OffsetTracker offsetTracker;
+
+    private final boolean acknowledging;
+
+    private final ErrorHandler errorHandler;
+
+    private final Thread processingThread;
+
+    /**
+     * Batches not fitting into the ring, polling thread only.
+     */
+    private final Deque<ConsumerRecords<K, V>> overflow = new ArrayDeque<>();
+
+    private final Set<TopicPartition> paused = new HashSet<>();
+
+    private final FailedPartitions failedPartitions = new FailedPartitions();
+
+    private volatile boolean waiting;
+
+    private volatile boolean stopped;
+
+    HandOffRecordDispatcher(GenericMessageListener messageListener, boolean acknowledging, OffsetTracker offsetTracker,
+                            ErrorHandler errorHandler, int capacity, String threadNamePrefix) {
+        this.messageListener = messageListener;
+        this.errorHandler = errorHandler;
+        this.acknowledging = acknowledging;
+        this.offsetTracker = offsetTracker;
+        this.ring = new HandOffRing<>(capacity);
+        this.processingThread = new CustomizableThreadFactory(threadNamePrefix).newThread(this::processLoop);
+        this.processingThread.start();
+    }
+
+    @Override
+    public void dispatch(ConsumerRecords<K, V> records) {
+        handOverOverflow();
+        for (TopicPartition partition : records.partitions()) {
+            if (this.failedPartitions.isFailed(partition)) {
+                // polled before the partition was stopped, consumed again with the failed batch
+                continue;
+            }
+            List<ConsumerRecord<K, V>> partitionRecords = records.records(partition);
+            if (this.acknowledging) {
+                // records may be acknowledged one by one
+                for (ConsumerRecord<K, V> record : partitionRecords) {
+                    this.offsetTracker.register(partition, record.offset());
+                }
+            } else {
+                this.offsetTracker.register(partition, partitionRecords.get(0).offset(),
+                        partitionRecords.get(partitionRecords.size() - 1).offset());
+            }
+            ConsumerRecords<K, V> batch = new ConsumerRecords<>(Collections.singletonMap(partition, partitionRecords));
+            if (!this.overflow.isEmpty() || !this.ring.offer(batch)) {
+                this.overflow.add(batch);
+            }
+        }
+        signal();
+    }
+
+    private void handOverOverflow() {
+        boolean handedOver = false;
+        while (!this.overflow.isEmpty() && this.ring.offer(this.overflow.peek())) {
+            this.overflow.poll();
+            handedOver = true;
+        }
+        if (handedOver) {
+            signal();
+        }
+    }
+
+    private void signal() {
+        if (this.waiting) {
+            LockSupport.unpark(this.processingThread);
+        }
+    }
+
+    private void processLoop() {
+        while (true) {
+            ConsumerRecords<K, V> batch = this.ring.poll();
+            if (batch == null) {
+                if (this.stopped) {
+                    break;
+                }
+                this.waiting = true;
+                // check again, the producer may have missed the waiting flag
+                batch = this.ring.poll();
+                if (batch == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    this.waiting = false;
+                    continue;
+                }
+                this.waiting = false;
+            }
+            process(batch);
+        }
+    }
+
+    private void process(ConsumerRecords<K, V> batch) {
+        TopicPartition partition = batch.partitions().iterator().next();
+        long firstOffset = batch.records(partition).get(0).offset();
+        if (this.failedPartitions.isFailed(partition)) {
+            return;
+        }
+        try {
+            InPlaceRetryInvoker.invoke(batch, this::invokeListener, this.errorHandler, this::skipped);
+            if (!this.acknowledging) {
+                this.offsetTracker.complete(partition, firstOffset);
+            }
+        } catch (Exception e) {
+            // never completed, the partition is stopped so that the offsets to redeliver do not pile up
+            logger.error("failed to process records, partition:" + partition + ", offset:" + firstOffset, e);
+            this.failedPartitions.failed(partition, firstOffset);
+        }
+    }
+
+    private void invokeListener(ConsumerRecords<K, V> data) {
+        if (this.acknowledging) {
+            ((AcknowledgingMessageListener) this.messageListener).onMessage(data,
+                    this.offsetTracker.acknowledgment(data), WorkerConsumer.INSTANCE);
+        } else if (this.messageListener instanceof AcknowledgingMessageListener) {
+            this.messageListener.onMessage(data, WorkerConsumer.INSTANCE);
+        } else {
+            this.messageListener.onMessage(data);
+        }
+    }
+
+    private void skipped(ConsumerRecord<K, V> record) {
+        if (this.acknowledging) {
+            this.offsetTracker.complete(new TopicPartition(record.topic(), record.partition()), record.offset());
+        }
+    }
+
+    @Override
+    public void pauseOrResume(Consumer<K, V> consumer) {
+        handOverOverflow();
+        this.failedPartitions.stop(consumer);
+        Set<TopicPartition> assignment = consumer.assignment();
+        this.paused.retainAll(assignment);
+        this.paused.removeIf(this.failedPartitions::isFailed);
+        if (!this.overflow.isEmpty()) {
+            List<TopicPartition> toPause = new ArrayList<>();
+            for (TopicPartition partition : assignment) {
+                // the failed partitions stay paused
+                if (!this.failedPartitions.isFailed(partition) && this.paused.add(partition)) {
+                    toPause.add(partition);
+                }
+            }
+            if (!toPause.isEmpty()) {
+                consumer.pause(toPause);
+            }
+        } else if (!this.paused.isEmpty() && this.ring.size() <= this.ring.capacity() / 2) {
+            consumer.resume(this.paused);
+            this.paused.clear();
+        }
+    }
+
+    @Override
+    public void partitionsRevoked(Collection<TopicPartition> partitions, long timeoutMillis) {
+        Iterator<ConsumerRecords<K, V>> iterator = this.overflow.iterator();
+        while (iterator.hasNext()) {
+            ConsumerRecords<K, V> batch = iterator.next();
+            TopicPartition partition = batch.partitions().iterator().next();
+            if (partitions.contains(partition)) {
+                // not handed over yet, redelivered to the next owner
+                iterator.remove();
+                for (ConsumerRecord<K, V> record : batch) {
+                    this.offsetTracker.discard(partition, record.offset());
+                }
+            }
+        }
+        // the failed batches are never completed
+        if (!this.offsetTracker.awaitCompletion(this.failedPartitions.healthy(partitions), timeoutMillis)) {
+            logger.warn("timed out waiting for the records of revoked partitions:" + partitions);
+        }
+        this.failedPartitions.revoked(partitions);
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!this.overflow.isEmpty()) {
+            // not handed over, hence never committed: redelivered after a restart or a rebalance
+            logger.info("discarding " + this.overflow.size() + " batches not handed over");
+            this.overflow.clear();
+        }
+        this.stopped = true;
+        LockSupport.unpark(this.processingThread);
+        this.processingThread.join(unit.toMillis(timeout));
+        if (this.processingThread.isAlive()) {
+            logger.warn("timed out waiting for the processing thread, " + this.offsetTracker.pending()
+                    + " batches in process");
+        }
+    }
+
+}
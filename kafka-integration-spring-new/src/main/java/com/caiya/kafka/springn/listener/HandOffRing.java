@@ -0,0 +1,80 @@
+package com.caiya.kafka.springn.listener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single-producer, single-consumer ring buffer with preallocated slots, used to hand
+ * batches over from the polling thread to the processing thread without locks.
+ *
+ * @param <E> the element type.
+ * @since 1.2.0
+ */
+final class HandOffRing<E> {
+
+    private final Object[] slots;
+
+    private final int capacity;
+
+    /**
+     * The index of the next slot to read, only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The index of the next slot to write, only written by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    HandOffRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+        this.slots = new Object[capacity];
+    }
+
+    /**
+     * Producer side: add the element if there is room.
+     *
+     * @param element the element.
+     * @return false if the ring is full.
+     */
+    boolean offer(E element) {
+        long tail = this.tail.get();
+        if (tail - this.head.get() >= this.capacity) {
+            return false;
+        }
+        this.slots[(int) (tail % this.capacity)] = element;
+        // publishes the slot to the consumer
+        this.tail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side: remove the oldest element.
+     *
+     * @return the element, or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long head = this.head.get();
+        if (head >= this.tail.get()) {
+            return null;
+        }
+        int index = (int) (head % this.capacity);
+        E element = (E) this.slots[index];
+        this.slots[index] = null;
+        // frees the slot for the producer
+        this.head.lazySet(head + 1);
+        return element;
+    }
+
+    int size() {
+        return (int) (this.tail.get() - this.head.get());
+    }
+
+    int capacity() {
+        return this.capacity;
+    }
+
+}
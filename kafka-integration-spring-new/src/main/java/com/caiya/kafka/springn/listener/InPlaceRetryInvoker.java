@@ -0,0 +1,106 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.util.backoff.BackOffExecution;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Applies an {@link ErrorHandler} on a worker thread: a failed batch of one partition is retried in
+ * place after each back off, from the failed record on when it is known, until it succeeds or the
+ * records are recovered.
+ *
+ * @since 1.2.0
+ */
+final class InPlaceRetryInvoker {
+
+    private InPlaceRetryInvoker() {
+    }
+
+    /**
+     * Invoke the listener with the batch, retrying on failure.
+     *
+     * @param batch        the records of one partition.
+     * @param invocation   the listener invocation.
+     * @param errorHandler the error handler, null to rethrow the exceptions.
+     * @param skipped      invoked for the records processed without the listener returning normally,
+     *                     the ones before a failed record and the recovered ones.
+     * @param <K>          the key type.
+     * @param <V>          the value type.
+     */
+    static <K, V> void invoke(ConsumerRecords<K, V> batch, Consumer<ConsumerRecords<K, V>> invocation,
+                              ErrorHandler errorHandler, Consumer<ConsumerRecord<K, V>> skipped) {
+        TopicPartition partition = batch.partitions().iterator().next();
+        List<ConsumerRecord<K, V>> records = batch.records(partition);
+        int from = 0;
+        ConsumerRecords<K, V> delivery = batch;
+        BackOffExecution execution = null;
+        long failedOffset = -1;
+        while (true) {
+            try {
+                invocation.accept(delivery);
+                return;
+            } catch (RuntimeException e) {
+                if (errorHandler == null) {
+                    throw e;
+                }
+                ConsumerRecord<?, ?> failed = BatchListenerFailedException.failedRecord(e);
+                int failedIndex = failed == null ? from : indexOf(records, failed.offset(), from);
+                ConsumerRecord<K, V> first = records.get(failedIndex);
+                for (int i = from; i < failedIndex; i++) {
+                    skipped.accept(records.get(i));
+                }
+                if (execution == null || first.offset() != failedOffset) {
+                    execution = errorHandler.start(first, e);
+                    failedOffset = first.offset();
+                }
+                long backOff = execution.nextBackOff();
+                int next = failedIndex;
+                if (backOff == BackOffExecution.STOP) {
+                    int to = failed == null ? records.size() : failedIndex + 1;
+                    try {
+                        for (int i = failedIndex; i < to; i++) {
+                            errorHandler.recover(records.get(i), e);
+                        }
+                        for (int i = failedIndex; i < to; i++) {
+                            skipped.accept(records.get(i));
+                        }
+                        next = to;
+                        execution = null;
+                    } catch (RuntimeException ex) {
+                        execution = errorHandler.start(first, e);
+                        backOff = Math.max(0, execution.nextBackOff());
+                    }
+                }
+                if (next == records.size()) {
+                    return;
+                }
+                if (execution != null && backOff > 0) {
+                    try {
+                        Thread.sleep(backOff);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+                from = next;
+                delivery = from == 0 ? batch : new ConsumerRecords<>(
+                        Collections.singletonMap(partition, records.subList(from, records.size())));
+            }
+        }
+    }
+
+    private static int indexOf(List<? extends ConsumerRecord<?, ?>> records, long offset, int from) {
+        for (int i = from; i < records.size(); i++) {
+            if (records.get(i).offset() == offset) {
+                return i;
+            }
+        }
+        return from;
+    }
+
+}
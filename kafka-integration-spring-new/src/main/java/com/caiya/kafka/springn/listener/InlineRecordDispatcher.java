@@ -0,0 +1,70 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invokes an {@link AcknowledgingMessageListener} with an {@link Acknowledgment} on the polling thread,
+ * so that the container commits the acknowledged offsets. Failed batches are sought back and retried
+ * by the {@link ErrorHandler}, if any.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+class InlineRecordDispatcher<K, V> implements RecordDispatcher<K, V> {
+
+    private final AcknowledgingMessageListener<K, V> messageListener;
+
+    private final OffsetTracker offsetTracker;
+
+    private final SeekToCurrentHandler<K, V> seekToCurrentHandler;
+
+    private final Consumer<K, V> consumer;
+
+    InlineRecordDispatcher(AcknowledgingMessageListener<K, V> messageListener, OffsetTracker offsetTracker,
+                           ErrorHandler errorHandler, Consumer<K, V> consumer) {
+        this.messageListener = messageListener;
+        this.offsetTracker = offsetTracker;
+        this.seekToCurrentHandler = errorHandler == null ? null : new SeekToCurrentHandler<>(errorHandler, offsetTracker);
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void dispatch(ConsumerRecords<K, V> records) {
+        for (TopicPartition partition : records.partitions()) {
+            for (ConsumerRecord<K, V> record : records.records(partition)) {
+                this.offsetTracker.register(partition, record.offset());
+            }
+        }
+        try {
+            this.messageListener.onMessage(records, this.offsetTracker.acknowledgment(records), this.consumer);
+        } catch (RuntimeException e) {
+            if (this.seekToCurrentHandler == null) {
+                // without error handler, the consumer thread will be destroyed
+                throw e;
+            }
+            this.seekToCurrentHandler.handle(this.consumer, records, e);
+            return;
+        }
+        if (this.seekToCurrentHandler != null) {
+            this.seekToCurrentHandler.succeeded(records);
+        }
+    }
+
+    @Override
+    public void pauseOrResume(Consumer<K, V> consumer) {
+        if (this.seekToCurrentHandler != null) {
+            this.seekToCurrentHandler.resumeDue(consumer);
+        }
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+    }
+
+}
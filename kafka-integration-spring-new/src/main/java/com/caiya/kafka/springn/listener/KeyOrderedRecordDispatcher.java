@@ -0,0 +1,201 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the records polled by one consumer to a pool of workers, one record per listener invocation.
+ * <p>
+ * Each worker is a single thread lane; a record is routed to a lane by the hash of its key, or of its
+ * partition when it has no key, so records with the same key are processed in order while different
+ * keys are processed in parallel. A record is completed when the listener returns, or when it is
+ * acknowledged for listeners using an {@link Acknowledgment}, and the polling thread commits only the
+ * highest contiguous completed offset. Failed records are retried in place by the {@link ErrorHandler},
+ * if any; without one, the partition of a failed record is stopped, see {@link FailedPartitions}. The
+ * records of a revoked partition still queued once the revocation timeout elapsed are skipped, they are
+ * redelivered to the next owner.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+class KeyOrderedRecordDispatcher<K, V> implements RecordDispatcher<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyOrderedRecordDispatcher.class);
+
+    /**
+     * Partitions with more records in process are paused until half of them are completed.
+     */
+    static final int MAX_PENDING_RECORDS_PER_PARTITION = 1000;
+
+    private final GenericMessageListener messageListener;
+
+    private final ExecutorService[] lanes;
+
+    private final OffsetTracker offsetTracker;
+
+    private final boolean acknowledging;
+
+    private final ErrorHandler errorHandler;
+
+    private final Set<TopicPartition> paused = new HashSet<>();
+
+    private final FailedPartitions failedPartitions = new FailedPartitions();
+
+    /**
+     * The revocations of each partition, the records dispatched before the last one are skipped.
+     */
+    private final Map<TopicPartition, Integer> revocations = new ConcurrentHashMap<>();
+
+    KeyOrderedRecordDispatcher(GenericMessageListener messageListener, boolean acknowledging, OffsetTracker offsetTracker,
+                               ErrorHandler errorHandler, int parallelism, String threadNamePrefix) {
+        this.messageListener = messageListener;
+        this.errorHandler = errorHandler;
+        this.acknowledging = acknowledging;
+        this.offsetTracker = offsetTracker;
+        this.lanes = new ExecutorService[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            this.lanes[i] = Executors.newSingleThreadExecutor(new CustomizableThreadFactory(threadNamePrefix + i + "-"));
+        }
+    }
+
+    @Override
+    public void dispatch(ConsumerRecords<K, V> records) {
+        for (TopicPartition partition : records.partitions()) {
+            if (this.failedPartitions.isFailed(partition)) {
+                // polled before the partition was stopped, consumed again with the failed record
+                continue;
+            }
+            int revocation = this.revocations.getOrDefault(partition, 0);
+            for (ConsumerRecord<K, V> record : records.records(partition)) {
+                this.offsetTracker.register(partition, record.offset());
+                int hash = routingHash(partition, record);
+                ExecutorService lane = this.lanes[(hash & Integer.MAX_VALUE) % this.lanes.length];
+                lane.execute(() -> process(partition, revocation, record));
+            }
+        }
+    }
+
+    private static int routingHash(TopicPartition partition, ConsumerRecord<?, ?> record) {
+        Object key = record.key();
+        if (key == null) {
+            return partition.hashCode();
+        }
+        // byte array keys of raw consumers hash on their content
+        return key instanceof byte[] ? Arrays.hashCode((byte[]) key) : key.hashCode();
+    }
+
+    private void process(TopicPartition partition, int revocation, ConsumerRecord<K, V> record) {
+        if (this.failedPartitions.isFailed(partition) || this.revocations.getOrDefault(partition, 0) != revocation) {
+            return;
+        }
+        ConsumerRecords<K, V> data = new ConsumerRecords<>(
+                Collections.singletonMap(partition, Collections.singletonList(record)));
+        try {
+            InPlaceRetryInvoker.invoke(data, this::invokeListener, this.errorHandler, this::skipped);
+            if (!this.acknowledging) {
+                this.offsetTracker.complete(partition, record.offset());
+            }
+        } catch (Exception e) {
+            // never completed, the partition is stopped so that the offsets to redeliver do not pile up
+            logger.error("failed to process record, partition:" + partition + ", offset:" + record.offset(), e);
+            this.failedPartitions.failed(partition, record.offset());
+        }
+    }
+
+    private void invokeListener(ConsumerRecords<K, V> data) {
+        if (this.acknowledging) {
+            ((AcknowledgingMessageListener) this.messageListener).onMessage(data,
+                    this.offsetTracker.acknowledgment(data), WorkerConsumer.INSTANCE);
+        } else if (this.messageListener instanceof AcknowledgingMessageListener) {
+            this.messageListener.onMessage(data, WorkerConsumer.INSTANCE);
+        } else {
+            this.messageListener.onMessage(data);
+        }
+    }
+
+    private void skipped(ConsumerRecord<K, V> record) {
+        if (this.acknowledging) {
+            this.offsetTracker.complete(new TopicPartition(record.topic(), record.partition()), record.offset());
+        }
+    }
+
+    @Override
+    public void pauseOrResume(Consumer<K, V> consumer) {
+        this.failedPartitions.stop(consumer);
+        Set<TopicPartition> assignment = consumer.assignment();
+        this.paused.retainAll(assignment);
+        List<TopicPartition> toPause = null;
+        List<TopicPartition> toResume = null;
+        for (TopicPartition partition : this.offsetTracker.partitions()) {
+            if (this.failedPartitions.isFailed(partition)) {
+                // stays paused
+                this.paused.remove(partition);
+                continue;
+            }
+            int pending = this.offsetTracker.pending(partition);
+            if (pending >= MAX_PENDING_RECORDS_PER_PARTITION) {
+                if (assignment.contains(partition) && this.paused.add(partition)) {
+                    toPause = toPause == null ? new ArrayList<>() : toPause;
+                    toPause.add(partition);
+                }
+            } else if (pending <= MAX_PENDING_RECORDS_PER_PARTITION / 2 && this.paused.remove(partition)) {
+                toResume = toResume == null ? new ArrayList<>() : toResume;
+                toResume.add(partition);
+            }
+        }
+        if (toPause != null) {
+            consumer.pause(toPause);
+        }
+        if (toResume != null) {
+            consumer.resume(toResume);
+        }
+    }
+
+    @Override
+    public void partitionsRevoked(Collection<TopicPartition> partitions, long timeoutMillis) {
+        // the failed records are never completed
+        if (!this.offsetTracker.awaitCompletion(this.failedPartitions.healthy(partitions), timeoutMillis)) {
+            logger.warn("timed out waiting for the records of revoked partitions:" + partitions);
+        }
+        for (TopicPartition partition : partitions) {
+            // the records still queued are skipped
+            this.revocations.merge(partition, 1, Integer::sum);
+        }
+        this.failedPartitions.revoked(partitions);
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ExecutorService lane : this.lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService lane : this.lanes) {
+            if (!lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                logger.warn("timed out waiting for the workers, " + this.offsetTracker.pending() + " records in process");
+                break;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.KafkaException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.ExtendedDeserializer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A {@link ConsumerRecord} holding the raw bytes of its key and value, deserialized on first access
+ * of {@link #key()} or {@link #value()} and cached, so that records filtered out on their headers, key
+ * or metadata do not pay for the deserialization of their value.
+ * <p>
+ * The raw bytes are released once both the key and the value are deserialized. A record failing to
+ * deserialize throws a {@link KafkaException} on access, which is handled as any listener exception; its
+ * raw bytes are kept, so that the {@link DeadLetterPublishingRecoverer} can publish it as is.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @see GenericMessageListener#lazyDeserialization()
+ * @since 1.2.0
+ */
+public class LazyConsumerRecord<K, V> extends ConsumerRecord<K, V> {
+
+    private static final Object NOT_DESERIALIZED = new Object();
+
+    private final ExtendedDeserializer<K> keyDeserializer;
+
+    private final ExtendedDeserializer<V> valueDeserializer;
+
+    private byte[] rawKey;
+
+    private byte[] rawValue;
+
+    private volatile Object key = NOT_DESERIALIZED;
+
+    private volatile Object value = NOT_DESERIALIZED;
+
+    private volatile boolean deserializationFailed;
+
+    @SuppressWarnings("deprecation")
+    LazyConsumerRecord(ConsumerRecord<byte[], byte[]> record, ExtendedDeserializer<K> keyDeserializer,
+                       ExtendedDeserializer<V> valueDeserializer) {
+        super(record.topic(), record.partition(), record.offset(), record.timestamp(), record.timestampType(),
+                record.checksum(), record.serializedKeySize(), record.serializedValueSize(), null, null,
+                record.headers());
+        this.rawKey = record.key();
+        this.rawValue = record.value();
+        this.keyDeserializer = keyDeserializer;
+        this.valueDeserializer = valueDeserializer;
+    }
+
+    /**
+     * Return a function wrapping the raw records polled into lazy records.
+     *
+     * @param keyDeserializer   the key deserializer.
+     * @param valueDeserializer the value deserializer.
+     * @param <K>               the key type.
+     * @param <V>               the value type.
+     * @return the function.
+     */
+    static <K, V> Function<ConsumerRecords<byte[], byte[]>, ConsumerRecords<K, V>> lazily(
+            Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer) {
+        ExtendedDeserializer<K> extendedKeyDeserializer = ExtendedDeserializer.Wrapper.ensureExtended(keyDeserializer);
+        ExtendedDeserializer<V> extendedValueDeserializer = ExtendedDeserializer.Wrapper.ensureExtended(valueDeserializer);
+        return records -> {
+            Map<TopicPartition, List<ConsumerRecord<K, V>>> lazyRecords = new LinkedHashMap<>();
+            for (TopicPartition partition : records.partitions()) {
+                List<ConsumerRecord<byte[], byte[]>> partitionRecords = records.records(partition);
+                List<ConsumerRecord<K, V>> lazyPartitionRecords = new ArrayList<>(partitionRecords.size());
+                for (ConsumerRecord<byte[], byte[]> record : partitionRecords) {
+                    lazyPartitionRecords.add(new LazyConsumerRecord<>(record, extendedKeyDeserializer,
+                            extendedValueDeserializer));
+                }
+                lazyRecords.put(partition, lazyPartitionRecords);
+            }
+            return new ConsumerRecords<>(lazyRecords);
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public K key() {
+        Object key = this.key;
+        if (key == NOT_DESERIALIZED) {
+            synchronized (this) {
+                key = this.key;
+                if (key == NOT_DESERIALIZED) {
+                    key = this.rawKey == null ? null : deserialize(this.keyDeserializer, this.rawKey, "key");
+                    this.key = key;
+                    releaseIfDeserialized();
+                }
+            }
+        }
+        return (K) key;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V value() {
+        Object value = this.value;
+        if (value == NOT_DESERIALIZED) {
+            synchronized (this) {
+                value = this.value;
+                if (value == NOT_DESERIALIZED) {
+                    value = this.rawValue == null ? null : deserialize(this.valueDeserializer, this.rawValue, "value");
+                    this.value = value;
+                    releaseIfDeserialized();
+                }
+            }
+        }
+        return (V) value;
+    }
+
+    /**
+     * @return true if the value has been deserialized already.
+     */
+    public boolean isValueDeserialized() {
+        return this.value != NOT_DESERIALIZED;
+    }
+
+    /**
+     * @return true if the key or the value failed to deserialize.
+     */
+    public boolean isDeserializationFailed() {
+        return this.deserializationFailed;
+    }
+
+    /**
+     * @return the raw key, or null once both the key and the value are deserialized.
+     */
+    public synchronized byte[] rawKey() {
+        return this.rawKey;
+    }
+
+    /**
+     * @return the raw value, or null once both the key and the value are deserialized.
+     */
+    public synchronized byte[] rawValue() {
+        return this.rawValue;
+    }
+
+    private void releaseIfDeserialized() {
+        if (this.key != NOT_DESERIALIZED && this.value != NOT_DESERIALIZED) {
+            this.rawKey = null;
+            this.rawValue = null;
+        }
+    }
+
+    private <T> T deserialize(ExtendedDeserializer<T> deserializer, byte[] data, String what) {
+        try {
+            return deserializer.deserialize(topic(), headers(), data);
+        } catch (RuntimeException e) {
+            this.deserializationFailed = true;
+            throw new KafkaException("failed to deserialize " + what + ", partition:" + topic() + "-" + partition()
+                    + ", offset:" + offset(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        // does not trigger the deserialization
+        return "LazyConsumerRecord(topic = " + topic() + ", partition = " + partition() + ", offset = " + offset()
+                + ", " + timestampType() + " = " + timestamp()
+                + ", serialized key size = " + serializedKeySize()
+                + ", serialized value size = " + serializedValueSize()
+                + ", headers = " + headers()
+                + ", key = " + (this.key == NOT_DESERIALIZED ? "<not deserialized>" : this.key)
+                + ", value = " + (this.value == NOT_DESERIALIZED ? "<not deserialized>" : this.value) + ")";
+    }
+
+}
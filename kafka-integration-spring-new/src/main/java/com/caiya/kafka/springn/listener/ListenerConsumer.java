@@ -1,9 +1,18 @@
 package com.caiya.kafka.springn.listener;
 
 import com.caiya.kafka.springn.core.ConsumerFactory;
+import com.caiya.kafka.springn.core.KafkaTemplate;
+import com.caiya.kafka.springn.core.ProducerFactoryUtils;
+import com.caiya.kafka.springn.support.DefaultProducerMetrics;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.Deserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
@@ -12,12 +21,35 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.CollectionUtils;
+import org.springframework.util.ReflectionUtils;
 import org.springframework.util.StringUtils;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * The entrance of Consumers' messaging.
@@ -29,7 +61,11 @@ public class ListenerConsumer<K, V> implements ApplicationContextAware, Applicat
 
     private static final Logger logger = LoggerFactory.getLogger(com.caiya.kafka.springn.listener.ListenerConsumer.class);
 
-    private static final int MAX_MESSAGING_THREAD_COUNT = 50;
+    private static final String DEFAULT_THREAD_NAME_PREFIX = "kafka-listener-";
+
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 10000;
+
+    private static final long DEFAULT_LAG_INTERVAL = 30000;
 
     private volatile boolean runnable;
 
@@ -37,23 +73,224 @@ public class ListenerConsumer<K, V> implements ApplicationContextAware, Applicat
 
     private final ConsumerFactory<K, V> defaultConsumerFactory;
 
+    private volatile ErrorHandler errorHandler;
+
+    private volatile Executor deserializationExecutor = ForkJoinPool.commonPool();
+
+    private TaskExecutor taskExecutor;
+
+    private boolean virtualThreads;
+
+    private volatile long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+    private KafkaTemplate<?, ?> kafkaTemplate;
+
+    private final List<KafkaConsumerRunner> runners = new CopyOnWriteArrayList<>();
+
+    private final ConcurrentMap<String, ListenerMetrics> listenerMetrics = new ConcurrentHashMap<>();
+
+    private volatile long lagInterval = DEFAULT_LAG_INTERVAL;
+
+    private volatile MBeanServer mbeanServer;
+
 
     public ListenerConsumer(ConsumerFactory<K, V> consumerFactory) {
         this.defaultConsumerFactory = consumerFactory;
     }
 
+    /**
+     * Set an {@link ErrorHandler} so that exceptions thrown by the listeners are retried and the failed
+     * records eventually recovered, instead of destroying the consumer thread.
+     *
+     * @param errorHandler the error handler; may be {@code null}.
+     * @see RetryingErrorHandler
+     */
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Set the executor deserializing the records of the listeners using
+     * {@link GenericMessageListener#parallelDeserialization()}.
+     *
+     * @param deserializationExecutor the executor; the common {@link ForkJoinPool} by default.
+     */
+    public void setDeserializationExecutor(Executor deserializationExecutor) {
+        Assert.notNull(deserializationExecutor, "'deserializationExecutor' cannot be null");
+        this.deserializationExecutor = deserializationExecutor;
+    }
+
+    /**
+     * Set the executor running the consumers, one task per consumer for its whole lifetime; it must
+     * therefore not queue tasks, nor bound the number of threads below the total concurrency of the
+     * listeners.
+     *
+     * @param taskExecutor the executor; a {@link SimpleAsyncTaskExecutor} by default.
+     */
+    public void setTaskExecutor(TaskExecutor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Run the consumers on virtual threads when no {@link #setTaskExecutor(TaskExecutor) task executor}
+     * is set, so that many low volume listeners do not each hold a platform thread; requires a JDK
+     * supporting virtual threads (21 or later).
+     *
+     * @param virtualThreads true to use virtual threads.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Set the time to wait on {@link #destroy()} for the consumers to stop: the records in process are
+     * drained during half of it at most, then the completed offsets are committed and the consumers closed.
+     *
+     * @param shutdownTimeout the timeout in milliseconds; 10 seconds by default.
+     */
+    public void setShutdownTimeout(long shutdownTimeout) {
+        Assert.isTrue(shutdownTimeout >= 0, "'shutdownTimeout' cannot be negative");
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * Set the transactional template running the {@link GenericMessageListener#transactional()
+     * transactional} listeners; the listeners must send their records with this template.
+     *
+     * @param kafkaTemplate the template.
+     */
+    public void setKafkaTemplate(KafkaTemplate<?, ?> kafkaTemplate) {
+        Assert.isTrue(kafkaTemplate == null || kafkaTemplate.isTransactional(),
+                "the template must be transactional");
+        this.kafkaTemplate = kafkaTemplate;
+    }
+
+    /**
+     * Set the interval at which the consumers compute the lag of their partitions, from the end offsets
+     * and their positions; it costs a request to the brokers per consumer and update.
+     *
+     * @param lagInterval the interval in milliseconds, 0 to disable; 30 seconds by default.
+     * @see #getListenerMetrics(String)
+     */
+    public void setLagInterval(long lagInterval) {
+        Assert.isTrue(lagInterval >= 0, "'lagInterval' cannot be negative");
+        this.lagInterval = lagInterval;
+    }
+
+    /**
+     * Set the server the {@link ListenerMetrics} of each listener are registered with, under
+     * {@code com.caiya.kafka.springn:type=ListenerMetrics,name=<listener bean name>}.
+     *
+     * @param mbeanServer the server, for instance {@code ManagementFactory.getPlatformMBeanServer()}.
+     */
+    public void setMBeanServer(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * Return the metrics of a listener, created if necessary, so that they may be bound before the
+     * consumers start.
+     *
+     * @param listenerName the bean name of the listener.
+     * @return the metrics.
+     */
+    public ListenerMetrics getListenerMetrics(String listenerName) {
+        ListenerMetrics metrics = this.listenerMetrics.get(listenerName);
+        if (metrics == null) {
+            metrics = new ListenerMetrics(listenerName);
+            ListenerMetrics existing = this.listenerMetrics.putIfAbsent(listenerName, metrics);
+            if (existing != null) {
+                return existing;
+            }
+            registerMBean(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Return the metrics of the listeners.
+     *
+     * @return the metrics by listener bean name.
+     */
+    public Map<String, ListenerMetrics> getListenerMetrics() {
+        return Collections.unmodifiableMap(this.listenerMetrics);
+    }
+
+    private void registerMBean(ListenerMetrics metrics) {
+        MBeanServer mbeanServer = this.mbeanServer;
+        if (mbeanServer == null) {
+            return;
+        }
+        try {
+            mbeanServer.registerMBean(metrics, objectNameOf(metrics));
+        } catch (JMException e) {
+            logger.warn("failed to register the metrics of listener:" + metrics.getListenerName(), e);
+        }
+    }
+
+    private void unregisterMBeans() {
+        MBeanServer mbeanServer = this.mbeanServer;
+        if (mbeanServer == null) {
+            return;
+        }
+        for (ListenerMetrics metrics : this.listenerMetrics.values()) {
+            try {
+                ObjectName objectName = objectNameOf(metrics);
+                if (mbeanServer.isRegistered(objectName)) {
+                    mbeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                logger.debug("failed to unregister the metrics of listener:" + metrics.getListenerName(), e);
+            }
+        }
+    }
+
+    private static ObjectName objectNameOf(ListenerMetrics metrics) throws MalformedObjectNameException {
+        return new ObjectName(DefaultProducerMetrics.JMX_DOMAIN + ":type=ListenerMetrics,name="
+                + ObjectName.quote(metrics.getListenerName()));
+    }
+
+    private TaskExecutor createTaskExecutor() {
+        SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor(DEFAULT_THREAD_NAME_PREFIX);
+        if (this.virtualThreads) {
+            taskExecutor.setThreadFactory(virtualThreadFactory(DEFAULT_THREAD_NAME_PREFIX));
+        }
+        return taskExecutor;
+    }
+
+    /**
+     * Create a factory of virtual threads by reflection, as in
+     * {@code Thread.ofVirtual().name(prefix, 0).factory()}, this library being compiled for Java 8.
+     */
+    private static ThreadFactory virtualThreadFactory(String threadNamePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = ClassUtils.forName("java.lang.Thread$Builder", null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual threads are not supported by this JVM:"
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
     @SuppressWarnings("rawtypes")
-    private void boot() throws IllegalAccessException {
+    private void boot() {
         Map<String, GenericMessageListener> messageListenerMap = applicationContext.getBeansOfType(GenericMessageListener.class);
         if (messageListenerMap != null) {
-            if (messageListenerMap.values().size() > MAX_MESSAGING_THREAD_COUNT) {
-                logger.warn("message listener number exceed MAX_MESSAGING_THREAD_COUNT[" + MAX_MESSAGING_THREAD_COUNT + "]");
-                throw new IllegalAccessException("too many listeners with a number of " + messageListenerMap.values().size());
+            if (this.taskExecutor == null) {
+                this.taskExecutor = createTaskExecutor();
             }
-            messageListenerMap.values().forEach(messageListener -> {
+            messageListenerMap.forEach((listenerName, messageListener) -> {
                 if (!CollectionUtils.isEmpty(messageListener.topics())) {
-                    logger.info("start to process message listener:" + messageListener);
-                    new Thread(new KafkaConsumerRunner(messageListener)).start();
+                    int concurrency = concurrencyOf(messageListener);
+                    logger.info("start to process message listener:" + messageListener + ", concurrency:" + concurrency);
+                    ListenerMetrics metrics = getListenerMetrics(listenerName);
+                    for (int i = 0; i < concurrency; i++) {
+                        KafkaConsumerRunner runner = new KafkaConsumerRunner(messageListener, i, concurrency, metrics);
+                        this.runners.add(runner);
+                        this.taskExecutor.execute(runner);
+                    }
                 } else {
                     logger.warn("kafka topics cannot be empty, message listener:" + messageListener);
                 }
@@ -63,66 +300,515 @@ public class ListenerConsumer<K, V> implements ApplicationContextAware, Applicat
         }
     }
 
+    @SuppressWarnings("rawtypes")
+    private static int concurrencyOf(GenericMessageListener messageListener) {
+        int concurrency = messageListener.concurrency();
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be greater than 0, message listener:" + messageListener);
+        }
+        if (!CollectionUtils.isEmpty(messageListener.partitions()) && concurrency > messageListener.partitions().size()) {
+            // there is no point in idle consumers with partition subscription
+            concurrency = messageListener.partitions().size();
+        }
+        return concurrency;
+    }
+
     @SuppressWarnings({"unchecked", "rawtypes"})
     class KafkaConsumerRunner implements Runnable {
 
         private final GenericMessageListener messageListener;
 
-        KafkaConsumerRunner(GenericMessageListener messageListener) {
+        private final int index;
+
+        private final int concurrency;
+
+        private final ListenerMetrics metrics;
+
+        private long nextLagUpdate;
+
+        private Function<ConsumerRecords<byte[], byte[]>, ConsumerRecords<K, V>> deserializer;
+
+        private SeekToCurrentHandler<K, V> deserializationErrorHandler;
+
+        private volatile Consumer<K, V> consumer;
+
+        private final CountDownLatch stopped = new CountDownLatch(1);
+
+        KafkaConsumerRunner(GenericMessageListener messageListener, int index, int concurrency,
+                            ListenerMetrics metrics) {
             this.messageListener = messageListener;
+            this.index = index;
+            this.concurrency = concurrency;
+            this.metrics = metrics;
         }
 
         @Override
         public void run() {
-            Consumer<K, V> consumer;
+            try {
+                doRun();
+            } catch (WakeupException e) {
+                if (runnable) {
+                    throw e;
+                }
+                // woken up by the shutdown
+            } finally {
+                Consumer<K, V> consumer = this.consumer;
+                if (consumer != null) {
+                    close(consumer);
+                }
+                stopped.countDown();
+            }
+        }
+
+        private void doRun() {
+            ConsumerFactory<K, V> consumerFactory;
             if (StringUtils.hasText(messageListener.consumerFactoryName())) {
-                consumer = ((ConsumerFactory) applicationContext.getBean(messageListener.consumerFactoryName())).createConsumer();
+                consumerFactory = (ConsumerFactory) applicationContext.getBean(messageListener.consumerFactoryName());
             } else {
-                consumer = defaultConsumerFactory.createConsumer();
+                consumerFactory = defaultConsumerFactory;
             }
-            if (CollectionUtils.isEmpty(messageListener.partitions())) {
-                consumer.subscribe(messageListener.topics());
+            String clientIdSuffix = concurrency > 1 ? "-" + index : null;
+            Consumer<K, V> consumer;
+            if (messageListener.parallelDeserialization() || messageListener.lazyDeserialization()) {
+                // only the polled records are typed, the other operations do not depend on the deserializers
+                deserializer = createDeserializer(consumerFactory);
+                if (errorHandler != null) {
+                    deserializationErrorHandler = new SeekToCurrentHandler<>(errorHandler, null);
+                }
+                consumer = (Consumer) consumerFactory.createRawConsumer(messageListener.groupId(), clientIdSuffix);
             } else {
+                consumer = consumerFactory.createConsumer(messageListener.groupId(), clientIdSuffix);
+            }
+            this.consumer = consumer;
+            List<TopicPartition> topicPartitions = null;
+            if (!CollectionUtils.isEmpty(messageListener.partitions())) {
                 // partition subscription
                 if (messageListener.topics().size() > 1) {
                     throw new IllegalArgumentException("Multi-topics not allowed in Partition subscription");
                 }
                 String topic = (String) messageListener.topics().iterator().next();
-                List<TopicPartition> topicPartitions = new ArrayList<>();
-                messageListener.partitions().forEach(partition -> {
-                    topicPartitions.add(new TopicPartition(topic, (int) partition));
-                });
+                topicPartitions = new ArrayList<>();
+                int i = 0;
+                for (Object partition : messageListener.partitions()) {
+                    // spread the partitions over the concurrent consumers
+                    if (i++ % concurrency == index) {
+                        topicPartitions.add(new TopicPartition(topic, (int) partition));
+                    }
+                }
+            }
+
+            boolean autoCommit = consumerFactory.isAutoCommit();
+            OffsetTracker offsetTracker = new OffsetTracker();
+            RecordDispatcher<K, V> dispatcher = createDispatcher(consumer, offsetTracker);
+            if (messageListener.transactional()) {
+                checkTransactional(dispatcher, autoCommit);
+            }
+            OffsetCommitter offsetCommitter = dispatcher == null || autoCommit ? null
+                    : new OffsetCommitter(offsetTracker, messageListener.ackCount(), messageListener.ackTimeInMillis());
+            if (topicPartitions == null) {
+                consumer.subscribe(messageListener.topics(),
+                        new ContainerRebalanceListener(consumer, dispatcher, offsetTracker, offsetCommitter));
+            } else {
                 consumer.assign(topicPartitions);
+                messageListener.onPartitionsAssigned(topicPartitions, consumer);
+            }
+
+            if (dispatcher != null) {
+                runDispatched(consumer, autoCommit, dispatcher, offsetCommitter);
+                return;
+            }
+            if (messageListener.transactional()) {
+                String groupId = messageListener.groupId() != null ? messageListener.groupId()
+                        : (String) consumerFactory.getConfigurationProperties().get(ConsumerConfig.GROUP_ID_CONFIG);
+                runTransactional(consumer, groupId);
+                return;
             }
 
-            while (runnable) {
-                ConsumerRecords<K, V> consumerRecords = consumer.poll(messageListener.pollTimeoutInMillis());
-                if (consumerRecords.isEmpty()) {
-                    continue;
+            runLegacy(consumer, autoCommit);
+        }
+
+        private void checkTransactional(RecordDispatcher<K, V> dispatcher, boolean autoCommit) {
+            if (kafkaTemplate == null) {
+                throw new IllegalStateException("a transactional listener requires a kafka template, message listener:"
+                        + messageListener);
+            }
+            if (dispatcher != null || !(messageListener instanceof MessageListener)) {
+                throw new IllegalStateException("a transactional listener must be a MessageListener processing "
+                        + "the records on the polling thread, message listener:" + messageListener);
+            }
+            if (autoCommit) {
+                throw new IllegalStateException("auto commit must be disabled for a transactional listener, "
+                        + "message listener:" + messageListener);
+            }
+        }
+
+        /**
+         * Run the listener in a transaction per polled batch, which also commits the offsets of the batch;
+         * an aborted batch is polled again.
+         */
+        private void runTransactional(Consumer<K, V> consumer, String groupId) {
+            ErrorHandler errorHandler = ListenerConsumer.this.errorHandler;
+            SeekToCurrentHandler<K, V> seekToCurrentHandler = errorHandler == null ? null
+                    : new SeekToCurrentHandler<>(errorHandler, null, true);
+            KafkaTemplate<?, ?> kafkaTemplate = ListenerConsumer.this.kafkaTemplate;
+            ProducerFactoryUtils.setConsumerGroupId(groupId);
+            try {
+                while (runnable) {
+                    if (seekToCurrentHandler != null) {
+                        seekToCurrentHandler.resumeDue(consumer);
+                    }
+                    ConsumerRecords<K, V> consumerRecords = poll(consumer);
+                    if (consumerRecords.isEmpty()) {
+                        continue;
+                    }
+                    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+                    for (TopicPartition partition : consumerRecords.partitions()) {
+                        List<ConsumerRecord<K, V>> partitionRecords = consumerRecords.records(partition);
+                        offsets.put(partition,
+                                new OffsetAndMetadata(partitionRecords.get(partitionRecords.size() - 1).offset() + 1));
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        kafkaTemplate.executeInTransaction(operations -> {
+                            messageListener.onMessage(consumerRecords);
+                            operations.sendOffsetsToTransaction(offsets, groupId);
+                            return null;
+                        });
+                    } catch (RuntimeException e) {
+                        if (seekToCurrentHandler == null) {
+                            for (TopicPartition partition : consumerRecords.partitions()) {
+                                consumer.seek(partition, consumerRecords.records(partition).get(0).offset());
+                            }
+                            throw e;
+                        }
+                        seekToCurrentHandler.handle(consumer, consumerRecords, e);
+                        continue;
+                    } finally {
+                        metrics.recordHandler(System.nanoTime() - start);
+                    }
+                    if (seekToCurrentHandler != null) {
+                        seekToCurrentHandler.succeeded(consumerRecords);
+                    }
+                }
+            } finally {
+                ProducerFactoryUtils.clearConsumerGroupId();
+            }
+        }
+
+        private void runLegacy(Consumer<K, V> consumer, boolean autoCommit) {
+            ErrorHandler errorHandler = ListenerConsumer.this.errorHandler;
+            SeekToCurrentHandler<K, V> seekToCurrentHandler = errorHandler == null ? null
+                    : new SeekToCurrentHandler<>(errorHandler, null);
+            try {
+                while (runnable) {
+                    if (seekToCurrentHandler != null) {
+                        seekToCurrentHandler.resumeDue(consumer);
+                    }
+                    ConsumerRecords<K, V> consumerRecords = poll(consumer);
+                    if (consumerRecords.isEmpty()) {
+                        continue;
+                    }
+
+                    if (!(messageListener instanceof MessageListener) && !(messageListener instanceof AcknowledgingMessageListener)) {
+                        throw new UnsupportedOperationException("Unsupported message listener type:" + messageListener);
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        if (messageListener instanceof MessageListener) {
+                            messageListener.onMessage(consumerRecords);
+                        } else {
+                            messageListener.onMessage(consumerRecords, consumer);
+                        }
+                    } catch (RuntimeException e) {
+                        if (seekToCurrentHandler == null) {
+                            // without error handler, the consumer thread will be destroyed; seek back so that
+                            // the auto commit on close does not commit the failed records
+                            for (TopicPartition partition : consumerRecords.partitions()) {
+                                consumer.seek(partition, consumerRecords.records(partition).get(0).offset());
+                            }
+                            throw e;
+                        }
+                        seekToCurrentHandler.handle(consumer, consumerRecords, e);
+                        continue;
+                    } finally {
+                        metrics.recordHandler(System.nanoTime() - start);
+                    }
+                    if (seekToCurrentHandler != null) {
+                        seekToCurrentHandler.succeeded(consumerRecords);
+                    }
+                }
+            } finally {
+                if (autoCommit && !runnable) {
+                    // commit the positions of the processed records now, also when the shutdown woke up the
+                    // poll; a pending wakeup would fail the auto commit on close
+                    commitSync(consumer, null);
+                }
+            }
+        }
+
+        private Function<ConsumerRecords<byte[], byte[]>, ConsumerRecords<K, V>> createDeserializer(
+                ConsumerFactory<K, V> consumerFactory) {
+            Deserializer<K> keyDeserializer = consumerFactory.getKeyDeserializer();
+            Deserializer<V> valueDeserializer = consumerFactory.getValueDeserializer();
+            if (keyDeserializer == null) {
+                keyDeserializer = ParallelDeserializer.configuredDeserializer(
+                        consumerFactory.getConfigurationProperties(), true);
+            }
+            if (valueDeserializer == null) {
+                valueDeserializer = ParallelDeserializer.configuredDeserializer(
+                        consumerFactory.getConfigurationProperties(), false);
+            }
+            if (messageListener.lazyDeserialization()) {
+                if (messageListener.parallelDeserialization()) {
+                    throw new IllegalStateException("parallelDeserialization and lazyDeserialization cannot be combined, "
+                            + "message listener:" + messageListener);
+                }
+                return LazyConsumerRecord.lazily(keyDeserializer, valueDeserializer);
+            }
+            return new ParallelDeserializer<>(keyDeserializer, valueDeserializer, deserializationExecutor)::deserialize;
+        }
+
+        private ConsumerRecords<K, V> poll(Consumer<K, V> consumer) {
+            if (deserializationErrorHandler != null) {
+                deserializationErrorHandler.resumeDue(consumer);
+            }
+            long start = System.nanoTime();
+            ConsumerRecords<K, V> consumerRecords = consumer.poll(messageListener.pollTimeoutInMillis());
+            if (deserializer != null && !consumerRecords.isEmpty()) {
+                ConsumerRecords<byte[], byte[]> rawRecords = (ConsumerRecords) consumerRecords;
+                try {
+                    consumerRecords = deserializer.apply(rawRecords);
+                } catch (RecordDeserializationException e) {
+                    consumerRecords = deserializationFailed(consumer, rawRecords, e);
+                }
+                if (deserializationErrorHandler != null) {
+                    deserializationErrorHandler.succeeded(consumerRecords);
+                }
+            }
+            metrics.recordPoll(System.nanoTime() - start, consumerRecords.count());
+            maybeUpdateLag(consumer);
+            return consumerRecords;
+        }
+
+        /**
+         * Deliver the records deserialized before the failures, and seek the failed partitions back to the
+         * failed records, so that they come first in the next poll. A failed record already first of its
+         * partition is passed to the error handler, paused for the back off, then recovered and skipped;
+         * without error handler, the batch is sought back and the exception rethrown, as for a listener.
+         */
+        private ConsumerRecords<K, V> deserializationFailed(Consumer<K, V> consumer,
+                                                            ConsumerRecords<byte[], byte[]> rawRecords,
+                                                            RecordDeserializationException exception) {
+            for (Map.Entry<TopicPartition, RecordDeserializationException> failure : exception.failures().entrySet()) {
+                TopicPartition partition = failure.getKey();
+                ConsumerRecord<byte[], byte[]> failed = failure.getValue().getRecord();
+                if (failed.offset() != rawRecords.records(partition).get(0).offset()) {
+                    consumer.seek(partition, failed.offset());
+                } else if (deserializationErrorHandler == null) {
+                    // without error handler, the consumer thread will be destroyed; seek back so that
+                    // the auto commit on close does not commit the polled records
+                    for (TopicPartition polled : rawRecords.partitions()) {
+                        consumer.seek(polled, rawRecords.records(polled).get(0).offset());
+                    }
+                    throw failure.getValue();
+                } else {
+                    deserializationErrorHandler.handle(consumer, (ConsumerRecords) new ConsumerRecords<>(
+                            Collections.singletonMap(partition, Collections.singletonList(failed))), failure.getValue());
+                }
+            }
+            return (ConsumerRecords<K, V>) exception.deserialized();
+        }
+
+        /**
+         * Update the lag of the assigned partitions, once per lag interval.
+         */
+        private void maybeUpdateLag(Consumer<K, V> consumer) {
+            long lagInterval = ListenerConsumer.this.lagInterval;
+            long now = System.currentTimeMillis();
+            if (lagInterval <= 0 || now < nextLagUpdate) {
+                return;
+            }
+            nextLagUpdate = now + lagInterval;
+            Set<TopicPartition> assignment = consumer.assignment();
+            if (assignment.isEmpty()) {
+                return;
+            }
+            try {
+                Map<TopicPartition, Long> endOffsets = consumer.endOffsets(assignment);
+                for (Map.Entry<TopicPartition, Long> entry : endOffsets.entrySet()) {
+                    if (entry.getValue() != null) {
+                        metrics.updateLag(entry.getKey(),
+                                Math.max(0, entry.getValue() - consumer.position(entry.getKey())));
+                    }
+                }
+            } catch (WakeupException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                logger.debug("failed to update the lag, message listener:" + messageListener, e);
+            }
+        }
+
+        private RecordDispatcher<K, V> createDispatcher(Consumer<K, V> consumer, OffsetTracker offsetTracker) {
+            boolean acknowledging = isAcknowledging(messageListener);
+            String threadNamePrefix = messageListener.getClass().getSimpleName() + "-" + index;
+            if (messageListener.parallelism() > 0) {
+                if (messageListener.handOffCapacity() > 0) {
+                    throw new IllegalStateException("parallelism and handOffCapacity cannot be combined, message listener:"
+                            + messageListener);
+                }
+                return new KeyOrderedRecordDispatcher<>(messageListener, acknowledging, offsetTracker,
+                        errorHandler, messageListener.parallelism(), threadNamePrefix + "-worker-");
+            }
+            if (messageListener.handOffCapacity() > 0) {
+                return new HandOffRecordDispatcher<>(messageListener, acknowledging, offsetTracker,
+                        errorHandler, messageListener.handOffCapacity(), threadNamePrefix + "-processor-");
+            }
+            if (acknowledging) {
+                return new InlineRecordDispatcher<>((AcknowledgingMessageListener<K, V>) messageListener,
+                        offsetTracker, errorHandler, consumer);
+            }
+            return null;
+        }
+
+        private void runDispatched(Consumer<K, V> consumer, boolean autoCommit, RecordDispatcher<K, V> dispatcher,
+                                   OffsetCommitter offsetCommitter) {
+            if (autoCommit) {
+                logger.warn("auto commit is enabled while the container manages the offsets, offsets of "
+                        + "records in process may be committed, message listener:" + messageListener);
+            }
+            try {
+                while (runnable) {
+                    ConsumerRecords<K, V> consumerRecords = poll(consumer);
+                    if (!consumerRecords.isEmpty()) {
+                        long start = System.nanoTime();
+                        dispatcher.dispatch(consumerRecords);
+                        metrics.recordHandler(System.nanoTime() - start);
+                    }
+                    dispatcher.pauseOrResume(consumer);
+                    if (!autoCommit) {
+                        offsetCommitter.maybeCommit(consumer);
+                    }
+                }
+            } finally {
+                try {
+                    dispatcher.shutdown(shutdownTimeout / 2, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                if (!autoCommit) {
+                    commitSync(consumer, offsetCommitter);
+                }
+            }
+        }
 
-                // when exception happens, the consumer thread will be destroyed
-                if (messageListener instanceof MessageListener) {
-                    messageListener.onMessage(consumerRecords);
-                } else if (messageListener instanceof AcknowledgingMessageListener) {
-                    messageListener.onMessage(consumerRecords, consumer);
+        private void commitSync(Consumer<K, V> consumer, OffsetCommitter offsetCommitter) {
+            try {
+                if (offsetCommitter != null) {
+                    offsetCommitter.commitSync(consumer);
                 } else {
-                    throw new UnsupportedOperationException("Unsupported message listener type:" + messageListener);
+                    try {
+                        consumer.commitSync();
+                    } catch (WakeupException e) {
+                        // woken up by the shutdown while not polling, the wakeup is cleared now
+                        consumer.commitSync();
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.warn("failed to commit offsets on shutdown, message listener:" + messageListener, e);
+            }
+        }
+
+        private void close(Consumer<K, V> consumer) {
+            try {
+                consumer.close(shutdownTimeout / 2, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                logger.warn("failed to close consumer, message listener:" + messageListener, e);
+            }
+        }
+
+        /**
+         * Passes the rebalances on to the listener, and commits the offsets of the revoked partitions
+         * once the records in process are completed, as far as the container commits the offsets.
+         */
+        private class ContainerRebalanceListener implements ConsumerRebalanceListener {
+
+            private final Consumer<K, V> consumer;
+
+            private final RecordDispatcher<K, V> dispatcher;
+
+            private final OffsetTracker offsetTracker;
+
+            private final OffsetCommitter offsetCommitter;
+
+            private ContainerRebalanceListener(Consumer<K, V> consumer, RecordDispatcher<K, V> dispatcher,
+                                               OffsetTracker offsetTracker, OffsetCommitter offsetCommitter) {
+                this.consumer = consumer;
+                this.dispatcher = dispatcher;
+                this.offsetTracker = offsetTracker;
+                this.offsetCommitter = offsetCommitter;
+            }
+
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                try {
+                    // first, so that the listener may flush and acknowledge its pending work
+                    messageListener.onPartitionsRevoked(partitions);
+                } catch (RuntimeException e) {
+                    logger.error("listener failed on partitions revoked:" + partitions, e);
+                }
+                metrics.removeLags(partitions);
+                if (this.dispatcher != null) {
+                    this.dispatcher.partitionsRevoked(partitions, shutdownTimeout / 2);
+                    if (this.offsetCommitter != null) {
+                        commitSync(this.consumer, this.offsetCommitter);
+                    }
+                    this.offsetTracker.remove(partitions);
                 }
+            }
 
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                messageListener.onPartitionsAssigned(partitions, this.consumer);
             }
 
         }
+
+        void wakeup() {
+            Consumer<K, V> consumer = this.consumer;
+            if (consumer != null) {
+                consumer.wakeup();
+            }
+        }
+
+        boolean awaitStopped(long timeout) throws InterruptedException {
+            return stopped.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return messageListener + "-" + index;
+        }
+    }
+
+    /**
+     * @param messageListener the listener.
+     * @return true if the listener implements the {@link Acknowledgment} variant of
+     * {@link AcknowledgingMessageListener#onMessage(ConsumerRecords, Acknowledgment, Consumer)}.
+     */
+    @SuppressWarnings("rawtypes")
+    private static boolean isAcknowledging(GenericMessageListener messageListener) {
+        if (!(messageListener instanceof AcknowledgingMessageListener)) {
+            return false;
+        }
+        Method method = ReflectionUtils.findMethod(messageListener.getClass(), "onMessage",
+                ConsumerRecords.class, Acknowledgment.class, Consumer.class);
+        return method != null && method.getDeclaringClass() != AcknowledgingMessageListener.class;
     }
 
     @Override
     public void onApplicationEvent(ContextRefreshedEvent event) {
         this.runnable = true;
-        try {
-            this.boot();
-        } catch (IllegalAccessException e) {
-            logger.error(e.getMessage(), e);
-        }
+        this.boot();
     }
 
     @Override
@@ -133,6 +819,18 @@ public class ListenerConsumer<K, V> implements ApplicationContextAware, Applicat
     @Override
     public void destroy() throws Exception {
         this.runnable = false;
+        // interrupt the polls instead of waiting for their timeout
+        for (KafkaConsumerRunner runner : this.runners) {
+            runner.wakeup();
+        }
+        long deadline = System.currentTimeMillis() + this.shutdownTimeout;
+        for (KafkaConsumerRunner runner : this.runners) {
+            if (!runner.awaitStopped(Math.max(0, deadline - System.currentTimeMillis()))) {
+                logger.warn("timed out waiting for the consumer to stop, runner:" + runner);
+            }
+        }
+        this.runners.clear();
+        unregisterMBeans();
     }
 
 
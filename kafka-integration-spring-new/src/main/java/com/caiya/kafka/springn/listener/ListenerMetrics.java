@@ -0,0 +1,215 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.support.LatencyHistogram;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The poll loop metrics of a listener, shared by its concurrent consumers: the polls, the records
+ * polled, the time spent polling and in the listener per polled batch, and the lag of the assigned
+ * partitions as of the last {@link ListenerConsumer#setLagInterval(long) lag update}. The counters and
+ * histograms are updated without locks nor allocation.
+ * <p>
+ * The listener time covers the invocation of the listener on the polling thread, or the hand-off to
+ * the dispatcher when the records are processed by other threads.
+ *
+ * @since 1.2.0
+ */
+public class ListenerMetrics implements ListenerMetricsMXBean {
+
+    private final String listenerName;
+
+    private final LongAdder polls = new LongAdder();
+
+    private final LongAdder idlePolls = new LongAdder();
+
+    private final LongAdder records = new LongAdder();
+
+    private final LongAccumulator maxRecordsPerPoll = new LongAccumulator(Long::max, 0);
+
+    private final LongAdder pollTime = new LongAdder();
+
+    private final LatencyHistogram pollLatency = new LatencyHistogram();
+
+    private final LongAdder handlerCalls = new LongAdder();
+
+    private final LongAdder handlerTime = new LongAdder();
+
+    private final LatencyHistogram handlerLatency = new LatencyHistogram();
+
+    private final ConcurrentMap<TopicPartition, Long> lags = new ConcurrentHashMap<>();
+
+    ListenerMetrics(String listenerName) {
+        this.listenerName = listenerName;
+    }
+
+    void recordPoll(long nanos, int recordCount) {
+        this.polls.increment();
+        if (recordCount == 0) {
+            this.idlePolls.increment();
+        } else {
+            this.records.add(recordCount);
+            this.maxRecordsPerPoll.accumulate(recordCount);
+        }
+        this.pollTime.add(nanos);
+        this.pollLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    void recordHandler(long nanos) {
+        this.handlerCalls.increment();
+        this.handlerTime.add(nanos);
+        this.handlerLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    void updateLag(TopicPartition partition, long lag) {
+        this.lags.put(partition, lag);
+    }
+
+    void removeLags(Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            this.lags.remove(partition);
+        }
+    }
+
+    @Override
+    public String getListenerName() {
+        return this.listenerName;
+    }
+
+    @Override
+    public long getPollCount() {
+        return this.polls.sum();
+    }
+
+    @Override
+    public long getIdlePollCount() {
+        return this.idlePolls.sum();
+    }
+
+    @Override
+    public long getRecordCount() {
+        return this.records.sum();
+    }
+
+    @Override
+    public long getMaxRecordsPerPoll() {
+        return this.maxRecordsPerPoll.get();
+    }
+
+    /**
+     * Return the total time spent polling, including the deserialization.
+     *
+     * @param unit the unit of the result.
+     * @return the time.
+     */
+    public double getPollTime(TimeUnit unit) {
+        return (double) this.pollTime.sum() / unit.toNanos(1);
+    }
+
+    /**
+     * Return the poll durations recorded so far.
+     *
+     * @return the snapshot, in microseconds.
+     */
+    public LatencyHistogram.Snapshot getPollLatencySnapshot() {
+        return this.pollLatency.snapshot();
+    }
+
+    @Override
+    public double getPollTimeMean() {
+        long polls = getPollCount();
+        return polls == 0 ? 0 : getPollTime(TimeUnit.MILLISECONDS) / polls;
+    }
+
+    @Override
+    public double getPollTime99thPercentile() {
+        return getPollLatencySnapshot().getValueAtPercentile(99) / 1000d;
+    }
+
+    @Override
+    public double getPollTimeMax() {
+        return getPollLatencySnapshot().getMax() / 1000d;
+    }
+
+    @Override
+    public long getHandlerCount() {
+        return this.handlerCalls.sum();
+    }
+
+    /**
+     * Return the total time spent in the listener.
+     *
+     * @param unit the unit of the result.
+     * @return the time.
+     */
+    public double getHandlerTime(TimeUnit unit) {
+        return (double) this.handlerTime.sum() / unit.toNanos(1);
+    }
+
+    /**
+     * Return the durations of the listener invocations recorded so far.
+     *
+     * @return the snapshot, in microseconds.
+     */
+    public LatencyHistogram.Snapshot getHandlerLatencySnapshot() {
+        return this.handlerLatency.snapshot();
+    }
+
+    @Override
+    public double getHandlerTimeMean() {
+        long calls = getHandlerCount();
+        return calls == 0 ? 0 : getHandlerTime(TimeUnit.MILLISECONDS) / calls;
+    }
+
+    @Override
+    public double getHandlerTime99thPercentile() {
+        return getHandlerLatencySnapshot().getValueAtPercentile(99) / 1000d;
+    }
+
+    @Override
+    public double getHandlerTimeMax() {
+        return getHandlerLatencySnapshot().getMax() / 1000d;
+    }
+
+    @Override
+    public long getTotalLag() {
+        long total = 0;
+        for (Long lag : this.lags.values()) {
+            total += lag;
+        }
+        return total;
+    }
+
+    @Override
+    public long getMaxLag() {
+        long max = 0;
+        for (Long lag : this.lags.values()) {
+            max = Math.max(max, lag);
+        }
+        return max;
+    }
+
+    @Override
+    public Map<String, Long> getPartitionLags() {
+        Map<String, Long> partitionLags = new TreeMap<>();
+        for (Map.Entry<TopicPartition, Long> entry : this.lags.entrySet()) {
+            partitionLags.put(entry.getKey().toString(), entry.getValue());
+        }
+        return Collections.unmodifiableMap(partitionLags);
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerMetrics{" + this.listenerName + "}";
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.caiya.kafka.springn.listener;
+
+import java.util.Map;
+
+/**
+ * The poll loop metrics of a listener, as exposed through JMX by the {@link ListenerConsumer}; the
+ * times are in milliseconds, since the start of the container.
+ *
+ * @since 1.2.0
+ */
+public interface ListenerMetricsMXBean {
+
+    String getListenerName();
+
+    long getPollCount();
+
+    long getIdlePollCount();
+
+    long getRecordCount();
+
+    long getMaxRecordsPerPoll();
+
+    double getPollTimeMean();
+
+    double getPollTime99thPercentile();
+
+    double getPollTimeMax();
+
+    long getHandlerCount();
+
+    double getHandlerTimeMean();
+
+    double getHandlerTime99thPercentile();
+
+    double getHandlerTimeMax();
+
+    long getTotalLag();
+
+    long getMaxLag();
+
+    Map<String, Long> getPartitionLags();
+
+}
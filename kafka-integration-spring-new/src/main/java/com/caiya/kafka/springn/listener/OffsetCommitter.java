@@ -0,0 +1,94 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Commits the offsets completed in an {@link OffsetTracker}, coalescing completions: an asynchronous
+ * commit is issued once a number of records are completed or some time elapsed since the last commit.
+ * A failed commit is retried once the time elapsed, even if no more records were completed.
+ * Polling thread only.
+ *
+ * @since 1.2.0
+ */
+class OffsetCommitter {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffsetCommitter.class);
+
+    private final OffsetTracker offsetTracker;
+
+    private final int ackCount;
+
+    private final long ackTimeInMillis;
+
+    private long lastCompleted;
+
+    private long lastCommitTime = System.currentTimeMillis();
+
+    /**
+     * Whether the last asynchronous commit failed, its callback runs on the polling thread.
+     */
+    private boolean commitFailed;
+
+    OffsetCommitter(OffsetTracker offsetTracker, int ackCount, long ackTimeInMillis) {
+        this.offsetTracker = offsetTracker;
+        this.ackCount = ackCount;
+        this.ackTimeInMillis = ackTimeInMillis;
+    }
+
+    /**
+     * Commit asynchronously if enough records were completed or enough time elapsed.
+     *
+     * @param consumer the consumer.
+     */
+    void maybeCommit(Consumer<?, ?> consumer) {
+        long completed = this.offsetTracker.completed();
+        if (completed == this.lastCompleted && !this.commitFailed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (completed - this.lastCompleted < this.ackCount && now - this.lastCommitTime < this.ackTimeInMillis) {
+            return;
+        }
+        this.lastCompleted = completed;
+        this.lastCommitTime = now;
+        this.commitFailed = false;
+        Map<TopicPartition, OffsetAndMetadata> offsets = this.offsetTracker.committable();
+        if (!offsets.isEmpty()) {
+            consumer.commitAsync(offsets, (committed, exception) -> {
+                if (exception != null) {
+                    logger.warn("failed to commit offsets:" + committed, exception);
+                    this.offsetTracker.commitFailed(committed);
+                    this.commitFailed = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Commit the completed offsets synchronously, e.g. before shutdown.
+     *
+     * @param consumer the consumer.
+     */
+    void commitSync(Consumer<?, ?> consumer) {
+        this.lastCompleted = this.offsetTracker.completed();
+        this.lastCommitTime = System.currentTimeMillis();
+        this.commitFailed = false;
+        Map<TopicPartition, OffsetAndMetadata> offsets = this.offsetTracker.committable();
+        if (!offsets.isEmpty()) {
+            try {
+                consumer.commitSync(offsets);
+            } catch (WakeupException e) {
+                // woken up by the shutdown while not polling, the wakeup is cleared now
+                consumer.commitSync(offsets);
+            }
+        }
+    }
+
+}
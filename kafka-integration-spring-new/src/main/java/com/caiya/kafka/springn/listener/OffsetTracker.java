@@ -0,0 +1,281 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the offsets handed out for processing and the ones completed, per partition, so that
+ * only the highest contiguous completed offset is committed when records complete out of order.
+ * <p>
+ * Offsets are registered and committed on the polling thread, and may be completed on any thread.
+ * The committable offset of a partition is the lowest offset still in process, or the next offset
+ * after the highest registered one when nothing is in process; gaps in the offsets (compacted topics,
+ * transaction markers) are therefore skipped naturally.
+ *
+ * @since 1.2.0
+ */
+class OffsetTracker {
+
+    private final ConcurrentMap<TopicPartition, PartitionOffsets> partitions = new ConcurrentHashMap<>();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private static final long AWAIT_COMPLETION_INTERVAL = 10;
+
+    /**
+     * Register an offset handed out for processing.
+     *
+     * @param partition the partition.
+     * @param offset    the offset.
+     */
+    void register(TopicPartition partition, long offset) {
+        register(partition, offset, offset);
+    }
+
+    /**
+     * Register a batch of consecutive records of a partition handed out for processing as a whole;
+     * the batch is completed with {@link #complete(TopicPartition, long)} of its first offset.
+     *
+     * @param partition   the partition.
+     * @param firstOffset the offset of the first record.
+     * @param lastOffset  the offset of the last record.
+     */
+    void register(TopicPartition partition, long firstOffset, long lastOffset) {
+        PartitionOffsets offsets = this.partitions.computeIfAbsent(partition, tp -> new PartitionOffsets());
+        offsets.pending.add(firstOffset);
+        offsets.pendingCount.incrementAndGet();
+        if (lastOffset >= offsets.nextOffset) {
+            offsets.nextOffset = lastOffset + 1;
+        }
+    }
+
+    /**
+     * Mark an offset as completed; ignored if the partition is no longer tracked.
+     *
+     * @param partition the partition.
+     * @param offset    the offset.
+     */
+    void complete(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = this.partitions.get(partition);
+        if (offsets != null && offsets.pending.remove(offset)) {
+            offsets.pendingCount.decrementAndGet();
+            this.completed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget an offset registered but never handed out, e.g. a batch discarded on revoke: it is not
+     * completed, and no offset from it on is committed.
+     *
+     * @param partition the partition.
+     * @param offset    the offset, or first offset of the batch.
+     */
+    void discard(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = this.partitions.get(partition);
+        if (offsets != null && offsets.pending.remove(offset)) {
+            offsets.pendingCount.decrementAndGet();
+            if (offset < offsets.nextOffset) {
+                offsets.nextOffset = offset;
+            }
+        }
+    }
+
+    /**
+     * Wait for the offsets of the partitions in process to be completed.
+     *
+     * @param partitions    the partitions.
+     * @param timeoutMillis the maximum time to wait.
+     * @return true if completed, false if timed out or interrupted.
+     */
+    boolean awaitCompletion(Collection<TopicPartition> partitions, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            int pending = 0;
+            for (TopicPartition partition : partitions) {
+                pending += pending(partition);
+            }
+            if (pending == 0) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(AWAIT_COMPLETION_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Return an {@link Acknowledgment} completing the offsets of the records, which must be registered
+     * one by one.
+     *
+     * @param records the records.
+     * @return the acknowledgment.
+     */
+    Acknowledgment acknowledgment(ConsumerRecords<?, ?> records) {
+        return new TrackingAcknowledgment(records);
+    }
+
+    /**
+     * @return the number of offsets completed so far.
+     */
+    long completed() {
+        return this.completed.get();
+    }
+
+    /**
+     * @param partition the partition.
+     * @return the number of offsets of the partition still in process.
+     */
+    int pending(TopicPartition partition) {
+        PartitionOffsets offsets = this.partitions.get(partition);
+        return offsets == null ? 0 : offsets.pendingCount.get();
+    }
+
+    /**
+     * @return the number of offsets of all partitions still in process.
+     */
+    int pending() {
+        int pending = 0;
+        for (PartitionOffsets offsets : this.partitions.values()) {
+            pending += offsets.pendingCount.get();
+        }
+        return pending;
+    }
+
+    /**
+     * @return the tracked partitions.
+     */
+    Collection<TopicPartition> partitions() {
+        return Collections.unmodifiableSet(this.partitions.keySet());
+    }
+
+    /**
+     * Return the offsets to commit for the partitions that made progress since the last call;
+     * the returned offsets are considered committed from now on.
+     *
+     * @return the offsets to commit, may be empty.
+     */
+    Map<TopicPartition, OffsetAndMetadata> committable() {
+        Map<TopicPartition, OffsetAndMetadata> committable = null;
+        for (Map.Entry<TopicPartition, PartitionOffsets> entry : this.partitions.entrySet()) {
+            PartitionOffsets offsets = entry.getValue();
+            long commitOffset = offsets.commitOffset();
+            if (commitOffset > offsets.committed) {
+                offsets.committed = commitOffset;
+                if (committable == null) {
+                    committable = new HashMap<>();
+                }
+                committable.put(entry.getKey(), new OffsetAndMetadata(commitOffset));
+            }
+        }
+        return committable == null ? Collections.emptyMap() : committable;
+    }
+
+    /**
+     * Undo {@link #committable()} for offsets whose commit failed, so they are returned again.
+     *
+     * @param failed the offsets failed to commit.
+     */
+    void commitFailed(Map<TopicPartition, OffsetAndMetadata> failed) {
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : failed.entrySet()) {
+            PartitionOffsets offsets = this.partitions.get(entry.getKey());
+            if (offsets != null && offsets.committed == entry.getValue().offset()) {
+                offsets.committed = -1;
+            }
+        }
+    }
+
+    /**
+     * Account for a seek of the partition: the offsets before the seek offset are considered completed,
+     * and the ones from the seek offset on are discarded since they will be delivered again.
+     *
+     * @param partition the partition.
+     * @param offset    the seek offset.
+     */
+    void rewind(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = this.partitions.get(partition);
+        if (offsets == null) {
+            return;
+        }
+        Long pending;
+        while ((pending = offsets.pending.pollFirst()) != null) {
+            offsets.pendingCount.decrementAndGet();
+            if (pending < offset) {
+                this.completed.incrementAndGet();
+            }
+        }
+        offsets.nextOffset = offset;
+    }
+
+    /**
+     * Stop tracking the partitions, e.g. when they are revoked.
+     *
+     * @param partitions the partitions.
+     */
+    void remove(Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            this.partitions.remove(partition);
+        }
+    }
+
+    private final class TrackingAcknowledgment implements Acknowledgment {
+
+        private final ConsumerRecords<?, ?> records;
+
+        private TrackingAcknowledgment(ConsumerRecords<?, ?> records) {
+            this.records = records;
+        }
+
+        @Override
+        public void acknowledge() {
+            for (TopicPartition partition : this.records.partitions()) {
+                for (ConsumerRecord<?, ?> record : this.records.records(partition)) {
+                    complete(partition, record.offset());
+                }
+            }
+        }
+
+        @Override
+        public void acknowledge(ConsumerRecord<?, ?> record) {
+            complete(new TopicPartition(record.topic(), record.partition()), record.offset());
+        }
+
+    }
+
+    private static final class PartitionOffsets {
+
+        private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+
+        private final AtomicInteger pendingCount = new AtomicInteger();
+
+        private volatile long nextOffset = -1;
+
+        private volatile long committed = -1;
+
+        long commitOffset() {
+            // read the high watermark first, a concurrent completion cannot make it stale
+            long next = this.nextOffset;
+            Long lowestPending = this.pending.ceiling(Long.MIN_VALUE);
+            return lowestPending == null ? next : Math.min(lowestPending, next);
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.KafkaException;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.ExtendedDeserializer;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ClassUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Deserializes the raw records polled by a consumer created with
+ * {@link com.caiya.kafka.springn.core.ConsumerFactory#createRawConsumer(String, String)}, spreading the work
+ * over an {@link Executor} so that expensive deserializers do not serialize the polling thread.
+ * <p>
+ * The records of each partition are split into chunks deserialized concurrently, then reassembled in their
+ * original order, so the per partition ordering is preserved; the records of small partitions are packed
+ * together into chunks. Small batches, and the last chunk of a batch, are deserialized on the calling thread.
+ * The deserializers are shared by the threads of the executor, hence must be thread-safe.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+class ParallelDeserializer<K, V> {
+
+    /**
+     * The number of records deserialized by one task, and up to which a batch is deserialized on the
+     * calling thread.
+     */
+    static final int CHUNK_SIZE = 32;
+
+    private final ExtendedDeserializer<K> keyDeserializer;
+
+    private final ExtendedDeserializer<V> valueDeserializer;
+
+    private final Executor executor;
+
+    ParallelDeserializer(Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer, Executor executor) {
+        this.keyDeserializer = ExtendedDeserializer.Wrapper.ensureExtended(keyDeserializer);
+        this.valueDeserializer = ExtendedDeserializer.Wrapper.ensureExtended(valueDeserializer);
+        this.executor = executor;
+    }
+
+    /**
+     * Deserialize the records, preserving their order within each partition. The records of a partition
+     * are deserialized up to the first failed one.
+     *
+     * @param records the raw records.
+     * @return the deserialized records.
+     * @throws RecordDeserializationException if a record cannot be deserialized, carrying the records
+     *                                        deserialized before the failures.
+     */
+    ConsumerRecords<K, V> deserialize(ConsumerRecords<byte[], byte[]> records) {
+        Map<TopicPartition, List<Slice<K, V>>> slices = new LinkedHashMap<>();
+        List<Slice<K, V>> task = new ArrayList<>();
+        int taskSize = 0;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        boolean inline = records.count() <= CHUNK_SIZE;
+        for (TopicPartition partition : records.partitions()) {
+            List<ConsumerRecord<byte[], byte[]>> partitionRecords = records.records(partition);
+            List<Slice<K, V>> partitionSlices = new ArrayList<>();
+            for (int from = 0; from < partitionRecords.size(); from += CHUNK_SIZE) {
+                Slice<K, V> slice = new Slice<>(partitionRecords.subList(from,
+                        Math.min(from + CHUNK_SIZE, partitionRecords.size())));
+                partitionSlices.add(slice);
+                if (!inline && taskSize + slice.raw.size() > CHUNK_SIZE && !task.isEmpty()) {
+                    futures.add(submit(task));
+                    task = new ArrayList<>();
+                    taskSize = 0;
+                }
+                // the slices of small partitions are packed together
+                task.add(slice);
+                taskSize += slice.raw.size();
+            }
+            slices.put(partition, partitionSlices);
+        }
+        // the last task on the calling thread
+        deserializeSlices(task);
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                throw new KafkaException("failed to deserialize records", e.getCause());
+            }
+        }
+        Map<TopicPartition, List<ConsumerRecord<K, V>>> deserialized = new LinkedHashMap<>();
+        Map<TopicPartition, RecordDeserializationException> failures = null;
+        for (Map.Entry<TopicPartition, List<Slice<K, V>>> entry : slices.entrySet()) {
+            List<ConsumerRecord<K, V>> partitionRecords = new ArrayList<>(records.records(entry.getKey()).size());
+            for (Slice<K, V> slice : entry.getValue()) {
+                partitionRecords.addAll(slice.chunk.records);
+                if (slice.chunk.failure != null) {
+                    // the next slices are deserialized again after the failed record
+                    failures = failures == null ? new LinkedHashMap<>() : failures;
+                    failures.put(entry.getKey(), slice.chunk.failure);
+                    break;
+                }
+            }
+            if (!partitionRecords.isEmpty()) {
+                deserialized.put(entry.getKey(), partitionRecords);
+            }
+        }
+        if (failures != null) {
+            throw new RecordDeserializationException(failures.values().iterator().next(),
+                    new ConsumerRecords<>(deserialized), failures);
+        }
+        return new ConsumerRecords<>(deserialized);
+    }
+
+    private CompletableFuture<Void> submit(List<Slice<K, V>> task) {
+        return CompletableFuture.runAsync(() -> deserializeSlices(task), this.executor);
+    }
+
+    private void deserializeSlices(List<Slice<K, V>> task) {
+        for (Slice<K, V> slice : task) {
+            // published to the calling thread by the completion of the task
+            slice.chunk = deserialize(slice.raw);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private Chunk<K, V> deserialize(List<ConsumerRecord<byte[], byte[]>> records) {
+        List<ConsumerRecord<K, V>> deserialized = new ArrayList<>(records.size());
+        for (ConsumerRecord<byte[], byte[]> record : records) {
+            try {
+                K key = record.key() == null ? null
+                        : this.keyDeserializer.deserialize(record.topic(), record.headers(), record.key());
+                V value = record.value() == null ? null
+                        : this.valueDeserializer.deserialize(record.topic(), record.headers(), record.value());
+                deserialized.add(new ConsumerRecord<>(record.topic(), record.partition(), record.offset(),
+                        record.timestamp(), record.timestampType(), record.checksum(), record.serializedKeySize(),
+                        record.serializedValueSize(), key, value, record.headers()));
+            } catch (RuntimeException e) {
+                return new Chunk<>(deserialized, new RecordDeserializationException("failed to deserialize record, "
+                        + "partition:" + record.topic() + "-" + record.partition() + ", offset:" + record.offset(),
+                        e, record));
+            }
+        }
+        return new Chunk<>(deserialized, null);
+    }
+
+    /**
+     * Resolve a deserializer configured by class or class name in the consumer properties, as the
+     * {@code KafkaConsumer} would.
+     *
+     * @param configs the consumer properties.
+     * @param isKey   whether it is the key deserializer.
+     * @param <T>     the deserialized type.
+     * @return the configured deserializer.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Deserializer<T> configuredDeserializer(Map<String, Object> configs, boolean isKey) {
+        String name = isKey ? ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG : ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG;
+        Object value = configs.get(name);
+        if (value == null) {
+            throw new IllegalStateException("no deserializer configured with '" + name + "'");
+        }
+        Class<?> type;
+        if (value instanceof Class) {
+            type = (Class<?>) value;
+        } else {
+            try {
+                type = ClassUtils.forName(value.toString().trim(), ClassUtils.getDefaultClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("deserializer class not found: " + value, e);
+            }
+        }
+        Deserializer<T> deserializer = (Deserializer<T>) BeanUtils.instantiateClass(type);
+        deserializer.configure(configs, isKey);
+        return deserializer;
+    }
+
+    /**
+     * Consecutive records of a partition, at most {@link #CHUNK_SIZE}.
+     */
+    private static final class Slice<K, V> {
+
+        private final List<ConsumerRecord<byte[], byte[]>> raw;
+
+        private Chunk<K, V> chunk;
+
+        private Slice(List<ConsumerRecord<byte[], byte[]>> raw) {
+            this.raw = raw;
+        }
+
+    }
+
+    private static final class Chunk<K, V> {
+
+        private final List<ConsumerRecord<K, V>> records;
+
+        private final RecordDeserializationException failure;
+
+        private Chunk(List<ConsumerRecord<K, V>> records, RecordDeserializationException failure) {
+            this.records = records;
+            this.failure = failure;
+        }
+
+    }
+
+}
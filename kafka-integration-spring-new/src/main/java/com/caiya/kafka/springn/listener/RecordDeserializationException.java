@@ -0,0 +1,69 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.KafkaException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Thrown when a record polled for a listener using {@link GenericMessageListener#parallelDeserialization()}
+ * cannot be deserialized. The failed record is passed as is, with its byte array key and value, to the
+ * {@link ErrorHandler}, like a record failed by the listener, hence the recoverer must accept raw records,
+ * see the raw template of {@link DeadLetterPublishingRecoverer}.
+ *
+ * @since 1.2.0
+ */
+@SuppressWarnings("serial")
+public class RecordDeserializationException extends KafkaException {
+
+    private final transient ConsumerRecord<byte[], byte[]> record;
+
+    private final transient ConsumerRecords<?, ?> deserialized;
+
+    private final transient Map<TopicPartition, RecordDeserializationException> failures;
+
+    public RecordDeserializationException(String message, Throwable cause, ConsumerRecord<byte[], byte[]> record) {
+        super(message, cause);
+        this.record = record;
+        this.deserialized = ConsumerRecords.empty();
+        this.failures = Collections.singletonMap(new TopicPartition(record.topic(), record.partition()), this);
+    }
+
+    /**
+     * Create an exception for a polled batch.
+     *
+     * @param first        the failure of the first failed partition.
+     * @param deserialized the records of the batch deserialized before the failures.
+     * @param failures     the failure of each failed partition.
+     */
+    RecordDeserializationException(RecordDeserializationException first, ConsumerRecords<?, ?> deserialized,
+                                   Map<TopicPartition, RecordDeserializationException> failures) {
+        super(first.getMessage(), first.getCause());
+        this.record = first.getRecord();
+        this.deserialized = deserialized;
+        this.failures = failures;
+    }
+
+    public ConsumerRecord<byte[], byte[]> getRecord() {
+        return this.record;
+    }
+
+    /**
+     * @return the records of the polled batch deserialized before the failures: all the records of the
+     * partitions without failure, and the ones before the failed record of the others.
+     */
+    ConsumerRecords<?, ?> deserialized() {
+        return this.deserialized;
+    }
+
+    /**
+     * @return the failure of each failed partition of the polled batch, for its first failed record.
+     */
+    Map<TopicPartition, RecordDeserializationException> failures() {
+        return this.failures;
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the records polled by a consumer to other threads for processing, so that the polling thread
+ * keeps polling. The progress of the records is reported to an {@link OffsetTracker}, and all methods
+ * are invoked on the polling thread.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+interface RecordDispatcher<K, V> {
+
+    /**
+     * Hand the records to the processing threads.
+     *
+     * @param records the polled records.
+     */
+    void dispatch(ConsumerRecords<K, V> records);
+
+    /**
+     * Pause the partitions which the processing threads cannot keep up with, and resume the paused
+     * ones which have caught up.
+     *
+     * @param consumer the consumer.
+     */
+    void pauseOrResume(Consumer<K, V> consumer);
+
+    /**
+     * Prepare the revocation of partitions: discard their records not handed out yet and wait for the
+     * ones in process to be completed, so that their offsets are committed before the partitions move
+     * to another consumer.
+     *
+     * @param partitions    the revoked partitions.
+     * @param timeoutMillis the maximum time to wait.
+     */
+    default void partitionsRevoked(Collection<TopicPartition> partitions, long timeoutMillis) {
+    }
+
+    /**
+     * Stop accepting records and wait for the processing threads to complete the ones in process.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the time unit.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException;
+
+}
@@ -0,0 +1,94 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.BackOffExecution;
+import org.springframework.util.backoff.ExponentialBackOff;
+
+import java.util.function.BiConsumer;
+
+/**
+ * The default {@link ErrorHandler}: retries with a {@link BackOff}, exponential by default, then hands
+ * the records over to a recoverer, which logs them by default.
+ *
+ * @see DeadLetterPublishingRecoverer
+ * @since 1.2.0
+ */
+public class RetryingErrorHandler implements ErrorHandler {
+
+    /**
+     * Default initial back off in milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_INTERVAL = 100;
+
+    /**
+     * Default back off multiplier.
+     */
+    public static final double DEFAULT_MULTIPLIER = 2;
+
+    /**
+     * Default maximum back off in milliseconds.
+     */
+    public static final long DEFAULT_MAX_INTERVAL = 10000;
+
+    /**
+     * Default maximum accumulated back off in milliseconds, before recovering.
+     */
+    public static final long DEFAULT_MAX_ELAPSED_TIME = 30000;
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryingErrorHandler.class);
+
+    private final BackOff backOff;
+
+    private final BiConsumer<ConsumerRecord<?, ?>, Exception> recoverer;
+
+    /**
+     * Create an instance with the default exponential back off, logging the records on recovery.
+     */
+    public RetryingErrorHandler() {
+        this((record, exception) -> logger.error("Retries exhausted, skipping record:" + record, exception));
+    }
+
+    /**
+     * Create an instance with the default exponential back off and the supplied recoverer.
+     *
+     * @param recoverer the recoverer.
+     */
+    public RetryingErrorHandler(BiConsumer<ConsumerRecord<?, ?>, Exception> recoverer) {
+        this(defaultBackOff(), recoverer);
+    }
+
+    /**
+     * Create an instance with the supplied back off and recoverer.
+     *
+     * @param backOff   the back off.
+     * @param recoverer the recoverer.
+     */
+    public RetryingErrorHandler(BackOff backOff, BiConsumer<ConsumerRecord<?, ?>, Exception> recoverer) {
+        Assert.notNull(backOff, "'backOff' cannot be null");
+        Assert.notNull(recoverer, "'recoverer' cannot be null");
+        this.backOff = backOff;
+        this.recoverer = recoverer;
+    }
+
+    private static BackOff defaultBackOff() {
+        ExponentialBackOff backOff = new ExponentialBackOff(DEFAULT_INITIAL_INTERVAL, DEFAULT_MULTIPLIER);
+        backOff.setMaxInterval(DEFAULT_MAX_INTERVAL);
+        backOff.setMaxElapsedTime(DEFAULT_MAX_ELAPSED_TIME);
+        return backOff;
+    }
+
+    @Override
+    public BackOffExecution start(ConsumerRecord<?, ?> record, Exception exception) {
+        return this.backOff.start();
+    }
+
+    @Override
+    public void recover(ConsumerRecord<?, ?> record, Exception exception) {
+        this.recoverer.accept(record, exception);
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.backoff.BackOffExecution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies an {@link ErrorHandler} on the polling thread: the partitions of a failed batch are sought back
+ * so that the records are redelivered, and the partition of the failed record is paused for the back off
+ * instead of sleeping, so that polling goes on. Polling thread only.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+class SeekToCurrentHandler<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SeekToCurrentHandler.class);
+
+    private final ErrorHandler errorHandler;
+
+    private final OffsetTracker offsetTracker;
+
+    private final Map<TopicPartition, FailedDelivery> failures = new HashMap<>();
+
+    private final boolean wholeBatch;
+
+    private final Map<TopicPartition, Long> backingOff = new HashMap<>();
+
+    /**
+     * @param errorHandler  the error handler.
+     * @param offsetTracker the offset tracker of the records, or null if the container does not commit.
+     */
+    SeekToCurrentHandler(ErrorHandler errorHandler, OffsetTracker offsetTracker) {
+        this(errorHandler, offsetTracker, false);
+    }
+
+    /**
+     * @param errorHandler  the error handler.
+     * @param offsetTracker the offset tracker of the records, or null if the container does not commit.
+     * @param wholeBatch    true if the records before the failed one of a {@link BatchListenerFailedException}
+     *                      are not processed either, their transaction being aborted.
+     */
+    SeekToCurrentHandler(ErrorHandler errorHandler, OffsetTracker offsetTracker, boolean wholeBatch) {
+        this.errorHandler = errorHandler;
+        this.offsetTracker = offsetTracker;
+        this.wholeBatch = wholeBatch;
+    }
+
+    /**
+     * Handle the exception thrown by the listener for the records.
+     *
+     * @param consumer  the consumer.
+     * @param records   the records delivered to the listener.
+     * @param exception the exception.
+     */
+    void handle(Consumer<K, V> consumer, ConsumerRecords<K, V> records, Exception exception) {
+        ConsumerRecord<?, ?> failed = this.wholeBatch ? null : BatchListenerFailedException.failedRecord(exception);
+        ConsumerRecord<?, ?> first = failed != null ? failed
+                : records.records(records.partitions().iterator().next()).get(0);
+        TopicPartition failedPartition = new TopicPartition(first.topic(), first.partition());
+        FailedDelivery delivery = this.failures.get(failedPartition);
+        if (delivery == null || delivery.offset != first.offset()) {
+            delivery = new FailedDelivery(first.offset(), this.errorHandler.start(first, exception));
+            this.failures.put(failedPartition, delivery);
+        }
+        long backOff = delivery.execution.nextBackOff();
+        boolean recovered = false;
+        if (backOff == BackOffExecution.STOP) {
+            try {
+                if (failed != null) {
+                    this.errorHandler.recover(failed, exception);
+                } else {
+                    for (ConsumerRecord<K, V> record : records) {
+                        this.errorHandler.recover(record, exception);
+                    }
+                }
+                recovered = true;
+                this.failures.remove(failedPartition);
+            } catch (Exception e) {
+                logger.error("Failed to recover records, retrying, partition:" + failedPartition, e);
+                delivery.execution = this.errorHandler.start(first, exception);
+                backOff = Math.max(0, delivery.execution.nextBackOff());
+            }
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Listener failed, retrying in " + backOff + "ms, partition:" + failedPartition
+                    + ", offset:" + first.offset(), exception);
+        }
+        for (TopicPartition partition : records.partitions()) {
+            List<ConsumerRecord<K, V>> partitionRecords = records.records(partition);
+            long seekOffset;
+            if (recovered && failed == null) {
+                // the whole batch is recovered
+                seekOffset = partitionRecords.get(partitionRecords.size() - 1).offset() + 1;
+            } else if (failed != null && partition.equals(failedPartition)) {
+                // the records before the failed one are processed
+                seekOffset = recovered ? failed.offset() + 1 : failed.offset();
+            } else {
+                seekOffset = partitionRecords.get(0).offset();
+            }
+            consumer.seek(partition, seekOffset);
+            if (this.offsetTracker != null) {
+                this.offsetTracker.rewind(partition, seekOffset);
+            }
+        }
+        if (!recovered && backOff > 0) {
+            consumer.pause(Collections.singleton(failedPartition));
+            this.backingOff.put(failedPartition, System.currentTimeMillis() + backOff);
+        }
+    }
+
+    /**
+     * Forget the failures of the partitions of records processed successfully.
+     *
+     * @param records the records.
+     */
+    void succeeded(ConsumerRecords<K, V> records) {
+        if (!this.failures.isEmpty()) {
+            this.failures.keySet().removeAll(records.partitions());
+        }
+    }
+
+    /**
+     * Resume the partitions whose back off elapsed.
+     *
+     * @param consumer the consumer.
+     */
+    void resumeDue(Consumer<K, V> consumer) {
+        if (this.backingOff.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Set<TopicPartition> assignment = consumer.assignment();
+        List<TopicPartition> toResume = null;
+        Iterator<Map.Entry<TopicPartition, Long>> iterator = this.backingOff.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TopicPartition, Long> entry = iterator.next();
+            if (!assignment.contains(entry.getKey())) {
+                iterator.remove();
+            } else if (entry.getValue() <= now) {
+                iterator.remove();
+                toResume = toResume == null ? new ArrayList<>() : toResume;
+                toResume.add(entry.getKey());
+            }
+        }
+        if (toResume != null) {
+            consumer.resume(toResume);
+        }
+    }
+
+    private static final class FailedDelivery {
+
+        private final long offset;
+
+        private BackOffExecution execution;
+
+        private FailedDelivery(long offset, BackOffExecution execution) {
+            this.offset = offset;
+            this.execution = execution;
+        }
+
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.Consumer;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * The {@link Consumer} passed to {@link AcknowledgingMessageListener}s invoked on threads other than
+ * the polling thread: the container commits the offsets itself, so commits are ignored, and any other
+ * operation is rejected since a {@link Consumer} is not safe for multi-threaded access.
+ *
+ * @since 1.2.0
+ */
+final class WorkerConsumer {
+
+    static final Consumer<?, ?> INSTANCE = (Consumer<?, ?>) Proxy.newProxyInstance(
+            WorkerConsumer.class.getClassLoader(), new Class<?>[]{Consumer.class},
+            (proxy, method, args) -> {
+                if (method.getName().startsWith("commit")) {
+                    return null;
+                }
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.getName().equals("equals") ? proxy == args[0]
+                            : method.getName().equals("hashCode") ? System.identityHashCode(proxy)
+                            : "WorkerConsumer";
+                }
+                throw new UnsupportedOperationException("Consumer." + method.getName()
+                        + "() is not available off the polling thread");
+            });
+
+    private WorkerConsumer() {
+    }
+
+}
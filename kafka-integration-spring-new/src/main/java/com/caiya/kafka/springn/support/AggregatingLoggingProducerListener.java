@@ -0,0 +1,279 @@
+package com.caiya.kafka.springn.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link ProducerListener} logging the failed sends in summaries, per topic and exception type and
+ * per window, from a background thread: the sender only counts the failure and may keep the record
+ * as one of a bounded number of samples, the formatting of the samples and the logging are deferred.
+ * A broker outage thus logs a few lines per window instead of a line per record.
+ * <p>
+ * The failures of a window are aggregated in a generation replaced by the summary, so that the
+ * count and the samples of a summary are those of the same failures.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @see LoggingProducerListener
+ * @since 1.2.0
+ */
+public class AggregatingLoggingProducerListener<K, V> implements ProducerListener<K, V>, DisposableBean {
+
+    private static final Log log = LogFactory.getLog(AggregatingLoggingProducerListener.class);
+
+    private static final long DEFAULT_WINDOW = 5000;
+
+    private static final int DEFAULT_MAX_SAMPLES = 3;
+
+    private final ConcurrentMap<String, ConcurrentMap<Class<?>, ErrorAggregate>> aggregates = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private volatile long window = DEFAULT_WINDOW;
+
+    private volatile int maxSamples = DEFAULT_MAX_SAMPLES;
+
+    private volatile boolean includeContents = true;
+
+    private volatile int maxContentLogged = 100;
+
+    private volatile boolean running = true;
+
+    private volatile Thread logger;
+
+    /**
+     * Set the period of the summaries; default {@value #DEFAULT_WINDOW}.
+     *
+     * @param window the period in milliseconds.
+     */
+    public void setWindow(long window) {
+        Assert.isTrue(window > 0, "'window' must be positive");
+        this.window = window;
+    }
+
+    /**
+     * Set the maximum number of records sampled per topic, exception type and window; default
+     * {@value #DEFAULT_MAX_SAMPLES}.
+     *
+     * @param maxSamples the number of samples.
+     */
+    public void setMaxSamples(int maxSamples) {
+        Assert.isTrue(maxSamples >= 0, "'maxSamples' cannot be negative");
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Whether the samples should include the contents (key and payload).
+     *
+     * @param includeContents true if the contents of the sampled messages should be logged
+     */
+    public void setIncludeContents(boolean includeContents) {
+        this.includeContents = includeContents;
+    }
+
+    /**
+     * The maximum amount of data to be logged for either key or payload of the samples.
+     *
+     * @param maxContentLogged the maximum amount of data being logged.
+     */
+    public void setMaxContentLogged(int maxContentLogged) {
+        this.maxContentLogged = maxContentLogged;
+    }
+
+    @Override
+    public void onError(String topic, Integer partition, K key, V value, Exception exception) {
+        if (!log.isErrorEnabled() || !this.running) {
+            return;
+        }
+        ConcurrentMap<Class<?>, ErrorAggregate> topicAggregates = this.aggregates.get(topic);
+        if (topicAggregates == null) {
+            topicAggregates = this.aggregates.computeIfAbsent(topic, t -> new ConcurrentHashMap<>());
+        }
+        while (true) {
+            ErrorAggregate aggregate = topicAggregates.get(exception.getClass());
+            if (aggregate == null) {
+                aggregate = topicAggregates.computeIfAbsent(exception.getClass(), type -> new ErrorAggregate());
+            }
+            if (aggregate.add(partition, key, value, exception)) {
+                break;
+            }
+            // retired by a summary meanwhile, added to the next generation
+        }
+        if (!this.started.get() && this.started.compareAndSet(false, true)) {
+            start();
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        this.running = false;
+        Thread logger = this.logger;
+        if (logger != null) {
+            logger.interrupt();
+            logger.join(this.window);
+        }
+    }
+
+    private void start() {
+        Thread logger = new Thread(this::run, "kafka-producer-error-logger");
+        logger.setDaemon(true);
+        this.logger = logger;
+        logger.start();
+    }
+
+    private void run() {
+        try {
+            while (this.running) {
+                Thread.sleep(this.window);
+                logSummaries();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // the failures of the last window
+            logSummaries();
+        }
+    }
+
+    /**
+     * Log a summary per topic and exception type with failures since the last summaries, and retire
+     * their generation.
+     */
+    void logSummaries() {
+        for (Map.Entry<String, ConcurrentMap<Class<?>, ErrorAggregate>> topicEntry : this.aggregates.entrySet()) {
+            ConcurrentMap<Class<?>, ErrorAggregate> topicAggregates = topicEntry.getValue();
+            for (Map.Entry<Class<?>, ErrorAggregate> entry : topicAggregates.entrySet()) {
+                ErrorAggregate aggregate = entry.getValue();
+                if (aggregate.count.sum() == 0) {
+                    continue;
+                }
+                // the next failures start a new generation
+                topicAggregates.remove(entry.getKey(), aggregate);
+                aggregate.retire();
+                try {
+                    logSummary(topicEntry.getKey(), entry.getKey(), aggregate);
+                } catch (RuntimeException e) {
+                    log.warn("Failed to log the send failures to topic " + topicEntry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private void logSummary(String topic, Class<?> exceptionType, ErrorAggregate aggregate) {
+        long count = aggregate.count.sum();
+        int sampleCount = Math.min(aggregate.sampleCount.get(), aggregate.samples.length());
+        Exception exception = null;
+        StringBuilder logOutput = new StringBuilder();
+        logOutput.append("Failed to send ").append(count).append(count == 1 ? " message" : " messages")
+                .append(" to topic ").append(topic).append(" with ").append(exceptionType.getName())
+                .append(" in the last ").append(this.window).append(" ms");
+        for (int i = 0; i < sampleCount; i++) {
+            Sample sample = aggregate.samples.get(i);
+            if (exception == null) {
+                exception = sample.exception;
+            }
+            logOutput.append("\n  sample:");
+            if (this.includeContents) {
+                logOutput.append(" key='").append(toDisplayString(ObjectUtils.nullSafeToString(sample.key)))
+                        .append("' and payload='").append(toDisplayString(ObjectUtils.nullSafeToString(sample.value)))
+                        .append("'");
+            }
+            if (sample.partition != null) {
+                logOutput.append(" to partition ").append(sample.partition);
+            }
+            logOutput.append(": ").append(sample.exception.getMessage());
+        }
+        if (exception != null) {
+            logOutput.append("\nFirst sampled exception:");
+        }
+        log.error(logOutput, exception);
+    }
+
+    private String toDisplayString(String original) {
+        int maxCharacters = this.maxContentLogged;
+        if (original.length() <= maxCharacters) {
+            return original;
+        }
+        return original.substring(0, maxCharacters) + "...";
+    }
+
+    /**
+     * The failures of a topic and exception type in a window.
+     */
+    private final class ErrorAggregate {
+
+        private final LongAdder count = new LongAdder();
+
+        private final AtomicInteger sampleCount = new AtomicInteger();
+
+        private final AtomicReferenceArray<Sample> samples = new AtomicReferenceArray<>(maxSamples);
+
+        private final AtomicInteger writers = new AtomicInteger();
+
+        private volatile boolean retired;
+
+        /**
+         * Count the failure and keep it as a sample if there is room left.
+         *
+         * @return false if the aggregate is retired, the failure must be added to the next one.
+         */
+        private boolean add(Integer partition, Object key, Object value, Exception exception) {
+            this.writers.incrementAndGet();
+            try {
+                if (this.retired) {
+                    return false;
+                }
+                this.count.increment();
+                int sample = this.sampleCount.get();
+                if (sample < this.samples.length() && this.sampleCount.compareAndSet(sample, sample + 1)) {
+                    this.samples.set(sample, new Sample(partition, key, value, exception));
+                }
+                return true;
+            } finally {
+                this.writers.decrementAndGet();
+            }
+        }
+
+        /**
+         * Stop the additions, and wait for the ones in progress, so that the aggregate is complete.
+         */
+        private void retire() {
+            this.retired = true;
+            while (this.writers.get() > 0) {
+                Thread.yield();
+            }
+        }
+
+    }
+
+    private static final class Sample {
+
+        private final Integer partition;
+
+        private final Object key;
+
+        private final Object value;
+
+        private final Exception exception;
+
+        private Sample(Integer partition, Object key, Object value, Exception exception) {
+            this.partition = partition;
+            this.key = key;
+            this.value = value;
+            this.exception = exception;
+        }
+
+    }
+
+}
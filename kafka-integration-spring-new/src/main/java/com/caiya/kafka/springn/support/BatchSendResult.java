@@ -0,0 +1,92 @@
+package com.caiya.kafka.springn.support;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result for a ListenableFuture after a batch send, holding the outcome of each record in the order
+ * of the batch; some records may have failed while others succeeded, see {@link #hasFailures()}.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @since 1.2.0
+ */
+public class BatchSendResult<K, V> {
+
+    private final List<ProducerRecord<K, V>> producerRecords;
+
+    private final RecordMetadata[] recordMetadata;
+
+    private final Exception[] exceptions;
+
+    private final int failedCount;
+
+    public BatchSendResult(List<ProducerRecord<K, V>> producerRecords, RecordMetadata[] recordMetadata,
+                           Exception[] exceptions) {
+        this.producerRecords = Collections.unmodifiableList(producerRecords);
+        this.recordMetadata = recordMetadata;
+        this.exceptions = exceptions;
+        int failedCount = 0;
+        for (Exception exception : exceptions) {
+            if (exception != null) {
+                failedCount++;
+            }
+        }
+        this.failedCount = failedCount;
+    }
+
+    public int size() {
+        return this.producerRecords.size();
+    }
+
+    public List<ProducerRecord<K, V>> getProducerRecords() {
+        return this.producerRecords;
+    }
+
+    /**
+     * @param index the index of the record in the batch.
+     * @return the metadata of the record, or null if it failed.
+     */
+    public RecordMetadata getRecordMetadata(int index) {
+        return this.recordMetadata[index];
+    }
+
+    /**
+     * @param index the index of the record in the batch.
+     * @return the exception of the record, or null if it succeeded.
+     */
+    public Exception getException(int index) {
+        return this.exceptions[index];
+    }
+
+    public boolean hasFailures() {
+        return this.failedCount > 0;
+    }
+
+    public int getFailedCount() {
+        return this.failedCount;
+    }
+
+    /**
+     * @return the results of the records sent successfully, in the order of the batch.
+     */
+    public List<SendResult<K, V>> getSendResults() {
+        List<SendResult<K, V>> sendResults = new ArrayList<>(this.producerRecords.size() - this.failedCount);
+        for (int i = 0; i < this.producerRecords.size(); i++) {
+            if (this.exceptions[i] == null) {
+                sendResults.add(new SendResult<>(this.producerRecords.get(i), this.recordMetadata[i]));
+            }
+        }
+        return sendResults;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchSendResult [size=" + size() + ", failedCount=" + this.failedCount + "]";
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.caiya.kafka.springn.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The default {@link ProducerMetrics}: a {@link LatencyHistogram} and success and error counters per
+ * topic, in fixed memory per topic and without locks on the record path. The metrics of each topic
+ * are registered as a {@link TopicProducerMetricsMXBean} when an {@link MBeanServer} is set, under
+ * {@code com.caiya.kafka.springn:type=ProducerMetrics,name=<name>,topic=<topic>}.
+ *
+ * @since 1.2.0
+ */
+public class DefaultProducerMetrics implements ProducerMetrics, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(DefaultProducerMetrics.class);
+
+    /**
+     * The JMX domain of the metrics.
+     */
+    public static final String JMX_DOMAIN = "com.caiya.kafka.springn";
+
+    private final ConcurrentMap<String, TopicMetrics> topics = new ConcurrentHashMap<>();
+
+    private volatile MBeanServer mbeanServer;
+
+    private volatile String name = "default";
+
+    /**
+     * Set the server the metrics of each topic are registered with, when the topic is first sent to.
+     *
+     * @param mbeanServer the server, for instance {@code ManagementFactory.getPlatformMBeanServer()}.
+     */
+    public void setMBeanServer(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * Set the name distinguishing the metrics of several templates in JMX; default "default".
+     *
+     * @param name the name.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void recordSuccess(String topic, long latencyNanos) {
+        TopicMetrics metrics = topicMetrics(topic);
+        metrics.successes.increment();
+        metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    @Override
+    public void recordError(String topic, long latencyNanos, Exception exception) {
+        TopicMetrics metrics = topicMetrics(topic);
+        metrics.errors.increment();
+        metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    /**
+     * Return the metrics of a topic.
+     *
+     * @param topic the topic.
+     * @return the metrics, or null if nothing was sent to the topic.
+     */
+    public TopicMetrics getTopicMetrics(String topic) {
+        return this.topics.get(topic);
+    }
+
+    /**
+     * Return the metrics of all the topics sent to.
+     *
+     * @return the metrics by topic.
+     */
+    public Map<String, TopicMetrics> getTopicMetrics() {
+        return Collections.unmodifiableMap(this.topics);
+    }
+
+    @Override
+    public void destroy() {
+        MBeanServer mbeanServer = this.mbeanServer;
+        if (mbeanServer == null) {
+            return;
+        }
+        for (TopicMetrics metrics : this.topics.values()) {
+            ObjectName objectName = metrics.objectName;
+            if (objectName != null) {
+                try {
+                    mbeanServer.unregisterMBean(objectName);
+                } catch (JMException e) {
+                    logger.debug("Failed to unregister " + objectName, e);
+                }
+            }
+        }
+    }
+
+    private TopicMetrics topicMetrics(String topic) {
+        TopicMetrics metrics = this.topics.get(topic);
+        if (metrics == null) {
+            metrics = new TopicMetrics(topic);
+            TopicMetrics existing = this.topics.putIfAbsent(topic, metrics);
+            if (existing != null) {
+                return existing;
+            }
+            register(metrics);
+        }
+        return metrics;
+    }
+
+    private void register(TopicMetrics metrics) {
+        MBeanServer mbeanServer = this.mbeanServer;
+        if (mbeanServer == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=ProducerMetrics,name="
+                    + ObjectName.quote(this.name) + ",topic=" + ObjectName.quote(metrics.topic));
+            mbeanServer.registerMBean(metrics, objectName);
+            metrics.objectName = objectName;
+        } catch (JMException e) {
+            logger.warn("Failed to register the producer metrics of topic " + metrics.topic, e);
+        }
+    }
+
+    /**
+     * The metrics of a topic.
+     */
+    public static final class TopicMetrics implements TopicProducerMetricsMXBean {
+
+        private final String topic;
+
+        private final LongAdder successes = new LongAdder();
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private volatile ObjectName objectName;
+
+        private TopicMetrics(String topic) {
+            this.topic = topic;
+        }
+
+        @Override
+        public String getTopic() {
+            return this.topic;
+        }
+
+        @Override
+        public long getSuccessCount() {
+            return this.successes.sum();
+        }
+
+        @Override
+        public long getErrorCount() {
+            return this.errors.sum();
+        }
+
+        /**
+         * Return the latencies of the successes and the errors recorded so far.
+         *
+         * @return the snapshot, in microseconds.
+         */
+        public LatencyHistogram.Snapshot getLatencySnapshot() {
+            return this.latency.snapshot();
+        }
+
+        @Override
+        public double getLatencyMean() {
+            return getLatencySnapshot().getMean() / 1000;
+        }
+
+        @Override
+        public double getLatency50thPercentile() {
+            return getLatencySnapshot().getValueAtPercentile(50) / 1000d;
+        }
+
+        @Override
+        public double getLatency99thPercentile() {
+            return getLatencySnapshot().getValueAtPercentile(99) / 1000d;
+        }
+
+        @Override
+        public double getLatency999thPercentile() {
+            return getLatencySnapshot().getValueAtPercentile(99.9) / 1000d;
+        }
+
+        @Override
+        public double getLatencyMax() {
+            return getLatencySnapshot().getMax() / 1000d;
+        }
+
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.caiya.kafka.springn.support;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds, with log-linear buckets in fixed memory: the
+ * values are exact below 16 and within 1/16 (6.25%) above, up to about 2^40 microseconds (12 days).
+ *
+ * @since 1.2.0
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Record a latency.
+     *
+     * @param micros the latency in microseconds.
+     */
+    public void record(long micros) {
+        this.counts.incrementAndGet(bucketOf(Math.max(0, micros)));
+    }
+
+    /**
+     * Return a copy of the counts recorded so far; the concurrent records may or may not be included.
+     *
+     * @return the snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = this.counts.get(i);
+        }
+        return new Snapshot(counts);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return the highest value of the bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+        long subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long lowest = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * The counts of a histogram at some point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long count;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+        }
+
+        /**
+         * @return the number of values.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return the mean value in microseconds, by the highest value of the buckets, or 0.
+         */
+        public double getMean() {
+            if (this.count == 0) {
+                return 0;
+            }
+            double total = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                total += (double) this.counts[i] * highestValueOf(i);
+            }
+            return total / this.count;
+        }
+
+        /**
+         * @return the highest value in microseconds, within the precision of the buckets, or 0.
+         */
+        public long getMax() {
+            for (int i = this.counts.length - 1; i >= 0; i--) {
+                if (this.counts[i] > 0) {
+                    return highestValueOf(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100.
+         * @return the value at the percentile in microseconds, within the precision of the buckets, or 0.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (this.count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * this.count));
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return highestValueOf(i);
+                }
+            }
+            return getMax();
+        }
+
+    }
+
+}
@@ -6,6 +6,8 @@ import org.springframework.util.ObjectUtils;
 
 /**
  * The {@link com.caiya.kafka.springn.support.ProducerListener} that logs exceptions thrown when sending messages.
+ * Each failure is logged on the producer network thread; see {@link AggregatingLoggingProducerListener}
+ * to log summaries from a background thread instead.
  *
  * @param <K> the key type.
  * @param <V> the value type.
@@ -0,0 +1,30 @@
+package com.caiya.kafka.springn.support;
+
+/**
+ * Records the outcome and the latency of the sends of a template, from the send call to the
+ * acknowledgement, including the time blocked in the send itself; invoked on the producer network
+ * thread, so implementations must be cheap and thread-safe.
+ *
+ * @see DefaultProducerMetrics
+ * @since 1.2.0
+ */
+public interface ProducerMetrics {
+
+    /**
+     * Invoked when a record is acknowledged.
+     *
+     * @param topic        the topic of the record.
+     * @param latencyNanos the time from the send call to the acknowledgement, in nanoseconds.
+     */
+    void recordSuccess(String topic, long latencyNanos);
+
+    /**
+     * Invoked when a record failed to be sent, or was rejected by the template.
+     *
+     * @param topic        the topic of the record.
+     * @param latencyNanos the time from the send call to the failure, in nanoseconds.
+     * @param exception    the failure.
+     */
+    void recordError(String topic, long latencyNanos, Exception exception);
+
+}
@@ -0,0 +1,27 @@
+package com.caiya.kafka.springn.support;
+
+/**
+ * The send metrics of a topic, as exposed through JMX by {@link DefaultProducerMetrics}; the
+ * latencies are in milliseconds, since the creation of the metrics.
+ *
+ * @since 1.2.0
+ */
+public interface TopicProducerMetricsMXBean {
+
+    String getTopic();
+
+    long getSuccessCount();
+
+    long getErrorCount();
+
+    double getLatencyMean();
+
+    double getLatency50thPercentile();
+
+    double getLatency99thPercentile();
+
+    double getLatency999thPercentile();
+
+    double getLatencyMax();
+
+}
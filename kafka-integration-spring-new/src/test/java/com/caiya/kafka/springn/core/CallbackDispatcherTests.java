@@ -0,0 +1,45 @@
+package com.caiya.kafka.springn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CallbackDispatcherTests.
+ *
+ * @since 1.2.0
+ */
+public class CallbackDispatcherTests {
+
+    @Test
+    public void testDrainGoesOnAfterCompletionError() {
+        List<Runnable> tasks = new ArrayList<>();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(tasks::add);
+        List<String> completed = new ArrayList<>();
+        dispatcher.dispatch(() -> {
+            throw new AssertionError("fatal");
+        });
+        dispatcher.dispatch(() -> completed.add("second"));
+        Assert.assertEquals(1, tasks.size());
+
+        try {
+            tasks.remove(0).run();
+            Assert.fail("expected AssertionError");
+        } catch (AssertionError e) {
+            Assert.assertEquals("fatal", e.getMessage());
+        }
+        // rescheduled for the completion left in the queue
+        Assert.assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals(0, dispatcher.getQueueDepth());
+
+        dispatcher.dispatch(() -> completed.add("third"));
+        Assert.assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        Assert.assertEquals(2, completed.size());
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.caiya.kafka.springn.core;
+
+import com.caiya.kafka.springn.KafkaException;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DefaultKafkaProducerFactory tests against {@link MockProducer}s, without a broker.
+ *
+ * @since 1.2.0
+ */
+public class DefaultKafkaProducerFactoryTests {
+
+    @Test
+    public void testProducerPool() throws Exception {
+        List<MockProducer<String, String>> producers = new ArrayList<>();
+        DefaultKafkaProducerFactory<String, String> producerFactory =
+                new DefaultKafkaProducerFactory<String, String>(Collections.emptyMap()) {
+
+                    @Override
+                    protected Producer<String, String> createKafkaProducer(int index) {
+                        MockProducer<String, String> producer =
+                                new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+                        producers.add(producer);
+                        return producer;
+                    }
+
+                };
+        producerFactory.setProducerPoolSize(4);
+        Producer<String, String> producer = producerFactory.createProducer();
+        Assert.assertSame(producer, producerFactory.createProducer());
+        Assert.assertEquals(4, producers.size());
+
+        for (int i = 0; i < 100; i++) {
+            producer.send(new ProducerRecord<>("test", "key" + i % 10, "value" + i));
+        }
+        int sent = 0;
+        for (MockProducer<String, String> mockProducer : producers) {
+            List<String> keys = new ArrayList<>();
+            for (ProducerRecord<String, String> record : mockProducer.history()) {
+                keys.add(record.key());
+            }
+            for (MockProducer<String, String> other : producers) {
+                if (other != mockProducer) {
+                    for (ProducerRecord<String, String> record : other.history()) {
+                        Assert.assertFalse(keys.contains(record.key()));
+                    }
+                }
+            }
+            sent += keys.size();
+        }
+        Assert.assertEquals(100, sent);
+
+        producer.close();
+        Assert.assertFalse(producers.get(0).closed());
+        producerFactory.destroy();
+        for (MockProducer<String, String> mockProducer : producers) {
+            Assert.assertTrue(mockProducer.closed());
+        }
+    }
+
+    @Test
+    public void testTransactionalPool() throws Exception {
+        List<MockProducer<String, String>> producers = new ArrayList<>();
+        DefaultKafkaProducerFactory<String, String> producerFactory =
+                new DefaultKafkaProducerFactory<String, String>(Collections.emptyMap()) {
+
+                    @Override
+                    protected Producer<String, String> createKafkaProducer(Map<String, Object> configs) {
+                        MockProducer<String, String> producer =
+                                new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+                        producers.add(producer);
+                        return producer;
+                    }
+
+                };
+        producerFactory.setTransactionIdPrefix("tx-");
+        producerFactory.setTransactionalPoolMinIdle(1);
+        producerFactory.setTransactionalPoolMaxSize(2);
+        producerFactory.setTransactionalPoolMaxWait(50);
+        producerFactory.setTransactionalPoolIdleTimeout(1);
+        producerFactory.start();
+        Assert.assertEquals(1, producers.size());
+        Assert.assertTrue(producers.get(0).transactionInitialized());
+        Assert.assertEquals(1, producerFactory.getIdleProducerCount());
+
+        Producer<String, String> producer1 = producerFactory.createProducer();
+        Producer<String, String> producer2 = producerFactory.createProducer();
+        Assert.assertEquals(2, producerFactory.getTransactionalProducerCount());
+        Assert.assertEquals(0, producerFactory.getIdleProducerCount());
+        try {
+            producerFactory.createProducer();
+            Assert.fail("expected KafkaException");
+        } catch (KafkaException e) {
+            Assert.assertEquals(2, producerFactory.getTransactionalProducerCount());
+        }
+
+        producer1.close();
+        producer1.close();
+        Assert.assertEquals(1, producerFactory.getIdleProducerCount());
+        Assert.assertSame(producer1, producerFactory.createProducer());
+        producer1.close();
+        Thread.sleep(10);
+        producer2.close();
+        Assert.assertEquals(1, producerFactory.getEvictedProducerCount());
+        Assert.assertEquals(1, producerFactory.getTransactionalProducerCount());
+        Assert.assertEquals(2, producerFactory.getCreatedProducerCount());
+
+        producerFactory.destroy();
+        Assert.assertEquals(0, producerFactory.getTransactionalProducerCount());
+        for (MockProducer<String, String> mockProducer : producers) {
+            Assert.assertTrue(mockProducer.closed());
+        }
+    }
+
+    @Test
+    public void testFailedTransactionalProducerIsClosedOnce() {
+        List<MockProducer<String, String>> producers = new ArrayList<>();
+        DefaultKafkaProducerFactory<String, String> producerFactory = transactionalFactory(producers);
+        Producer<String, String> producer = producerFactory.createProducer();
+        producers.get(0).fenceProducer();
+        try {
+            producer.beginTransaction();
+            Assert.fail("expected ProducerFencedException");
+        } catch (ProducerFencedException e) {
+            // expected
+        }
+        producer.close();
+        producer.close();
+        Assert.assertEquals(0, producerFactory.getTransactionalProducerCount());
+        Assert.assertEquals(0, producerFactory.getIdleProducerCount());
+        Assert.assertTrue(producers.get(0).closed());
+    }
+
+    @Test
+    public void testWaitingCallerIsWokenByReturnedProducer() throws Exception {
+        DefaultKafkaProducerFactory<String, String> producerFactory = transactionalFactory(new ArrayList<>());
+        producerFactory.setTransactionalPoolMaxSize(1);
+        producerFactory.setTransactionalPoolMaxWait(10000);
+        Producer<String, String> producer = producerFactory.createProducer();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Producer<String, String>> waiting = executor.submit(producerFactory::createProducer);
+            Thread.sleep(50);
+            Assert.assertFalse(waiting.isDone());
+            long start = System.currentTimeMillis();
+            producer.close();
+            Assert.assertSame(producer, waiting.get(5, TimeUnit.SECONDS));
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentEvictionsKeepMinIdle() throws Exception {
+        DefaultKafkaProducerFactory<String, String> producerFactory = transactionalFactory(new ArrayList<>());
+        producerFactory.setTransactionalPoolMinIdle(2);
+        List<Producer<String, String>> taken = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            taken.add(producerFactory.createProducer());
+        }
+        for (Producer<String, String> producer : taken) {
+            producer.close();
+        }
+        producerFactory.setTransactionalPoolIdleTimeout(1);
+        Thread.sleep(10);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> evictions = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                evictions.add(executor.submit(() -> {
+                    start.await();
+                    producerFactory.evictIdleProducers();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> eviction : evictions) {
+                eviction.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(2, producerFactory.getIdleProducerCount());
+        Assert.assertEquals(2, producerFactory.getTransactionalProducerCount());
+        Assert.assertEquals(6, producerFactory.getEvictedProducerCount());
+    }
+
+    private DefaultKafkaProducerFactory<String, String> transactionalFactory(
+            List<MockProducer<String, String>> producers) {
+        DefaultKafkaProducerFactory<String, String> producerFactory =
+                new DefaultKafkaProducerFactory<String, String>(Collections.emptyMap()) {
+
+                    @Override
+                    protected Producer<String, String> createKafkaProducer(Map<String, Object> configs) {
+                        MockProducer<String, String> producer =
+                                new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+                        producers.add(producer);
+                        return producer;
+                    }
+
+                };
+        producerFactory.setTransactionIdPrefix("tx-");
+        return producerFactory;
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.caiya.kafka.springn.core;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * GroupFlusherTests.
+ *
+ * @since 1.2.0
+ */
+public class GroupFlusherTests {
+
+    @Test
+    public void testInterruptedLeaderFlushesWithoutWaitingForTheWindow() {
+        AtomicInteger flushes = new AtomicInteger();
+        MockProducer<String, String> producer = new MockProducer<String, String>(true, new StringSerializer(),
+                new StringSerializer()) {
+
+            @Override
+            public void flush() {
+                flushes.incrementAndGet();
+                super.flush();
+            }
+
+        };
+        GroupFlusher flusher = new GroupFlusher(60000);
+        long start = System.currentTimeMillis();
+        Thread.currentThread().interrupt();
+        try {
+            flusher.flush(producer);
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            Assert.assertEquals(1, flushes.get());
+            // the interrupt is kept for the caller
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+}
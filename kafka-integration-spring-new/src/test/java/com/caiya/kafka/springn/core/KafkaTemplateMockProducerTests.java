@@ -0,0 +1,569 @@
+package com.caiya.kafka.springn.core;
+
+import com.caiya.kafka.springn.KafkaException;
+import com.caiya.kafka.springn.support.BatchSendResult;
+import com.caiya.kafka.springn.support.DefaultProducerMetrics;
+import com.caiya.kafka.springn.support.LatencyHistogram;
+import com.caiya.kafka.springn.support.ProducerListener;
+import com.caiya.kafka.springn.support.SendResult;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.errors.UnknownTopicOrPartitionException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KafkaTemplate tests against a {@link MockProducer}, without a broker.
+ *
+ * @since 1.2.0
+ */
+public class KafkaTemplateMockProducerTests {
+
+    @Test
+    public void testSendBatch() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(false);
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        List<ProducerRecord<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            records.add(new ProducerRecord<>("test", "key" + i, "value" + i));
+        }
+        ListenableFuture<BatchSendResult<String, String>> future = kafkaTemplate.sendBatch(records);
+        Assert.assertEquals(3, producer.history().size());
+
+        producer.completeNext();
+        producer.errorNext(new RuntimeException("failed"));
+        Assert.assertFalse(future.isDone());
+        producer.completeNext();
+
+        BatchSendResult<String, String> result = future.get();
+        Assert.assertEquals(3, result.size());
+        Assert.assertTrue(result.hasFailures());
+        Assert.assertEquals(1, result.getFailedCount());
+        Assert.assertNotNull(result.getRecordMetadata(0));
+        Assert.assertNull(result.getRecordMetadata(1));
+        Assert.assertEquals("failed", result.getException(1).getMessage());
+        Assert.assertEquals(2, result.getSendResults().size());
+        Assert.assertEquals("value2", result.getSendResults().get(1).getProducerRecord().value());
+    }
+
+    @Test
+    public void testSendEmptyBatch() throws Exception {
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> new SharedMockProducer(true));
+        BatchSendResult<String, String> result = kafkaTemplate.sendBatch(new ArrayList<>()).get();
+        Assert.assertEquals(0, result.size());
+        Assert.assertFalse(result.hasFailures());
+    }
+
+    @Test
+    public void testSendAndForgetReportsErrorsOnly() {
+        MockProducer<String, String> producer = new SharedMockProducer(false);
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        List<ProducerRecord<String, String>> failed = new ArrayList<>();
+        List<ProducerRecord<String, String>> succeeded = new ArrayList<>();
+        kafkaTemplate.setProducerListener(new ProducerListener<String, String>() {
+
+            @Override
+            public void onSuccess(ProducerRecord<String, String> producerRecord, RecordMetadata recordMetadata) {
+                succeeded.add(producerRecord);
+            }
+
+            @Override
+            public void onError(ProducerRecord<String, String> producerRecord, Exception exception) {
+                failed.add(producerRecord);
+            }
+
+        });
+        kafkaTemplate.sendAndForget("test", "key0", "value0");
+        kafkaTemplate.sendAndForget("test", "key1", "value1");
+        producer.completeNext();
+        producer.errorNext(new RuntimeException("failed"));
+        Assert.assertTrue(succeeded.isEmpty());
+        Assert.assertEquals(1, failed.size());
+        Assert.assertEquals("key1", failed.get(0).key());
+
+        kafkaTemplate.setProducerListener(null);
+        kafkaTemplate.sendAndForget("test", "key2", "value2");
+        Assert.assertEquals(3, producer.history().size());
+    }
+
+    @Test
+    public void testExecuteInTransactionRethrows() {
+        MockProducer<String, String> producer = new SharedMockProducer(true);
+        producer.initTransactions();
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(transactional(producer, new AtomicInteger()));
+        try {
+            kafkaTemplate.executeInTransaction(operations -> {
+                operations.send("test", "key", "value");
+                throw new IllegalStateException("failed");
+            });
+            Assert.fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+        Assert.assertTrue(producer.transactionAborted());
+        Assert.assertTrue(producer.history().isEmpty());
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(true);
+        producer.initTransactions();
+        AtomicInteger created = new AtomicInteger();
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(transactional(producer, created));
+        kafkaTemplate.setGroupCommitSize(3);
+        kafkaTemplate.setGroupCommitWindow(10000);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                String key = "key" + i;
+                results.add(executor.submit(() -> kafkaTemplate.executeInTransaction(operations -> {
+                    operations.send("test", key, "value");
+                    return key;
+                })));
+            }
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals("key" + i, results.get(i).get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, created.get());
+            Assert.assertEquals(1, producer.commitCount());
+            Assert.assertEquals(3, producer.history().size());
+
+            kafkaTemplate.setGroupCommitSize(2);
+            Future<Object> failed = executor.submit(() -> kafkaTemplate.executeInTransaction(operations -> {
+                operations.send("test", "key3", "value");
+                throw new IllegalStateException("failed");
+            }));
+            Future<Object> aborted = executor.submit(() -> kafkaTemplate.executeInTransaction(operations -> {
+                operations.send("test", "key4", "value");
+                return null;
+            }));
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                Assert.fail("expected IllegalStateException");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            try {
+                aborted.get(10, TimeUnit.SECONDS);
+                Assert.fail("expected KafkaException");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof KafkaException);
+            }
+            Assert.assertEquals(2, created.get());
+            Assert.assertTrue(producer.transactionAborted());
+            Assert.assertEquals(3, producer.history().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGroupMemberThrowingErrorAbortsTheGroup() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(true);
+        producer.initTransactions();
+        AtomicInteger created = new AtomicInteger();
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(transactional(producer, created));
+        kafkaTemplate.setGroupCommitSize(2);
+        kafkaTemplate.setGroupCommitWindow(10000);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> failed = executor.submit(() -> kafkaTemplate.executeInTransaction(operations -> {
+                operations.send("test", "key0", "value");
+                throw new AssertionError("fatal");
+            }));
+            Future<Object> aborted = executor.submit(() -> kafkaTemplate.executeInTransaction(operations -> {
+                operations.send("test", "key1", "value");
+                return null;
+            }));
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                Assert.fail("expected AssertionError");
+            } catch (ExecutionException e) {
+                Assert.assertEquals("fatal", e.getCause().getMessage());
+            }
+            try {
+                aborted.get(10, TimeUnit.SECONDS);
+                Assert.fail("expected KafkaException");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof KafkaException);
+            }
+            Assert.assertEquals(1, created.get());
+            Assert.assertTrue(producer.transactionAborted());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSendOffsetsToTransaction() {
+        MockProducer<String, String> producer = new SharedMockProducer(true);
+        producer.initTransactions();
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(transactional(producer, new AtomicInteger()));
+        Map<TopicPartition, OffsetAndMetadata> offsets =
+                Collections.singletonMap(new TopicPartition("in", 0), new OffsetAndMetadata(42));
+        try {
+            kafkaTemplate.sendOffsetsToTransaction(offsets, "group");
+            Assert.fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(producer.consumerGroupOffsetsHistory().isEmpty());
+        }
+
+        ProducerFactoryUtils.setConsumerGroupId("group");
+        try {
+            kafkaTemplate.executeInTransaction(operations -> {
+                operations.send("test", "key", "value");
+                operations.sendOffsetsToTransaction(offsets);
+                return null;
+            });
+        } finally {
+            ProducerFactoryUtils.clearConsumerGroupId();
+        }
+        Assert.assertTrue(producer.transactionCommitted());
+        Assert.assertEquals(Collections.singletonList(Collections.singletonMap("group", offsets)),
+                producer.consumerGroupOffsetsHistory());
+    }
+
+    @Test
+    public void testGroupFlush() throws Exception {
+        AtomicInteger flushes = new AtomicInteger();
+        MockProducer<String, String> producer = new SharedMockProducer(true) {
+
+            @Override
+            public void flush() {
+                flushes.incrementAndGet();
+            }
+
+        };
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer, true);
+        kafkaTemplate.setGroupFlushWindow(500);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String key = "key" + i;
+                results.add(executor.submit(() -> kafkaTemplate.sendAndForget("test", key, "value")));
+            }
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+            Assert.assertEquals(4, producer.history().size());
+            Assert.assertTrue("flushes:" + flushes.get(), flushes.get() < 4);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInFlightLimit() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(false);
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        kafkaTemplate.setProducerListener(null);
+        kafkaTemplate.setMaxInFlightPerTopic(2);
+        kafkaTemplate.send("test", "key0", "value0");
+        kafkaTemplate.send("test", "key1", "value1");
+        ListenableFuture<SendResult<String, String>> rejected =
+                kafkaTemplate.trySend(new ProducerRecord<>("test", "key2", "value2"));
+        try {
+            rejected.get();
+            Assert.fail("expected SendRejectedException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SendRejectedException);
+        }
+        Assert.assertFalse(kafkaTemplate.trySend(new ProducerRecord<>("other", "key2", "value2")).isDone());
+
+        producer.completeNext();
+        ListenableFuture<SendResult<String, String>> sent =
+                kafkaTemplate.trySend(new ProducerRecord<>("test", "key3", "value3"));
+        Assert.assertFalse(sent.isDone());
+        Assert.assertEquals(4, producer.history().size());
+    }
+
+    @Test
+    public void testInFlightWaitTimesOut() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(false);
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        kafkaTemplate.setProducerListener(null);
+        kafkaTemplate.setMaxInFlight(1);
+        kafkaTemplate.setMaxInFlightWait(50);
+        kafkaTemplate.send("test", "key0", "value0");
+        long start = System.currentTimeMillis();
+        ListenableFuture<SendResult<String, String>> rejected = kafkaTemplate.send("test", "key1", "value1");
+        Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+        try {
+            rejected.get();
+            Assert.fail("expected SendRejectedException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SendRejectedException);
+        }
+        Assert.assertEquals(1, producer.history().size());
+    }
+
+    @Test
+    public void testSendAndForgetReleasesPermitWhenProducerCreationFails() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(true);
+        AtomicInteger creations = new AtomicInteger();
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> {
+            if (creations.incrementAndGet() == 1) {
+                throw new KafkaException("broker unavailable");
+            }
+            return producer;
+        });
+        kafkaTemplate.setProducerListener(null);
+        kafkaTemplate.setMaxInFlight(1);
+        kafkaTemplate.setMaxInFlightWait(0);
+        try {
+            kafkaTemplate.sendAndForget("test", "key0", "value0");
+            Assert.fail("expected KafkaException");
+        } catch (KafkaException e) {
+            Assert.assertEquals("broker unavailable", e.getMessage());
+        }
+        // the permit of the failed send is released
+        kafkaTemplate.sendAndForget("test", "key1", "value1");
+        Assert.assertEquals(1, producer.history().size());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(false);
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        kafkaTemplate.setProducerListener(null);
+        kafkaTemplate.setCircuitBreaker(2, 50);
+        kafkaTemplate.send("test", "key0", "value0");
+        kafkaTemplate.send("test", "key1", "value1");
+        producer.errorNext(new TimeoutException("timeout"));
+        Assert.assertFalse(kafkaTemplate.isCircuitOpen());
+        producer.errorNext(new TimeoutException("timeout"));
+        Assert.assertTrue(kafkaTemplate.isCircuitOpen());
+        Assert.assertTrue(kafkaTemplate.send("test", "key2", "value2").isDone());
+
+        Thread.sleep(60);
+        ListenableFuture<SendResult<String, String>> trial = kafkaTemplate.send("test", "key3", "value3");
+        Assert.assertFalse(trial.isDone());
+        Assert.assertTrue(kafkaTemplate.send("test", "key4", "value4").isDone());
+        producer.completeNext();
+        Assert.assertFalse(kafkaTemplate.isCircuitOpen());
+        Assert.assertFalse(kafkaTemplate.send("test", "key5", "value5").isDone());
+        Assert.assertEquals(4, producer.history().size());
+    }
+
+    @Test
+    public void testCallbackExecutor() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(false);
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        List<Runnable> tasks = new ArrayList<>();
+        kafkaTemplate.setCallbackExecutor(tasks::add);
+        List<String> succeeded = new ArrayList<>();
+        kafkaTemplate.setProducerListener(new ProducerListener<String, String>() {
+
+            @Override
+            public void onSuccess(ProducerRecord<String, String> producerRecord, RecordMetadata recordMetadata) {
+                succeeded.add(producerRecord.key());
+            }
+
+        });
+        ListenableFuture<SendResult<String, String>> future0 = kafkaTemplate.send("test", "key0", "value0");
+        ListenableFuture<SendResult<String, String>> future1 = kafkaTemplate.send("test", "key1", "value1");
+        producer.completeNext();
+        producer.completeNext();
+        Assert.assertFalse(future0.isDone());
+        Assert.assertTrue(succeeded.isEmpty());
+        Assert.assertEquals(2, kafkaTemplate.getCallbackQueueDepth());
+        // a single drain task for both completions
+        Assert.assertEquals(1, tasks.size());
+
+        tasks.remove(0).run();
+        Assert.assertTrue(future0.isDone());
+        Assert.assertTrue(future1.isDone());
+        Assert.assertEquals(Arrays.asList("key0", "key1"), succeeded);
+        Assert.assertEquals(0, kafkaTemplate.getCallbackQueueDepth());
+        Assert.assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testProducerMetrics() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(false);
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        DefaultProducerMetrics producerMetrics = new DefaultProducerMetrics();
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        producerMetrics.setMBeanServer(mbeanServer);
+        producerMetrics.setName("testProducerMetrics");
+        kafkaTemplate.setProducerMetrics(producerMetrics);
+        kafkaTemplate.setMaxInFlight(2);
+
+        kafkaTemplate.send("test", "key0", "value0");
+        kafkaTemplate.sendAndForget("test", "key1", "value1");
+        Assert.assertTrue(kafkaTemplate.trySend(new ProducerRecord<>("test", "key2", "value2")).isDone());
+        Thread.sleep(2);
+        producer.completeNext();
+        producer.errorNext(new RuntimeException("test"));
+
+        DefaultProducerMetrics.TopicMetrics metrics = producerMetrics.getTopicMetrics("test");
+        Assert.assertEquals(1, metrics.getSuccessCount());
+        Assert.assertEquals(2, metrics.getErrorCount());
+        LatencyHistogram.Snapshot snapshot = metrics.getLatencySnapshot();
+        Assert.assertEquals(3, snapshot.getCount());
+        Assert.assertTrue(snapshot.getMax() >= 2000);
+        Assert.assertTrue(snapshot.getValueAtPercentile(50) >= 2000);
+
+        ObjectName objectName = new ObjectName(
+                "com.caiya.kafka.springn:type=ProducerMetrics,name=\"testProducerMetrics\",topic=\"test\"");
+        Assert.assertEquals(1L, mbeanServer.getAttribute(objectName, "SuccessCount"));
+        Assert.assertTrue((Double) mbeanServer.getAttribute(objectName, "LatencyMax") >= 2);
+        producerMetrics.destroy();
+        Assert.assertFalse(mbeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testPartitionsCache() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        MockProducer<String, String> producer = new SharedMockProducer(false) {
+
+            @Override
+            public synchronized List<PartitionInfo> partitionsFor(String topic) {
+                lookups.incrementAndGet();
+                return Collections.singletonList(new PartitionInfo(topic, 0, null, null, null));
+            }
+
+        };
+        AtomicInteger created = new AtomicInteger();
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> {
+            created.incrementAndGet();
+            return producer;
+        });
+        kafkaTemplate.setPartitionsCacheTtl(60000);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(1, kafkaTemplate.partitionsFor("test").size());
+        }
+        Assert.assertEquals(1, lookups.get());
+        Assert.assertEquals(1, created.get());
+
+        // a send failing on stale metadata refreshes the partitions
+        kafkaTemplate.send("test", "key", "value");
+        producer.errorNext(new UnknownTopicOrPartitionException("test"));
+        kafkaTemplate.partitionsFor("test");
+        Assert.assertEquals(2, lookups.get());
+
+        kafkaTemplate.setPartitionsCacheTtl(1);
+        kafkaTemplate.partitionsFor("test");
+        Thread.sleep(2);
+        kafkaTemplate.partitionsFor("test");
+        Assert.assertEquals(4, lookups.get());
+    }
+
+    @Test
+    public void testHotKeyPartitioner() throws Exception {
+        MockProducer<String, String> producer = new SharedMockProducer(true) {
+
+            @Override
+            public synchronized List<PartitionInfo> partitionsFor(String topic) {
+                List<PartitionInfo> partitions = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    partitions.add(new PartitionInfo(topic, i, null, null, null));
+                }
+                return partitions;
+            }
+
+        };
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        kafkaTemplate.setPartitionsCacheTtl(60000);
+        HotKeyPartitioner hotKeyPartitioner = new HotKeyPartitioner(new StringSerializer());
+        hotKeyPartitioner.setDecayInterval(200);
+        hotKeyPartitioner.setSplits(4);
+        hotKeyPartitioner.setHotKeyRatio(0.1);
+        kafkaTemplate.setHotKeyPartitioner(hotKeyPartitioner);
+        for (int i = 0; i < 1000; i++) {
+            kafkaTemplate.sendAndForget("test", i % 2 == 0 ? "hot" : "key" + i, "value" + i);
+        }
+
+        int keyPartition = Utils.toPositive(Utils.murmur2(new StringSerializer().serialize("test", "hot"))) % 8;
+        Set<Integer> hotPartitions = new HashSet<>();
+        Set<Integer> subPartitions = new HashSet<>();
+        for (ProducerRecord<String, String> record : producer.history()) {
+            Header header = record.headers().lastHeader(HotKeyPartitioner.SUB_PARTITION_HEADER);
+            if (!"hot".equals(record.key())) {
+                Assert.assertNull(record.partition());
+                Assert.assertNull(header);
+            } else if (record.partition() != null) {
+                hotPartitions.add(record.partition());
+                ConsumerRecord<String, String> consumerRecord = new ConsumerRecord<>(record.topic(),
+                        record.partition(), 0, 0, TimestampType.CREATE_TIME, 0L, 0, 0, record.key(), record.value(),
+                        record.headers());
+                Integer subPartition = HotKeyPartitioner.subPartitionOf(consumerRecord);
+                subPartitions.add(subPartition);
+                // the sub-partitions start at the partition of the key chosen by the producer
+                Assert.assertEquals((keyPartition + subPartition) % 8, (int) record.partition());
+            }
+        }
+        Assert.assertEquals(4, hotPartitions.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(0, 1, 2, 3)), subPartitions);
+        Assert.assertEquals(Collections.singleton("hot"), hotKeyPartitioner.getHotKeys().keySet());
+        Assert.assertTrue(hotKeyPartitioner.getSplitRecordCount() >= 400);
+        Assert.assertEquals(hotKeyPartitioner.getSplitRecordCount(),
+                (long) hotKeyPartitioner.getHotKeys().get("hot"));
+    }
+
+    private static ProducerFactory<String, String> transactional(Producer<String, String> producer,
+                                                                 AtomicInteger created) {
+        return new ProducerFactory<String, String>() {
+
+            @Override
+            public Producer<String, String> createProducer() {
+                created.incrementAndGet();
+                return producer;
+            }
+
+            @Override
+            public boolean transactionCapable() {
+                return true;
+            }
+
+        };
+    }
+
+    /**
+     * A mock producer surviving the {@code close()} of the template, as the singleton producer of
+     * {@link DefaultKafkaProducerFactory} does.
+     */
+    static class SharedMockProducer extends MockProducer<String, String> {
+
+        SharedMockProducer(boolean autoComplete) {
+            super(autoComplete, new StringSerializer(), new StringSerializer());
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.caiya.kafka.springn.core;
+
+import com.caiya.kafka.springn.support.LoggingProducerListener;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per record cost of {@link KafkaTemplate#send(ProducerRecord)} and
+ * {@link KafkaTemplate#sendAndForget(ProducerRecord)}, against a producer completing the sends
+ * immediately; run {@link #main(String[])} and add {@code -prof gc} to compare the allocation rates.
+ *
+ * @since 1.2.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KafkaTemplateSendBenchmark {
+
+    @Param({"true", "false"})
+    public boolean producerListener;
+
+    private KafkaTemplate<String, String> kafkaTemplate;
+
+    private ProducerRecord<String, String> record;
+
+    @Setup
+    public void setUp() {
+        CompletingProducer producer = new CompletingProducer();
+        this.kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        this.kafkaTemplate.setProducerListener(this.producerListener ? new LoggingProducerListener<>() : null);
+        this.record = new ProducerRecord<>("test", "key", "value");
+    }
+
+    @Benchmark
+    public ListenableFuture<?> send() {
+        return this.kafkaTemplate.send(this.record);
+    }
+
+    @Benchmark
+    public void sendAndForget() {
+        this.kafkaTemplate.sendAndForget(this.record);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(KafkaTemplateSendBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * Completes the sends immediately, without keeping a history as the {@link MockProducer} does.
+     */
+    @SuppressWarnings("deprecation")
+    static class CompletingProducer extends MockProducer<String, String> {
+
+        private static final RecordMetadata METADATA = new RecordMetadata(new TopicPartition("test", 0),
+                0, 0, 0, 0L, 0, 0);
+
+        private static final Future<RecordMetadata> COMPLETED = CompletableFuture.completedFuture(METADATA);
+
+        CompletingProducer() {
+            super(true, new StringSerializer(), new StringSerializer());
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+            if (callback != null) {
+                callback.onCompletion(METADATA, null);
+            }
+            return COMPLETED;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.caiya.kafka.springn.core;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @since 1.2.0
+ */
+public class MappedSegmentLogTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndReadAcrossSegments() throws Exception {
+        File directory = this.folder.newFolder();
+        MappedSegmentLog log = new MappedSegmentLog(directory, 64);
+        for (int i = 0; i < 20; i++) {
+            log.append(("entry" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(20, log.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("entry" + i, new String(log.peek(), StandardCharsets.UTF_8));
+            log.advance();
+        }
+        log.close();
+
+        log = new MappedSegmentLog(directory, 64);
+        Assert.assertEquals(10, log.size());
+        for (int i = 10; i < 20; i++) {
+            Assert.assertEquals("entry" + i, new String(log.peek(), StandardCharsets.UTF_8));
+            log.advance();
+        }
+        Assert.assertNull(log.peek());
+        Assert.assertEquals(0, log.size());
+        // the segments read are deleted, the one written to is kept
+        Assert.assertEquals(2, directory.list().length);
+        log.close();
+    }
+
+    @Test
+    public void testTornEntryIsDroppedOnRecovery() throws Exception {
+        File directory = this.folder.newFolder();
+        MappedSegmentLog log = new MappedSegmentLog(directory, 1024);
+        log.append("entry0".getBytes(StandardCharsets.UTF_8));
+        log.append("entry1".getBytes(StandardCharsets.UTF_8));
+        log.close();
+        try (RandomAccessFile segment = new RandomAccessFile(new File(directory, String.format("%020d.log", 0)), "rw")) {
+            // corrupt the payload of the second entry
+            segment.seek(14 + 8);
+            segment.write('X');
+        }
+
+        log = new MappedSegmentLog(directory, 1024);
+        Assert.assertEquals(1, log.size());
+        log.append("entry2".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals("entry0", new String(log.peek(), StandardCharsets.UTF_8));
+        log.advance();
+        Assert.assertEquals("entry2", new String(log.peek(), StandardCharsets.UTF_8));
+        log.close();
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.caiya.kafka.springn.core;
+
+import org.apache.kafka.common.PartitionInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * PartitionsCacheTests.
+ *
+ * @since 1.2.0
+ */
+public class PartitionsCacheTests {
+
+    private static final List<PartitionInfo> PARTITIONS =
+            Collections.singletonList(new PartitionInfo("test", 0, null, null, null));
+
+    @Test
+    public void testMissingRefreshIsRetried() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        Function<String, List<PartitionInfo>> loader = topic -> lookups.incrementAndGet() == 2 ? null : PARTITIONS;
+        PartitionsCache cache = new PartitionsCache(1);
+        Assert.assertEquals(PARTITIONS, cache.get("test", loader));
+        Thread.sleep(2);
+        // no partitions returned, the stale ones are kept
+        Assert.assertEquals(PARTITIONS, cache.get("test", loader));
+        Assert.assertEquals(PARTITIONS, cache.get("test", loader));
+        Assert.assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Function<String, List<PartitionInfo>> loader = topic -> {
+            lookups.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return PARTITIONS;
+        };
+        PartitionsCache cache = new PartitionsCache(60000);
+        List<List<PartitionInfo>> results = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread caller = new Thread(() -> results.add(cache.get("test", loader)));
+            callers.add(caller);
+            caller.start();
+            if (i == 0) {
+                loading.await();
+            }
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (Thread caller : callers) {
+            caller.join(5000);
+        }
+        Assert.assertEquals(1, lookups.get());
+        Assert.assertEquals(Collections.nCopies(4, PARTITIONS), results);
+    }
+
+}
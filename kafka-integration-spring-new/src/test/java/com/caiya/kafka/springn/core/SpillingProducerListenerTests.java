@@ -0,0 +1,153 @@
+package com.caiya.kafka.springn.core;
+
+import com.caiya.kafka.springn.support.SendResult;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SpillingProducerListener tests against a producer failing with timeouts while the broker is down.
+ *
+ * @since 1.2.0
+ */
+public class SpillingProducerListenerTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSpillAndReplayAfterRestart() throws Exception {
+        File directory = this.folder.newFolder();
+        OutageProducer producer = new OutageProducer();
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<>(() -> producer);
+        SpillingProducerListener<String, String> listener = createListener(directory);
+        kafkaTemplate.setProducerListener(listener);
+
+        producer.down = true;
+        for (int i = 0; i < 3; i++) {
+            kafkaTemplate.send("test", "key" + i, "value" + i);
+        }
+        // spilled in the background, the queued records are spilled on close
+        listener.destroy();
+        Assert.assertEquals(3, listener.getSpilledCount());
+
+        listener = createListener(directory);
+        kafkaTemplate.setProducerListener(listener);
+        Assert.assertEquals(3, listener.getPendingCount());
+        producer.down = false;
+        listener.start(kafkaTemplate);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (listener.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        listener.destroy();
+        Assert.assertEquals(0, listener.getPendingCount());
+        Assert.assertEquals(3, listener.getReplayedCount());
+        Assert.assertEquals(3, producer.history().size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("key" + i, producer.history().get(i).key());
+            Assert.assertEquals("value" + i, producer.history().get(i).value());
+        }
+    }
+
+    @Test
+    public void testSynchronousReplayFailureBacksOff() throws Exception {
+        File directory = this.folder.newFolder();
+        OutageProducer producer = new OutageProducer();
+        AtomicInteger replays = new AtomicInteger();
+        KafkaTemplate<String, String> kafkaTemplate = new KafkaTemplate<String, String>(() -> producer) {
+
+            @Override
+            public ListenableFuture<SendResult<String, String>> send(ProducerRecord<String, String> record) {
+                replays.incrementAndGet();
+                throw new IllegalStateException("cannot send");
+            }
+
+        };
+        SpillingProducerListener<String, String> listener = createListener(directory);
+        listener.setRetryInterval(50);
+        kafkaTemplate.setProducerListener(listener);
+        producer.down = true;
+        kafkaTemplate.send("test", "key", "value");
+        listener.start(kafkaTemplate);
+        Thread.sleep(200);
+        listener.destroy();
+        // once per retry interval, not in a busy loop
+        Assert.assertTrue(replays.get() >= 1 && replays.get() <= 6);
+        Assert.assertEquals(1, listener.getPendingCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalTemplateIsRejected() throws Exception {
+        SpillingProducerListener<String, String> listener = createListener(this.folder.newFolder());
+        try {
+            listener.start(new KafkaTemplate<>(new ProducerFactory<String, String>() {
+
+                @Override
+                public Producer<String, String> createProducer() {
+                    return new OutageProducer();
+                }
+
+                @Override
+                public boolean transactionCapable() {
+                    return true;
+                }
+
+            }));
+        } finally {
+            listener.destroy();
+        }
+    }
+
+    private static SpillingProducerListener<String, String> createListener(File directory) throws Exception {
+        SpillingProducerListener<String, String> listener = new SpillingProducerListener<>(directory, 4096,
+                new StringSerializer(), new StringSerializer(), new StringDeserializer(), new StringDeserializer());
+        listener.setRetryInterval(10);
+        return listener;
+    }
+
+    /**
+     * Times out the sends while down, as a producer cut from the brokers.
+     */
+    static class OutageProducer extends MockProducer<String, String> {
+
+        volatile boolean down;
+
+        OutageProducer() {
+            super(true, new StringSerializer(), new StringSerializer());
+        }
+
+        @Override
+        public synchronized Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+            if (this.down) {
+                TimeoutException exception = new TimeoutException("broker down");
+                callback.onCompletion(null, exception);
+                CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+                future.completeExceptionally(exception);
+                return future;
+            }
+            return super.send(record, callback);
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
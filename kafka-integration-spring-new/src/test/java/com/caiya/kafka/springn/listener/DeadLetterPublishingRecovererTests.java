@@ -0,0 +1,136 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.core.KafkaTemplate;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.util.backoff.FixedBackOff;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * DeadLetterPublishingRecovererTests.
+ *
+ * @since 1.2.0
+ */
+public class DeadLetterPublishingRecovererTests {
+
+    private final TopicPartition partition = new TopicPartition("test", 0);
+
+    @Test
+    public void testPoisonRecordIsPublishedRaw() {
+        MockProducer<String, String> producer = new SharedMockProducer<>(new StringSerializer());
+        MockProducer<byte[], byte[]> rawProducer = new SharedMockProducer<>(new ByteArraySerializer());
+        DeadLetterPublishingRecoverer<String, String> recoverer = new DeadLetterPublishingRecoverer<>(
+                new KafkaTemplate<>(() -> producer), new KafkaTemplate<>(() -> rawProducer));
+        MockConsumer<byte[], byte[]> consumer = assignedConsumer();
+
+        handlePoison(consumer, recoverer);
+        Assert.assertTrue(producer.history().isEmpty());
+        Assert.assertEquals(1, rawProducer.history().size());
+        ProducerRecord<byte[], byte[]> published = rawProducer.history().get(0);
+        Assert.assertEquals("test.DLT", published.topic());
+        Assert.assertArrayEquals(bytes("key"), published.key());
+        Assert.assertArrayEquals(bytes("poison"), published.value());
+        Assert.assertArrayEquals(bytes("0"),
+                published.headers().lastHeader(DeadLetterPublishingRecoverer.DLT_ORIGINAL_OFFSET).value());
+        // recovered, the partition moves past the poison record
+        Assert.assertEquals(1, consumer.position(partition));
+    }
+
+    @Test
+    public void testPoisonRecordWithoutRawTemplateIsSkipped() {
+        MockProducer<String, String> producer = new SharedMockProducer<>(new StringSerializer());
+        DeadLetterPublishingRecoverer<String, String> recoverer = new DeadLetterPublishingRecoverer<>(
+                new KafkaTemplate<>(() -> producer));
+        MockConsumer<byte[], byte[]> consumer = assignedConsumer();
+
+        handlePoison(consumer, recoverer);
+        Assert.assertTrue(producer.history().isEmpty());
+        Assert.assertEquals(1, consumer.position(partition));
+    }
+
+    @Test
+    public void testLazilyFailingRecordIsPublishedRaw() {
+        MockProducer<String, String> producer = new SharedMockProducer<>(new StringSerializer());
+        MockProducer<byte[], byte[]> rawProducer = new SharedMockProducer<>(new ByteArraySerializer());
+        DeadLetterPublishingRecoverer<String, String> recoverer = new DeadLetterPublishingRecoverer<>(
+                new KafkaTemplate<>(() -> producer), new KafkaTemplate<>(() -> rawProducer));
+        Deserializer<String> failing = new StringDeserializer() {
+
+            @Override
+            public String deserialize(String topic, byte[] data) {
+                throw new IllegalArgumentException("poison");
+            }
+
+        };
+        ConsumerRecords<String, String> records = LazyConsumerRecord.lazily(new StringDeserializer(), failing)
+                .apply(new ConsumerRecords<>(Collections.singletonMap(partition, Collections.singletonList(
+                        new ConsumerRecord<>(partition.topic(), partition.partition(), 0, bytes("key"),
+                                bytes("poison"))))));
+        Exception failure = null;
+        try {
+            records.iterator().next().value();
+        } catch (Exception e) {
+            failure = e;
+        }
+        MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.assign(Collections.singletonList(partition));
+        new SeekToCurrentHandler<String, String>(new RetryingErrorHandler(new FixedBackOff(0, 0), recoverer), null)
+                .handle(consumer, records, failure);
+
+        Assert.assertTrue(producer.history().isEmpty());
+        Assert.assertEquals(1, rawProducer.history().size());
+        Assert.assertArrayEquals(bytes("key"), rawProducer.history().get(0).key());
+        Assert.assertArrayEquals(bytes("poison"), rawProducer.history().get(0).value());
+        // recovered, the partition moves past the failed record
+        Assert.assertEquals(1, consumer.position(partition));
+    }
+
+    private void handlePoison(MockConsumer<byte[], byte[]> consumer,
+                              DeadLetterPublishingRecoverer<String, String> recoverer) {
+        ConsumerRecord<byte[], byte[]> poison = new ConsumerRecord<>(partition.topic(), partition.partition(), 0,
+                bytes("key"), bytes("poison"));
+        SeekToCurrentHandler<byte[], byte[]> handler = new SeekToCurrentHandler<>(
+                new RetryingErrorHandler(new FixedBackOff(0, 0), recoverer), null);
+        handler.handle(consumer, new ConsumerRecords<>(Collections.singletonMap(partition,
+                Collections.singletonList(poison))), new RecordDeserializationException("failed to deserialize record",
+                new IllegalArgumentException("poison"), poison));
+    }
+
+    private MockConsumer<byte[], byte[]> assignedConsumer() {
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.assign(Collections.singletonList(partition));
+        consumer.updateBeginningOffsets(Collections.singletonMap(partition, 0L));
+        return consumer;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class SharedMockProducer<T> extends MockProducer<T, T> {
+
+        SharedMockProducer(Serializer<T> serializer) {
+            super(true, serializer, serializer);
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.caiya.kafka.springn.listener;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * HandOffRingTests.
+ *
+ * @since 1.2.0
+ */
+public class HandOffRingTests {
+
+    @Test
+    public void testBounded() {
+        HandOffRing<Integer> ring = new HandOffRing<>(2);
+        Assert.assertTrue(ring.offer(1));
+        Assert.assertTrue(ring.offer(2));
+        Assert.assertFalse(ring.offer(3));
+        Assert.assertEquals(Integer.valueOf(1), ring.poll());
+        Assert.assertTrue(ring.offer(3));
+        Assert.assertEquals(Integer.valueOf(2), ring.poll());
+        Assert.assertEquals(Integer.valueOf(3), ring.poll());
+        Assert.assertNull(ring.poll());
+        Assert.assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void testHandOffInOrder() throws InterruptedException {
+        HandOffRing<Integer> ring = new HandOffRing<>(16);
+        int count = 1000000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!ring.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        for (int expected = 0; expected < count; ) {
+            Integer element = ring.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            Assert.assertEquals(expected++, element.intValue());
+        }
+        producer.join();
+    }
+
+}
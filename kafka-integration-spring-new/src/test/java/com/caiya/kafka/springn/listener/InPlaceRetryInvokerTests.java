@@ -0,0 +1,61 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.util.backoff.FixedBackOff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * InPlaceRetryInvokerTests.
+ *
+ * @since 1.2.0
+ */
+public class InPlaceRetryInvokerTests {
+
+    private final TopicPartition partition = new TopicPartition("test", 0);
+
+    @Test
+    public void testFailedRecordIsRecoveredAndTheRestProcessed() {
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        for (long offset = 0; offset < 3; offset++) {
+            records.add(new ConsumerRecord<>(partition.topic(), partition.partition(), offset, null, "value" + offset));
+        }
+        List<Long> recovered = new ArrayList<>();
+        List<Long> skipped = new ArrayList<>();
+        List<Long> delivered = new ArrayList<>();
+        RetryingErrorHandler errorHandler = new RetryingErrorHandler(new FixedBackOff(0, 2),
+                (record, exception) -> recovered.add(record.offset()));
+
+        InPlaceRetryInvoker.invoke(new ConsumerRecords<>(Collections.singletonMap(partition, records)), data -> {
+            for (ConsumerRecord<String, String> record : data) {
+                if (record.offset() == 1) {
+                    throw new BatchListenerFailedException("poison", null, record);
+                }
+                delivered.add(record.offset());
+            }
+        }, errorHandler, record -> skipped.add(record.offset()));
+
+        // 1 attempt + 2 retries of the poison record, then the rest of the batch
+        Assert.assertEquals(Collections.singletonList(1L), recovered);
+        Assert.assertEquals(Arrays.asList(0L, 1L), skipped);
+        Assert.assertEquals(Arrays.asList(0L, 2L), delivered);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWithoutErrorHandlerTheExceptionIsThrown() {
+        List<ConsumerRecord<String, String>> records = Collections.singletonList(
+                new ConsumerRecord<>(partition.topic(), partition.partition(), 0, null, "value"));
+        InPlaceRetryInvoker.invoke(new ConsumerRecords<>(Collections.singletonMap(partition, records)), data -> {
+            throw new IllegalStateException();
+        }, null, record -> {
+        });
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.KafkaException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LazyConsumerRecordTests.
+ *
+ * @since 1.2.0
+ */
+public class LazyConsumerRecordTests {
+
+    private final TopicPartition partition = new TopicPartition("test", 0);
+
+    @Test
+    public void testDeserializedOnceOnAccess() {
+        AtomicInteger deserializations = new AtomicInteger();
+        Deserializer<String> counting = new StringDeserializer() {
+
+            @Override
+            public String deserialize(String topic, byte[] data) {
+                deserializations.incrementAndGet();
+                return super.deserialize(topic, data);
+            }
+
+        };
+        ConsumerRecords<String, String> records = LazyConsumerRecord.lazily(counting, counting)
+                .apply(raw("key", "value"));
+        LazyConsumerRecord<String, String> record = (LazyConsumerRecord<String, String>) records.iterator().next();
+        Assert.assertEquals(0, deserializations.get());
+        Assert.assertFalse(record.toString().contains("value = value"));
+
+        Assert.assertEquals("key", record.key());
+        Assert.assertEquals(1, deserializations.get());
+        Assert.assertFalse(record.isValueDeserialized());
+        Assert.assertEquals("value", record.value());
+        Assert.assertEquals("value", record.value());
+        Assert.assertEquals(2, deserializations.get());
+        Assert.assertTrue(record.isValueDeserialized());
+        Assert.assertEquals(5, record.serializedValueSize());
+        Assert.assertNull(record.rawValue());
+        Assert.assertFalse(record.isDeserializationFailed());
+    }
+
+    @Test
+    public void testFailureOnAccess() {
+        Deserializer<String> failing = new StringDeserializer() {
+
+            @Override
+            public String deserialize(String topic, byte[] data) {
+                throw new IllegalArgumentException("poison");
+            }
+
+        };
+        ConsumerRecords<String, String> records = LazyConsumerRecord.lazily(new StringDeserializer(), failing)
+                .apply(raw(null, "value"));
+        ConsumerRecord<String, String> record = records.iterator().next();
+        Assert.assertNull(record.key());
+        try {
+            record.value();
+            Assert.fail("expected KafkaException");
+        } catch (KafkaException e) {
+            Assert.assertTrue(e.getMessage().contains("offset:0"));
+        }
+        // kept for the dead-letter topic
+        LazyConsumerRecord<String, String> lazy = (LazyConsumerRecord<String, String>) record;
+        Assert.assertTrue(lazy.isDeserializationFailed());
+        Assert.assertArrayEquals("value".getBytes(StandardCharsets.UTF_8), lazy.rawValue());
+    }
+
+    private ConsumerRecords<byte[], byte[]> raw(String key, String value) {
+        byte[] rawKey = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+        byte[] rawValue = value.getBytes(StandardCharsets.UTF_8);
+        ConsumerRecord<byte[], byte[]> record = new ConsumerRecord<>(partition.topic(), partition.partition(), 0,
+                0L, TimestampType.CREATE_TIME, 0L,
+                rawKey == null ? -1 : rawKey.length, rawValue.length, rawKey, rawValue);
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> records =
+                Collections.singletonMap(partition, Collections.singletonList(record));
+        return new ConsumerRecords<>(records);
+    }
+
+}
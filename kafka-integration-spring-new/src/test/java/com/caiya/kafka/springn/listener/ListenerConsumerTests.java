@@ -0,0 +1,452 @@
+package com.caiya.kafka.springn.listener;
+
+import com.caiya.kafka.springn.core.ConsumerFactory;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * ListenerConsumer tests against {@link MockConsumer}s, without a broker.
+ *
+ * @since 1.2.0
+ */
+public class ListenerConsumerTests {
+
+    private static final TopicPartition PARTITION = new TopicPartition("test", 0);
+
+    private final TestConsumerFactory consumerFactory = new TestConsumerFactory();
+
+    private final ListenerConsumer<String, String> listenerConsumer = new ListenerConsumer<>(this.consumerFactory);
+
+    private final GenericApplicationContext applicationContext = new GenericApplicationContext();
+
+    @After
+    public void tearDown() throws Exception {
+        this.listenerConsumer.destroy();
+        this.applicationContext.close();
+    }
+
+    @Test
+    public void testConcurrentConsumersGetDistinctClientIds() throws Exception {
+        start(Collections.singletonMap("testListener", new TestListener(Collections.singletonList("test"), 3)));
+        awaitCondition(() -> this.consumerFactory.consumers.size() == 3);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("-0", "-1", "-2")), clientIdSuffixes());
+        for (TestConsumer consumer : this.consumerFactory.consumers) {
+            Assert.assertEquals(Collections.singleton("test"), consumer.subscription());
+        }
+    }
+
+    @Test
+    public void testPartitionsAreSpreadOverConcurrentConsumers() throws Exception {
+        TestListener listener = new TestListener(Collections.singletonList("test"), 8) {
+
+            @Override
+            public Collection<Integer> partitions() {
+                return Arrays.asList(0, 1, 2, 3);
+            }
+
+        };
+        start(Collections.singletonMap("testListener", listener));
+        // no more consumers than partitions
+        awaitCondition(() -> this.consumerFactory.consumers.size() == 4);
+        for (TestConsumer consumer : this.consumerFactory.consumers) {
+            awaitCondition(() -> consumer.polls.get() > 0);
+        }
+        Assert.assertEquals(4, this.consumerFactory.consumers.size());
+        for (TestConsumer consumer : this.consumerFactory.consumers) {
+            int index = Integer.parseInt(consumer.clientIdSuffix.substring(1));
+            Assert.assertEquals(Collections.singleton(new TopicPartition("test", index)), consumer.assignment());
+        }
+    }
+
+    @Test
+    public void testSingleConsumerHasNoClientIdSuffix() throws Exception {
+        start(Collections.singletonMap("testListener", new TestListener(Collections.singletonList("test"), 1)));
+        awaitCondition(() -> this.consumerFactory.consumers.size() == 1);
+        Assert.assertNull(this.consumerFactory.consumers.get(0).clientIdSuffix);
+    }
+
+    @Test
+    public void testConsumersRunOnTheTaskExecutor() throws Exception {
+        this.listenerConsumer.setTaskExecutor(new SimpleAsyncTaskExecutor("custom-"));
+        start(Collections.singletonMap("testListener", new TestListener(Collections.singletonList("test"), 2)));
+        awaitCondition(() -> this.consumerFactory.consumers.size() == 2);
+        for (TestConsumer consumer : this.consumerFactory.consumers) {
+            Assert.assertTrue(consumer.threadName, consumer.threadName.startsWith("custom-"));
+        }
+    }
+
+    @Test
+    public void testEveryListenerIsStarted() throws Exception {
+        // more listeners than the former fixed pool of 50 threads
+        Map<String, GenericMessageListener<?>> listeners = new LinkedHashMap<>();
+        for (int i = 0; i < 60; i++) {
+            listeners.put("testListener" + i, new TestListener(Collections.singletonList("test" + i), 1));
+        }
+        start(listeners);
+        awaitCondition(() -> this.consumerFactory.consumers.size() == 60);
+        for (TestConsumer consumer : this.consumerFactory.consumers) {
+            awaitCondition(() -> consumer.polls.get() > 0);
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        this.listenerConsumer.setVirtualThreads(true);
+        boolean supported = ClassUtils.hasMethod(Thread.class, "ofVirtual");
+        try {
+            start(Collections.singletonMap("testListener", new TestListener(Collections.singletonList("test"), 2)));
+            Assert.assertTrue("virtual threads are not supported by this JVM", supported);
+        } catch (IllegalStateException e) {
+            Assert.assertFalse(e.getMessage(), supported);
+            return;
+        }
+        awaitCondition(() -> this.consumerFactory.consumers.size() == 2);
+        for (TestConsumer consumer : this.consumerFactory.consumers) {
+            Assert.assertTrue(consumer.virtual);
+            Assert.assertTrue(consumer.threadName, consumer.threadName.startsWith("kafka-listener-"));
+        }
+    }
+
+    @Test
+    public void testShutdownWakesUpThePollAndCommits() throws Exception {
+        TestListener listener = new PartitionListener(60000) {
+
+            @Override
+            public int parallelism() {
+                return 2;
+            }
+
+        };
+        start(Collections.singletonMap("testListener", listener));
+        TestConsumer consumer = awaitConsumer();
+        consumer.addRecords(PARTITION, 3);
+        awaitCondition(() -> listener.processed.size() == 3);
+        long start = System.currentTimeMillis();
+        this.listenerConsumer.destroy();
+        // the poll is woken up instead of waiting for its timeout
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertTrue(consumer.closed());
+        Assert.assertEquals(3, consumer.commits.get(PARTITION).offset());
+    }
+
+    @Test
+    public void testShutdownCommitsWithAutoCommit() throws Exception {
+        this.consumerFactory.autoCommit = true;
+        TestListener listener = new PartitionListener(60000);
+        start(Collections.singletonMap("testListener", listener));
+        TestConsumer consumer = awaitConsumer();
+        consumer.addRecords(PARTITION, 3);
+        awaitCondition(() -> listener.processed.size() == 3);
+        long start = System.currentTimeMillis();
+        this.listenerConsumer.destroy();
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertTrue(consumer.closed());
+        // the positions of the processed records are committed, not lost to the wakeup
+        Assert.assertEquals(3, consumer.commits.get(PARTITION).offset());
+    }
+
+    @Test
+    public void testOffsetsAreCommittedOnRevoke() throws Exception {
+        List<Collection<TopicPartition>> assigned = new CopyOnWriteArrayList<>();
+        List<Collection<TopicPartition>> revoked = new CopyOnWriteArrayList<>();
+        TestListener listener = new TestListener(Collections.singletonList(PARTITION.topic()), 1) {
+
+            @Override
+            public int parallelism() {
+                return 2;
+            }
+
+            @Override
+            public int ackCount() {
+                return 1000;
+            }
+
+            @Override
+            public long ackTimeInMillis() {
+                return 60000;
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions, Consumer<?, ?> consumer) {
+                assigned.add(new ArrayList<>(partitions));
+            }
+
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                revoked.add(new ArrayList<>(partitions));
+            }
+
+        };
+        start(Collections.singletonMap("testListener", listener));
+        TestConsumer consumer = awaitConsumer();
+        consumer.rebalanceOnPoll(Collections.singletonList(PARTITION), 3);
+        awaitCondition(() -> listener.processed.size() == 3);
+        // not yet acknowledged by count nor time
+        Assert.assertTrue(consumer.commits.isEmpty());
+
+        TopicPartition other = new TopicPartition(PARTITION.topic(), 1);
+        consumer.rebalanceOnPoll(Collections.singletonList(other), 0);
+        awaitCondition(() -> assigned.size() == 2);
+        Assert.assertEquals(Arrays.asList(Collections.singletonList(PARTITION), Collections.singletonList(other)),
+                assigned);
+        Assert.assertEquals(Collections.singletonList(PARTITION), revoked.get(revoked.size() - 1));
+        // committed before the revocation completed
+        Assert.assertEquals(3, consumer.commitsOnRevoke.get(PARTITION).offset());
+    }
+
+    private void start(Map<String, GenericMessageListener<?>> listeners) {
+        listeners.forEach((name, listener) -> this.applicationContext.getBeanFactory().registerSingleton(name, listener));
+        this.applicationContext.refresh();
+        this.listenerConsumer.setApplicationContext(this.applicationContext);
+        this.listenerConsumer.setLagInterval(0);
+        this.listenerConsumer.setShutdownTimeout(2000);
+        this.listenerConsumer.onApplicationEvent(new ContextRefreshedEvent(this.applicationContext));
+    }
+
+    private TestConsumer awaitConsumer() throws InterruptedException {
+        awaitCondition(() -> !this.consumerFactory.consumers.isEmpty());
+        TestConsumer consumer = this.consumerFactory.consumers.get(0);
+        awaitCondition(() -> consumer.polls.get() > 0);
+        return consumer;
+    }
+
+    private HashSet<String> clientIdSuffixes() {
+        HashSet<String> suffixes = new HashSet<>();
+        for (TestConsumer consumer : this.consumerFactory.consumers) {
+            suffixes.add(consumer.clientIdSuffix);
+        }
+        return suffixes;
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("timed out waiting for the condition", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    static class TestListener implements MessageListener<String, String> {
+
+        final List<Long> processed = new CopyOnWriteArrayList<>();
+
+        private final Collection<String> topics;
+
+        private final int concurrency;
+
+        TestListener(Collection<String> topics, int concurrency) {
+            this.topics = topics;
+            this.concurrency = concurrency;
+        }
+
+        @Override
+        public void onMessage(ConsumerRecords<String, String> data) {
+            data.forEach(record -> this.processed.add(record.offset()));
+        }
+
+        @Override
+        public Collection<String> topics() {
+            return this.topics;
+        }
+
+        @Override
+        public int concurrency() {
+            return this.concurrency;
+        }
+
+    }
+
+    /**
+     * A listener assigned the partition 0 of its topic.
+     */
+    static class PartitionListener extends TestListener {
+
+        private final long pollTimeout;
+
+        PartitionListener(long pollTimeout) {
+            super(Collections.singletonList(PARTITION.topic()), 1);
+            this.pollTimeout = pollTimeout;
+        }
+
+        @Override
+        public Collection<Integer> partitions() {
+            return Collections.singletonList(PARTITION.partition());
+        }
+
+        @Override
+        public long pollTimeoutInMillis() {
+            return this.pollTimeout;
+        }
+
+    }
+
+    static class TestConsumerFactory implements ConsumerFactory<String, String> {
+
+        final List<TestConsumer> consumers = new CopyOnWriteArrayList<>();
+
+        volatile boolean autoCommit;
+
+        @Override
+        public Consumer<String, String> createConsumer() {
+            return createConsumer(null, null);
+        }
+
+        @Override
+        public Consumer<String, String> createConsumer(String clientIdSuffix) {
+            return createConsumer(null, clientIdSuffix);
+        }
+
+        @Override
+        public Consumer<String, String> createConsumer(String groupId, String clientIdSuffix) {
+            TestConsumer consumer = new TestConsumer(clientIdSuffix);
+            this.consumers.add(consumer);
+            return consumer;
+        }
+
+        @Override
+        public boolean isAutoCommit() {
+            return this.autoCommit;
+        }
+
+    }
+
+    /**
+     * A {@link MockConsumer} blocking in {@code poll()} until records are available, the timeout elapses or
+     * it is woken up, and invoking the rebalance listener on the polling thread, as a {@code KafkaConsumer}.
+     */
+    static class TestConsumer extends MockConsumer<String, String> {
+
+        final String clientIdSuffix;
+
+        final String threadName = Thread.currentThread().getName();
+
+        final boolean virtual = isVirtual(Thread.currentThread());
+
+        final AtomicInteger polls = new AtomicInteger();
+
+        final Map<TopicPartition, OffsetAndMetadata> commits = new ConcurrentHashMap<>();
+
+        final Map<TopicPartition, OffsetAndMetadata> commitsOnRevoke = new ConcurrentHashMap<>();
+
+        private volatile ConsumerRebalanceListener rebalanceListener;
+
+        TestConsumer(String clientIdSuffix) {
+            super(OffsetResetStrategy.EARLIEST);
+            this.clientIdSuffix = clientIdSuffix;
+        }
+
+        @Override
+        public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+            super.subscribe(topics, listener);
+            this.rebalanceListener = listener;
+        }
+
+        @Override
+        public synchronized void assign(Collection<TopicPartition> partitions) {
+            super.assign(partitions);
+            updateBeginningOffsets(fromBeginning(partitions));
+        }
+
+        /**
+         * Rebalance on the next poll, then make the records available.
+         *
+         * @param assignment the new assignment.
+         * @param records    the number of records to add to each assigned partition, from offset 0.
+         */
+        void rebalanceOnPoll(Collection<TopicPartition> assignment, int records) {
+            schedulePollTask(() -> {
+                this.rebalanceListener.onPartitionsRevoked(assignment());
+                this.commitsOnRevoke.putAll(this.commits);
+                rebalance(assignment);
+                updateBeginningOffsets(fromBeginning(assignment));
+                this.rebalanceListener.onPartitionsAssigned(assignment);
+                for (TopicPartition partition : assignment) {
+                    addRecords(partition, records);
+                }
+            });
+        }
+
+        synchronized void addRecords(TopicPartition partition, int records) {
+            for (long offset = 0; offset < records; offset++) {
+                addRecord(new ConsumerRecord<>(partition.topic(), partition.partition(), offset, "key" + offset,
+                        "value" + offset));
+            }
+        }
+
+        @Override
+        public synchronized void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+            super.commitSync(offsets);
+            this.commits.putAll(offsets);
+        }
+
+        @Override
+        public synchronized void commitAsync(Map<TopicPartition, OffsetAndMetadata> offsets,
+                                             OffsetCommitCallback callback) {
+            super.commitAsync(offsets, callback);
+            this.commits.putAll(offsets);
+        }
+
+        @Override
+        public ConsumerRecords<String, String> poll(long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                ConsumerRecords<String, String> records = super.poll(0);
+                this.polls.incrementAndGet();
+                if (!records.isEmpty() || System.currentTimeMillis() >= deadline) {
+                    return records;
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return records;
+                }
+            }
+        }
+
+        private static boolean isVirtual(Thread thread) {
+            Method isVirtual = ReflectionUtils.findMethod(Thread.class, "isVirtual");
+            return isVirtual != null && (Boolean) ReflectionUtils.invokeMethod(isVirtual, thread);
+        }
+
+        private static Map<TopicPartition, Long> fromBeginning(Collection<TopicPartition> partitions) {
+            Map<TopicPartition, Long> beginningOffsets = new HashMap<>();
+            for (TopicPartition partition : partitions) {
+                beginningOffsets.put(partition, 0L);
+            }
+            return beginningOffsets;
+        }
+
+    }
+
+}
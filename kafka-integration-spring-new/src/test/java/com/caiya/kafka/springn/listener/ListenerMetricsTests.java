@@ -0,0 +1,59 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ListenerMetricsTests.
+ *
+ * @since 1.2.0
+ */
+public class ListenerMetricsTests {
+
+    @Test
+    public void testPollAndLagMetrics() throws Exception {
+        ListenerConsumer<String, String> listenerConsumer = new ListenerConsumer<>(null);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        listenerConsumer.setMBeanServer(mbeanServer);
+        ListenerMetrics metrics = listenerConsumer.getListenerMetrics("testListener");
+        Assert.assertSame(metrics, listenerConsumer.getListenerMetrics("testListener"));
+
+        metrics.recordPoll(TimeUnit.MILLISECONDS.toNanos(100), 0);
+        metrics.recordPoll(TimeUnit.MILLISECONDS.toNanos(2), 10);
+        metrics.recordPoll(TimeUnit.MILLISECONDS.toNanos(3), 30);
+        metrics.recordHandler(TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.recordHandler(TimeUnit.MILLISECONDS.toNanos(40));
+        Assert.assertEquals(3, metrics.getPollCount());
+        Assert.assertEquals(1, metrics.getIdlePollCount());
+        Assert.assertEquals(40, metrics.getRecordCount());
+        Assert.assertEquals(30, metrics.getMaxRecordsPerPoll());
+        Assert.assertEquals(35, metrics.getPollTimeMean(), 0.001);
+        Assert.assertEquals(100, metrics.getPollTimeMax(), 100 / 16d);
+        Assert.assertEquals(2, metrics.getHandlerCount());
+        Assert.assertEquals(30, metrics.getHandlerTimeMean(), 0.001);
+        Assert.assertEquals(40, metrics.getHandlerTime99thPercentile(), 40 / 16d);
+
+        TopicPartition partition0 = new TopicPartition("test", 0);
+        TopicPartition partition1 = new TopicPartition("test", 1);
+        metrics.updateLag(partition0, 5);
+        metrics.updateLag(partition1, 7);
+        Assert.assertEquals(12, metrics.getTotalLag());
+        Assert.assertEquals(7, metrics.getMaxLag());
+        metrics.removeLags(Collections.singletonList(partition1));
+        Assert.assertEquals(Collections.singletonMap("test-0", 5L), metrics.getPartitionLags());
+
+        ObjectName objectName = new ObjectName("com.caiya.kafka.springn:type=ListenerMetrics,name=\"testListener\"");
+        Assert.assertEquals(3L, mbeanServer.getAttribute(objectName, "PollCount"));
+        Assert.assertEquals(5L, mbeanServer.getAttribute(objectName, "TotalLag"));
+        listenerConsumer.destroy();
+        Assert.assertFalse(mbeanServer.isRegistered(objectName));
+    }
+
+}
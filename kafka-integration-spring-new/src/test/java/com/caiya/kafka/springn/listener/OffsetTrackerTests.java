@@ -0,0 +1,151 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.consumer.RetriableCommitFailedException;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * OffsetTrackerTests.
+ *
+ * @since 1.2.0
+ */
+public class OffsetTrackerTests {
+
+    private final TopicPartition partition = new TopicPartition("test", 0);
+
+    @Test
+    public void testCommitHighestContiguousOffset() {
+        OffsetTracker offsetTracker = new OffsetTracker();
+        for (long offset = 10; offset < 15; offset++) {
+            offsetTracker.register(partition, offset);
+        }
+        offsetTracker.complete(partition, 10);
+        offsetTracker.complete(partition, 12);
+        offsetTracker.complete(partition, 13);
+        Assert.assertEquals(11, offsetTracker.committable().get(partition).offset());
+        Assert.assertEquals(2, offsetTracker.pending(partition));
+
+        // no progress, nothing to commit
+        Assert.assertTrue(offsetTracker.committable().isEmpty());
+
+        offsetTracker.complete(partition, 11);
+        Assert.assertEquals(14, offsetTracker.committable().get(partition).offset());
+        offsetTracker.complete(partition, 14);
+        Assert.assertEquals(15, offsetTracker.committable().get(partition).offset());
+        Assert.assertEquals(0, offsetTracker.pending(partition));
+    }
+
+    @Test
+    public void testOffsetGapsAreSkipped() {
+        OffsetTracker offsetTracker = new OffsetTracker();
+        offsetTracker.register(partition, 3);
+        offsetTracker.register(partition, 7);
+        offsetTracker.complete(partition, 7);
+        Assert.assertEquals(3, offsetTracker.committable().get(partition).offset());
+        offsetTracker.complete(partition, 3);
+        Assert.assertEquals(8, offsetTracker.committable().get(partition).offset());
+    }
+
+    @Test
+    public void testFailedCommitIsReturnedAgain() {
+        OffsetTracker offsetTracker = new OffsetTracker();
+        offsetTracker.register(partition, 0);
+        offsetTracker.complete(partition, 0);
+        Map<TopicPartition, OffsetAndMetadata> offsets = offsetTracker.committable();
+        offsetTracker.commitFailed(offsets);
+        Assert.assertEquals(offsets, offsetTracker.committable());
+    }
+
+    @Test
+    public void testFailedCommitIsRetried() throws InterruptedException {
+        OffsetTracker offsetTracker = new OffsetTracker();
+        offsetTracker.register(partition, 0);
+        offsetTracker.complete(partition, 0);
+        List<Map<TopicPartition, OffsetAndMetadata>> commits = new ArrayList<>();
+        MockConsumer<String, String> consumer = new MockConsumer<String, String>(OffsetResetStrategy.EARLIEST) {
+
+            @Override
+            public synchronized void commitAsync(Map<TopicPartition, OffsetAndMetadata> offsets,
+                                                 OffsetCommitCallback callback) {
+                commits.add(offsets);
+                callback.onComplete(offsets, commits.size() == 1 ? new RetriableCommitFailedException("failed") : null);
+            }
+
+        };
+        OffsetCommitter offsetCommitter = new OffsetCommitter(offsetTracker, 1, 200);
+        offsetCommitter.maybeCommit(consumer);
+        Assert.assertEquals(1, commits.size());
+        // nothing completed since, the failed commit is retried once the time elapsed
+        offsetCommitter.maybeCommit(consumer);
+        Assert.assertEquals(1, commits.size());
+        Thread.sleep(250);
+        offsetCommitter.maybeCommit(consumer);
+        Assert.assertEquals(2, commits.size());
+        Assert.assertEquals(commits.get(0), commits.get(1));
+        Thread.sleep(250);
+        offsetCommitter.maybeCommit(consumer);
+        Assert.assertEquals(2, commits.size());
+    }
+
+    @Test
+    public void testAcknowledgment() {
+        OffsetTracker offsetTracker = new OffsetTracker();
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        for (long offset = 0; offset < 3; offset++) {
+            records.add(new ConsumerRecord<>(partition.topic(), partition.partition(), offset, null, "value"));
+            offsetTracker.register(partition, offset);
+        }
+        Acknowledgment acknowledgment = offsetTracker.acknowledgment(
+                new ConsumerRecords<>(Collections.singletonMap(partition, records)));
+        acknowledgment.acknowledge(records.get(1));
+        Assert.assertEquals(0, offsetTracker.committable().get(partition).offset());
+        acknowledgment.acknowledge();
+        Assert.assertEquals(3, offsetTracker.committable().get(partition).offset());
+        Assert.assertEquals(3, offsetTracker.completed());
+    }
+
+    @Test
+    public void testDiscardedOffsetsAreNotCommitted() {
+        OffsetTracker offsetTracker = new OffsetTracker();
+        offsetTracker.register(partition, 0, 4);
+        offsetTracker.register(partition, 5, 9);
+        offsetTracker.discard(partition, 5);
+        Assert.assertEquals(1, offsetTracker.pending(partition));
+        offsetTracker.complete(partition, 0);
+        Assert.assertEquals(5, offsetTracker.committable().get(partition).offset());
+        Assert.assertEquals(1, offsetTracker.completed());
+    }
+
+    @Test
+    public void testAwaitCompletion() throws InterruptedException {
+        OffsetTracker offsetTracker = new OffsetTracker();
+        offsetTracker.register(partition, 0);
+        Assert.assertFalse(offsetTracker.awaitCompletion(Collections.singleton(partition), 20));
+        Thread completing = new Thread(() -> offsetTracker.complete(partition, 0));
+        completing.start();
+        Assert.assertTrue(offsetTracker.awaitCompletion(Collections.singleton(partition), 5000));
+        completing.join();
+    }
+
+    @Test
+    public void testRemovedPartitionIsIgnored() {
+        OffsetTracker offsetTracker = new OffsetTracker();
+        offsetTracker.register(partition, 0);
+        offsetTracker.remove(Collections.singleton(partition));
+        offsetTracker.complete(partition, 0);
+        Assert.assertTrue(offsetTracker.committable().isEmpty());
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ParallelDeserializerTests.
+ *
+ * @since 1.2.0
+ */
+public class ParallelDeserializerTests {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public static void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testOrderPreservedPerPartition() {
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> raw = new HashMap<>();
+        for (int partition = 0; partition < 3; partition++) {
+            List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+            for (long offset = 0; offset < 100; offset++) {
+                records.add(new ConsumerRecord<>("test", partition, offset, null, bytes(partition + "-" + offset)));
+            }
+            raw.put(new TopicPartition("test", partition), records);
+        }
+        ParallelDeserializer<String, String> deserializer = new ParallelDeserializer<>(new StringDeserializer(),
+                new StringDeserializer(), executor);
+        ConsumerRecords<String, String> records = deserializer.deserialize(new ConsumerRecords<>(raw));
+        Assert.assertEquals(300, records.count());
+        for (TopicPartition partition : records.partitions()) {
+            long offset = 0;
+            for (ConsumerRecord<String, String> record : records.records(partition)) {
+                Assert.assertEquals(offset, record.offset());
+                Assert.assertNull(record.key());
+                Assert.assertEquals(partition.partition() + "-" + offset++, record.value());
+            }
+        }
+    }
+
+    @Test
+    public void testFailedRecordIsReported() {
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        for (long offset = 0; offset < 100; offset++) {
+            records.add(new ConsumerRecord<>("test", 0, offset, null, bytes(offset == 42 ? "poison" : "value")));
+        }
+        ParallelDeserializer<String, String> deserializer = new ParallelDeserializer<>(new StringDeserializer(),
+                poisonDeserializer(), executor);
+        try {
+            deserializer.deserialize(new ConsumerRecords<>(
+                    Collections.singletonMap(new TopicPartition("test", 0), records)));
+            Assert.fail("expected RecordDeserializationException");
+        } catch (RecordDeserializationException e) {
+            Assert.assertTrue(e.getMessage().contains("offset:42"));
+            Assert.assertEquals(42, e.getRecord().offset());
+            // the records before the failed one are deserialized
+            Assert.assertEquals(42, e.deserialized().count());
+        }
+    }
+
+    @Test
+    public void testOtherPartitionsAreDeserialized() {
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> raw = new HashMap<>();
+        for (int partition = 0; partition < 2; partition++) {
+            List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+            for (long offset = 0; offset < 20; offset++) {
+                records.add(new ConsumerRecord<>("test", partition, offset, null,
+                        bytes(partition == 1 && offset == 5 ? "poison" : "value")));
+            }
+            raw.put(new TopicPartition("test", partition), records);
+        }
+        ParallelDeserializer<String, String> deserializer = new ParallelDeserializer<>(new StringDeserializer(),
+                poisonDeserializer(), executor);
+        try {
+            deserializer.deserialize(new ConsumerRecords<>(raw));
+            Assert.fail("expected RecordDeserializationException");
+        } catch (RecordDeserializationException e) {
+            Assert.assertEquals(Collections.singleton(new TopicPartition("test", 1)), e.failures().keySet());
+            Assert.assertEquals(20, e.deserialized().records(new TopicPartition("test", 0)).size());
+            Assert.assertEquals(5, e.deserialized().records(new TopicPartition("test", 1)).size());
+        }
+    }
+
+    @Test
+    public void testSmallPartitionsAreDeserializedByTheExecutor() {
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> raw = new HashMap<>();
+        for (int partition = 0; partition < 20; partition++) {
+            List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+            for (long offset = 0; offset < 10; offset++) {
+                records.add(new ConsumerRecord<>("test", partition, offset, null, bytes("value")));
+            }
+            raw.put(new TopicPartition("test", partition), records);
+        }
+        Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        Deserializer<String> recording = new StringDeserializer() {
+
+            @Override
+            public String deserialize(String topic, byte[] data) {
+                threads.add(Thread.currentThread().getName());
+                return super.deserialize(topic, data);
+            }
+
+        };
+        ExecutorService namedExecutor = Executors.newFixedThreadPool(4, new CustomizableThreadFactory("deserializer-"));
+        try {
+            ParallelDeserializer<String, String> deserializer = new ParallelDeserializer<>(new StringDeserializer(),
+                    recording, namedExecutor);
+            Assert.assertEquals(200, deserializer.deserialize(new ConsumerRecords<>(raw)).count());
+        } finally {
+            namedExecutor.shutdown();
+        }
+        boolean offloaded = false;
+        for (String thread : threads) {
+            offloaded |= thread.startsWith("deserializer-");
+        }
+        Assert.assertTrue("deserialized on " + threads, offloaded);
+    }
+
+    private static Deserializer<String> poisonDeserializer() {
+        return new StringDeserializer() {
+
+            @Override
+            public String deserialize(String topic, byte[] data) {
+                String value = super.deserialize(topic, data);
+                if ("poison".equals(value)) {
+                    throw new IllegalArgumentException(value);
+                }
+                return value;
+            }
+
+        };
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
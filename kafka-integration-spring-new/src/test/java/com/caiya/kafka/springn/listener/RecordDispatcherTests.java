@@ -0,0 +1,197 @@
+package com.caiya.kafka.springn.listener;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RecordDispatcherTests.
+ *
+ * @since 1.2.0
+ */
+public class RecordDispatcherTests {
+
+    private final TopicPartition partition = new TopicPartition("test", 0);
+
+    @Test
+    public void testKeyOrderedDispatcherStopsFailedPartition() throws Exception {
+        List<Long> processed = new CopyOnWriteArrayList<>();
+        OffsetTracker offsetTracker = new OffsetTracker();
+        KeyOrderedRecordDispatcher<String, String> dispatcher = new KeyOrderedRecordDispatcher<>(
+                failingListener(processed), false, offsetTracker, null, 1, "test-");
+        MockConsumer<String, String> consumer = assignedConsumer();
+
+        dispatcher.dispatch(records(0, 3));
+        awaitPaused(dispatcher, consumer);
+        Assert.assertEquals(Collections.singleton(partition), consumer.paused());
+        Assert.assertEquals(1, consumer.position(partition));
+        // the records after the failed one are not processed, nor dispatched
+        dispatcher.dispatch(records(3, 5));
+        dispatcher.shutdown(1, TimeUnit.SECONDS);
+        Assert.assertEquals(Collections.singletonList(0L), processed);
+        Assert.assertEquals(1, offsetTracker.committable().get(partition).offset());
+
+        // the failed record does not hold back the revocation
+        long start = System.currentTimeMillis();
+        dispatcher.partitionsRevoked(Collections.singletonList(partition), 5000);
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testHandOffDispatcherStopsFailedPartition() throws Exception {
+        List<Long> processed = new CopyOnWriteArrayList<>();
+        OffsetTracker offsetTracker = new OffsetTracker();
+        HandOffRecordDispatcher<String, String> dispatcher = new HandOffRecordDispatcher<>(
+                failingListener(processed), false, offsetTracker, null, 4, "test-");
+        MockConsumer<String, String> consumer = assignedConsumer();
+
+        dispatcher.dispatch(records(0, 3));
+        awaitPaused(dispatcher, consumer);
+        Assert.assertEquals(Collections.singleton(partition), consumer.paused());
+        // the whole failed batch is consumed again
+        Assert.assertEquals(0, consumer.position(partition));
+        dispatcher.dispatch(records(3, 5));
+        dispatcher.shutdown(1, TimeUnit.SECONDS);
+        Assert.assertEquals(Collections.singletonList(0L), processed);
+        Assert.assertEquals(0, offsetTracker.committable().get(partition).offset());
+
+        long start = System.currentTimeMillis();
+        dispatcher.partitionsRevoked(Collections.singletonList(partition), 5000);
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testKeyOrderedDispatcherRoutesEqualByteArrayKeysToOneLane() throws Exception {
+        Map<String, Set<String>> threads = new ConcurrentHashMap<>();
+        MessageListener<byte[], String> listener = new MessageListener<byte[], String>() {
+
+            @Override
+            public void onMessage(ConsumerRecords<byte[], String> data) {
+                for (ConsumerRecord<byte[], String> record : data) {
+                    threads.computeIfAbsent(new String(record.key(), StandardCharsets.UTF_8),
+                            key -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread().getName());
+                }
+            }
+
+            @Override
+            public Collection<String> topics() {
+                return Collections.singletonList(partition.topic());
+            }
+
+        };
+        KeyOrderedRecordDispatcher<byte[], String> dispatcher = new KeyOrderedRecordDispatcher<>(
+                listener, false, new OffsetTracker(), null, 8, "test-");
+        List<ConsumerRecord<byte[], String>> records = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            // distinct but equal arrays for each key
+            byte[] key = ("key" + (i % 8)).getBytes(StandardCharsets.UTF_8);
+            records.add(new ConsumerRecord<>(partition.topic(), partition.partition(), i, key, "value" + i));
+        }
+        dispatcher.dispatch(new ConsumerRecords<>(Collections.singletonMap(partition, records)));
+        dispatcher.shutdown(5, TimeUnit.SECONDS);
+        Assert.assertEquals(8, threads.size());
+        for (Set<String> keyThreads : threads.values()) {
+            Assert.assertEquals(1, keyThreads.size());
+        }
+    }
+
+    @Test
+    public void testKeyOrderedDispatcherSkipsRecordsQueuedForRevokedPartition() throws Exception {
+        List<Long> processed = new CopyOnWriteArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        MessageListener<String, String> listener = new MessageListener<String, String>() {
+
+            @Override
+            public void onMessage(ConsumerRecords<String, String> data) {
+                for (ConsumerRecord<String, String> record : data) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    processed.add(record.offset());
+                }
+            }
+
+            @Override
+            public Collection<String> topics() {
+                return Collections.singletonList(partition.topic());
+            }
+
+        };
+        KeyOrderedRecordDispatcher<String, String> dispatcher = new KeyOrderedRecordDispatcher<>(
+                listener, false, new OffsetTracker(), null, 1, "test-");
+        dispatcher.dispatch(records(0, 3));
+        // times out, the first record is in process
+        dispatcher.partitionsRevoked(Collections.singletonList(partition), 50);
+        // assigned again, the records dispatched afterwards are processed
+        dispatcher.dispatch(records(3, 5));
+        release.countDown();
+        dispatcher.shutdown(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList(0L, 3L, 4L), processed);
+    }
+
+    private MessageListener<String, String> failingListener(List<Long> processed) {
+        return new MessageListener<String, String>() {
+
+            @Override
+            public void onMessage(ConsumerRecords<String, String> data) {
+                for (ConsumerRecord<String, String> record : data) {
+                    if (record.offset() == 1) {
+                        throw new IllegalStateException("failed");
+                    }
+                    processed.add(record.offset());
+                }
+            }
+
+            @Override
+            public Collection<String> topics() {
+                return Collections.singletonList(partition.topic());
+            }
+
+        };
+    }
+
+    private MockConsumer<String, String> assignedConsumer() {
+        MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.assign(Collections.singletonList(partition));
+        consumer.updateBeginningOffsets(Collections.singletonMap(partition, 0L));
+        consumer.seek(partition, 5);
+        return consumer;
+    }
+
+    private ConsumerRecords<String, String> records(long from, long to) {
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        for (long offset = from; offset < to; offset++) {
+            records.add(new ConsumerRecord<>(partition.topic(), partition.partition(), offset, "key", "value" + offset));
+        }
+        return new ConsumerRecords<>(Collections.singletonMap(partition, records));
+    }
+
+    private void awaitPaused(RecordDispatcher<String, String> dispatcher, MockConsumer<String, String> consumer)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (consumer.paused().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            dispatcher.pauseOrResume(consumer);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.caiya.kafka.springn.support;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * AggregatingLoggingProducerListenerTests.
+ *
+ * @since 1.2.0
+ */
+public class AggregatingLoggingProducerListenerTests {
+
+    @Test
+    public void testSummariesPerTopicAndExceptionType() throws Exception {
+        Logger logger = (Logger) LoggerFactory.getLogger(AggregatingLoggingProducerListener.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        AggregatingLoggingProducerListener<String, String> listener = new AggregatingLoggingProducerListener<>();
+        listener.setWindow(60000);
+        listener.setMaxSamples(2);
+        listener.setMaxContentLogged(5);
+        try {
+            for (int i = 0; i < 100; i++) {
+                listener.onError(new ProducerRecord<>("test", "key" + i, "value-" + i), new TimeoutException("timeout"));
+            }
+            listener.onError(new ProducerRecord<>("other", "key", "value"), new IllegalStateException("failed"));
+            Assert.assertTrue(appender.list.isEmpty());
+
+            listener.logSummaries();
+            List<ILoggingEvent> events = appender.list;
+            Assert.assertEquals(2, events.size());
+            String summary = null;
+            for (ILoggingEvent event : events) {
+                if (event.getFormattedMessage().contains("topic test")) {
+                    summary = event.getFormattedMessage();
+                }
+            }
+            Assert.assertNotNull(summary);
+            Assert.assertTrue(summary.startsWith("Failed to send 100 messages to topic test with "
+                    + TimeoutException.class.getName()));
+            Assert.assertTrue(summary.contains("key='key0' and payload='value...'"));
+            Assert.assertTrue(summary.contains("key='key1'"));
+            Assert.assertFalse(summary.contains("key='key2'"));
+
+            // nothing failed since, and the samples are taken again
+            appender.list.clear();
+            listener.logSummaries();
+            Assert.assertTrue(appender.list.isEmpty());
+            listener.onError(new ProducerRecord<>("test", "key100", "value"), new TimeoutException("timeout"));
+            listener.logSummaries();
+            Assert.assertEquals(1, appender.list.size());
+            Assert.assertTrue(appender.list.get(0).getFormattedMessage().contains("key='key10...'"));
+        } finally {
+            listener.destroy();
+            logger.detachAppender(appender);
+        }
+    }
+
+    @Test
+    public void testConcurrentFailuresAreCountedOnce() throws Exception {
+        Logger logger = (Logger) LoggerFactory.getLogger(AggregatingLoggingProducerListener.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        AggregatingLoggingProducerListener<String, String> listener = new AggregatingLoggingProducerListener<>();
+        listener.setWindow(60000);
+        listener.setIncludeContents(false);
+        Thread[] senders = new Thread[4];
+        try {
+            for (int i = 0; i < senders.length; i++) {
+                senders[i] = new Thread(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        listener.onError(new ProducerRecord<>("test", "key", "value"), new TimeoutException("timeout"));
+                    }
+                });
+                senders[i].start();
+            }
+            for (Thread sender : senders) {
+                while (sender.isAlive()) {
+                    listener.logSummaries();
+                }
+            }
+            listener.logSummaries();
+            long total = 0;
+            for (ILoggingEvent event : appender.list) {
+                Matcher matcher = Pattern.compile("^Failed to send (\\d+) message").matcher(event.getFormattedMessage());
+                Assert.assertTrue(matcher.find());
+                long count = Long.parseLong(matcher.group(1));
+                // the samples are those of the counted failures
+                int samples = event.getFormattedMessage().split("\n  sample:").length - 1;
+                Assert.assertTrue(samples >= 1 && samples <= Math.min(count, 3));
+                total += count;
+            }
+            Assert.assertEquals(40000, total);
+        } finally {
+            listener.destroy();
+            logger.detachAppender(appender);
+        }
+    }
+
+}
@@ -5,6 +5,7 @@ import com.caiya.kafka.springn.listener.ListenerConsumer;
 import org.apache.kafka.clients.KafkaClient;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
@@ -15,6 +16,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.util.CollectionUtils;
 
+import javax.management.MBeanServer;
+
 /**
  * KafkaAutoConfiguration.
  *
@@ -64,8 +67,11 @@ public class KafkaAutoConfiguration {
 
     @Bean
     @ConditionalOnBean(ConsumerFactory.class)
-    public ListenerConsumer<String, String> listenerConsumer() {
-        return new ListenerConsumer<>(consumerFactory());
+    public ListenerConsumer<String, String> listenerConsumer(ObjectProvider<MBeanServer> mbeanServer) {
+        ListenerConsumer<String, String> listenerConsumer = new ListenerConsumer<>(consumerFactory());
+        // the listener metrics are exposed over JMX when a server is available, e.g. with spring.jmx.enabled
+        mbeanServer.ifAvailable(listenerConsumer::setMBeanServer);
+        return listenerConsumer;
     }
 
 
@@ -0,0 +1,64 @@
+package com.caiya.kafka.spring.boot.autoconfigure;
+
+import com.caiya.kafka.springn.listener.ListenerConsumer;
+import com.caiya.kafka.springn.listener.ListenerMetrics;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds the {@link ListenerMetrics} of the listeners to a Micrometer registry, tagged by listener
+ * bean name.
+ *
+ * @since 1.2.0
+ */
+public class KafkaListenerMetricsBinder implements MeterBinder {
+
+    private final ListenerConsumer<?, ?> listenerConsumer;
+
+    private final Collection<String> listenerNames;
+
+    public KafkaListenerMetricsBinder(ListenerConsumer<?, ?> listenerConsumer, Collection<String> listenerNames) {
+        this.listenerConsumer = listenerConsumer;
+        this.listenerNames = listenerNames;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (String listenerName : this.listenerNames) {
+            ListenerMetrics metrics = this.listenerConsumer.getListenerMetrics(listenerName);
+            FunctionTimer.builder("kafka.listener.poll", metrics, ListenerMetrics::getPollCount,
+                    m -> m.getPollTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+                    .tag("listener", listenerName)
+                    .description("The polls of the consumers, including the deserialization")
+                    .register(registry);
+            FunctionCounter.builder("kafka.listener.poll.idle", metrics, ListenerMetrics::getIdlePollCount)
+                    .tag("listener", listenerName)
+                    .description("The polls returning no record")
+                    .register(registry);
+            FunctionCounter.builder("kafka.listener.records", metrics, ListenerMetrics::getRecordCount)
+                    .tag("listener", listenerName)
+                    .description("The records polled")
+                    .register(registry);
+            FunctionTimer.builder("kafka.listener.handler", metrics, ListenerMetrics::getHandlerCount,
+                    m -> m.getHandlerTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+                    .tag("listener", listenerName)
+                    .description("The invocations of the listener per polled batch")
+                    .register(registry);
+            Gauge.builder("kafka.listener.lag", metrics, ListenerMetrics::getTotalLag)
+                    .tag("listener", listenerName)
+                    .description("The total lag of the assigned partitions")
+                    .register(registry);
+            Gauge.builder("kafka.listener.lag.max", metrics, ListenerMetrics::getMaxLag)
+                    .tag("listener", listenerName)
+                    .description("The highest lag of the assigned partitions")
+                    .register(registry);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.caiya.kafka.spring.boot.autoconfigure;
+
+import com.caiya.kafka.springn.listener.GenericMessageListener;
+import com.caiya.kafka.springn.listener.ListenerConsumer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+
+/**
+ * Binds the metrics of the listeners to Micrometer, when it is on the classpath.
+ *
+ * @since 1.2.0
+ */
+@Configuration
+@ConditionalOnClass({MeterBinder.class, ListenerConsumer.class})
+@AutoConfigureAfter(KafkaAutoConfiguration.class)
+public class KafkaMetricsAutoConfiguration {
+
+    @Bean
+    @ConditionalOnBean(ListenerConsumer.class)
+    @ConditionalOnMissingBean(KafkaListenerMetricsBinder.class)
+    public KafkaListenerMetricsBinder kafkaListenerMetricsBinder(ListenerConsumer<?, ?> listenerConsumer,
+                                                                 ListableBeanFactory beanFactory) {
+        return new KafkaListenerMetricsBinder(listenerConsumer,
+                Arrays.asList(beanFactory.getBeanNamesForType(GenericMessageListener.class)));
+    }
+
+}
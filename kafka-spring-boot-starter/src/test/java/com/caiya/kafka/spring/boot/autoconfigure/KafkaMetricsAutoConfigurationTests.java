@@ -0,0 +1,105 @@
+package com.caiya.kafka.spring.boot.autoconfigure;
+
+import com.caiya.kafka.springn.listener.MessageListener;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * KafkaMetricsAutoConfigurationTests.
+ *
+ * @since 1.2.0
+ */
+public class KafkaMetricsAutoConfigurationTests {
+
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+            .withPropertyValues("kafka.producer-config.bootstrap-servers=127.0.0.1:9093,127.0.0.1:9094",
+                    "kafka.consumer-config.bootstrap-servers=127.0.0.1:9093,127.0.0.1:9094",
+                    "kafka.topics=test")
+            .withConfiguration(AutoConfigurations.of(KafkaAutoConfiguration.class,
+                    KafkaMetricsAutoConfiguration.class));
+
+    @Test
+    public void listenerMetricsAreBound() {
+        this.contextRunner.withUserConfiguration(ListenerConfiguration.class).run((context) -> {
+            assertThat(context).hasSingleBean(KafkaListenerMetricsBinder.class);
+            MeterRegistry registry = new SimpleMeterRegistry();
+            context.getBean(KafkaListenerMetricsBinder.class).bindTo(registry);
+            assertThat(registry.find("kafka.listener.poll").tag("listener", "testListener").functionTimer())
+                    .isNotNull();
+            assertThat(registry.find("kafka.listener.handler").tag("listener", "testListener").functionTimer())
+                    .isNotNull();
+            assertThat(registry.find("kafka.listener.poll.idle").tag("listener", "testListener").functionCounter())
+                    .isNotNull();
+            assertThat(registry.find("kafka.listener.records").tag("listener", "testListener").functionCounter())
+                    .isNotNull();
+            assertThat(registry.find("kafka.listener.lag").tag("listener", "testListener").gauge()).isNotNull();
+            assertThat(registry.find("kafka.listener.lag.max").tag("listener", "testListener").gauge()).isNotNull();
+            assertThat(registry.getMeters()).hasSize(6);
+        });
+    }
+
+    @Test
+    public void listenerMetricsAreRegisteredWithTheMBeanServer() {
+        this.contextRunner.withUserConfiguration(ListenerConfiguration.class, MBeanServerConfiguration.class)
+                .run((context) -> {
+                    context.getBean(KafkaListenerMetricsBinder.class).bindTo(new SimpleMeterRegistry());
+                    assertThat(context.getBean(MBeanServer.class).isRegistered(new ObjectName(
+                            "com.caiya.kafka.springn:type=ListenerMetrics,name=\"testListener\""))).isTrue();
+                });
+    }
+
+    @Test
+    public void noBinderWithoutListenerConsumer() {
+        new ApplicationContextRunner()
+                .withConfiguration(AutoConfigurations.of(KafkaAutoConfiguration.class,
+                        KafkaMetricsAutoConfiguration.class))
+                .run((context) -> assertThat(context).doesNotHaveBean(KafkaListenerMetricsBinder.class));
+    }
+
+    @Configuration
+    static class ListenerConfiguration {
+
+        @Bean
+        public MessageListener<String, String> testListener() {
+            return new MessageListener<String, String>() {
+
+                @Override
+                public void onMessage(ConsumerRecords<String, String> data) {
+                }
+
+                @Override
+                public Collection<String> topics() {
+                    // not started, the metrics are bound regardless
+                    return Collections.emptyList();
+                }
+
+            };
+        }
+
+    }
+
+    @Configuration
+    static class MBeanServerConfiguration {
+
+        @Bean
+        public MBeanServer mbeanServer() {
+            return MBeanServerFactory.newMBeanServer();
+        }
+
+    }
+
+}